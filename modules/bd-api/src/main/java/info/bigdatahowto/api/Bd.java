@@ -15,6 +15,7 @@ import info.bigdatahowto.defaults.js.JavaScriptProcessor;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,11 +64,19 @@ public class Bd {
     private ResourceRoadie resourceRoadie;
     private Queue queue;
     private Processor processor;
+    private ProcessorPool processorPool;
+    private ProcessorPipeline processorPipeline;
+    private DeadLetterRoadie deadLetterRoadie;
+    private MapRoadie mapRoadie;
 
     private Bd( String directory) {
 
         this( new FileResource( directory), new AlwaysAllowAuthenticator(),
                 new UserRoadie(), new InMemoryQueue());
+
+        // tf - Jobs here run when 'Bd.processJob' is called, so retry failed
+        //  jobs right away instead of after a backoff.
+        this.processor.setRetryBackoffMillis( 0);
     }
 
     private Bd(Resource resource, Authenticator authenticator, UserRoadie userRoadie, Queue queue){
@@ -82,6 +91,9 @@ public class Bd {
         this.resourceRoadie.addResource(resource);
         this.processor= new JavaScriptProcessor(this.queue,
                 this.resourceRoadie);
+        this.deadLetterRoadie= new DeadLetterRoadie( resource, this.queue);
+        this.mapRoadie= new MapRoadie( resource, this.resourceRoadie,
+                this.processor, this.queue);
     }
 
     public UUID addMessage( UUID jobUuid, String key, String behaviorString,
@@ -172,6 +184,137 @@ public class Bd {
         this.processor.pullJob();
     }
 
+    /**
+     * Starts worker threads processing jobs as they arrive.  Does nothing if
+     * already started.
+     *
+     * @param poolSize Number of worker threads.
+     */
+    public synchronized void startProcessing( int poolSize){
+
+        if( this.processorPool== null){
+
+            this.processorPool= new ProcessorPool( this.processor, poolSize);
+        }
+        this.processorPool.start();
+    }
+
+    /**
+     * Starts worker threads popping batches of jobs, each message key's jobs
+     * running on a virtual thread.  Jobs running at once adapt to job
+     * latency.  Does nothing if already started.
+     *
+     * @param poolSize Number of worker threads popping jobs.
+     * @param maximumInFlight Maximum number of jobs running at once.
+     */
+    public synchronized void startVirtualProcessing( int poolSize,
+                                                     int maximumInFlight){
+
+        if( this.processorPool== null){
+
+            this.processorPool= new ProcessorPool( this.processor, poolSize);
+            this.processorPool.setBatchSize( 10);
+            this.processorPool.setMaximumInFlight( maximumInFlight);
+            this.processorPool.setVirtualThreads( true);
+            this.processorPool.setAdaptive( true);
+        }
+        this.processorPool.start();
+    }
+
+    /**
+     * Starts processing jobs as they arrive in a pipeline, fetching messages,
+     * running behaviors and writing results on separate threads.  Does
+     * nothing if already started.
+     */
+    public synchronized void startPipelinedProcessing(){
+
+        if( this.processorPipeline== null){
+
+            this.processorPipeline= new ProcessorPipeline( this.processor);
+        }
+        this.processorPipeline.start();
+    }
+
+    /**
+     * @return Current limit on jobs running at once, zero if not started.
+     */
+    public synchronized int getProcessingLimit(){
+
+        return this.processorPool== null ? 0
+                : this.processorPool.getLimit();
+    }
+
+    /**
+     * Stops worker threads once their running jobs finish.
+     */
+    public synchronized void stopProcessing(){
+
+        if( this.processorPool!= null){
+
+            this.processorPool.stop();
+        }
+        if( this.processorPipeline!= null){
+
+            this.processorPipeline.stop();
+        }
+    }
+
+    /**
+     * Processes a job, waiting up to timeout for one to arrive.
+     *
+     * @param timeout Maximum time to wait for a job.
+     * @param unit Unit of timeout.
+     */
+    public void processJob( long timeout, TimeUnit unit){
+
+        this.processor.pullJob( timeout, unit);
+    }
+
+    /**
+     * Queues every job parked in 'Error' state for a user context again.
+     *
+     * @param userContext User context to replay.
+     * @return Number of jobs queued again.
+     */
+    public int replayDeadLetters( String userContext){
+
+        return this.deadLetterRoadie.replay( userContext);
+    }
+
+    /**
+     * Applies a behavior to every message under a user context.  Key ranges
+     * are queued as batch jobs for processor workers to pick up, and this
+     * returns once they are queued.
+     *
+     * @param key Key prefix, '//resource-name/user-context/'.
+     * @param behaviorString Behavior function.
+     * @param behaviorType Behavior type.
+     * @param authentication Authenticates access to messages.
+     * @return UUID of the map job.
+     */
+    public UUID mapMessages( String key, String behaviorString,
+                             String behaviorType, String authentication){
+
+        MapJob mapJob= this.mapRoadie.create( key, new Behavior(
+                BehaviorType.valueOf( behaviorType), behaviorString),
+                authentication);
+        this.mapRoadie.submit( mapJob);
+
+        return mapJob.getUuid();
+    }
+
+    /**
+     * Continues a map job from its last checkpoints, processing ranges not
+     * queued as batch jobs in place.
+     *
+     * @param uuid Map job to resume.
+     * @return Number of messages processed.
+     */
+    public int resumeMap( UUID uuid){
+
+        return this.mapRoadie.resume( uuid);
+    }
+
     public void register( String authentication, String userContext){
 
         this.userRoadie.register(authentication, userContext);
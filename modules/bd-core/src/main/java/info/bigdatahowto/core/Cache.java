@@ -24,6 +24,14 @@ public interface Cache {
      */
     String get( String key);
 
+    /**
+     * Restarts the expiry of a key already in cache.
+     *
+     * @param key    Key to touch.
+     * @return  True if the key was in cache.
+     */
+    boolean touch( String key);
+
     /**
      * Removes a key-value pair from cache;
      *
@@ -0,0 +1,168 @@
+package info.bigdatahowto.core;
+
+/**
+ * Limits the jobs in flight at once.  A fixed limit behaves as a semaphore.
+ * An adaptive limit follows job latency: while latency stays near the lowest
+ * seen it grows by about the square root of the limit, and as backends slow
+ * down and latency climbs it shrinks in proportion, so a node runs near peak
+ * throughput without hand tuning.
+ *
+ * @author timfulmer
+ */
+public class ConcurrencyLimit {
+
+    /**
+     * Latency up to this multiple of the lowest seen counts as unloaded.
+     */
+    private static final double TOLERANCE= 2.0;
+
+    /**
+     * Weight of each new limit, and of each latency sample, in the running
+     * values.
+     */
+    private static final double SMOOTHING= 0.2;
+
+    /**
+     * Limit kept after a job fails.
+     */
+    private static final double BACKOFF_RATIO= 0.9;
+
+    /**
+     * Samples between resets of the lowest latency seen, so a lasting
+     * change in backend latency becomes the new baseline.
+     */
+    private static final int PROBE_SAMPLES= 1000;
+
+    private final boolean adaptive;
+    private final int minimumLimit, maximumLimit;
+    private double limit;
+    private int inFlight;
+    private double smoothedNanos;
+    private long minimumNanos= Long.MAX_VALUE;
+    private int samples;
+
+    /**
+     * @param limit Fixed number of jobs in flight.
+     */
+    public ConcurrencyLimit( int limit) {
+
+        this( limit, limit, limit, false);
+    }
+
+    private ConcurrencyLimit( int limit, int minimumLimit, int maximumLimit,
+                              boolean adaptive) {
+
+        super();
+
+        this.limit= limit;
+        this.minimumLimit= minimumLimit;
+        this.maximumLimit= maximumLimit;
+        this.adaptive= adaptive;
+    }
+
+    /**
+     * @param initialLimit Jobs in flight before any latency is seen.
+     * @param minimumLimit Fewest jobs in flight allowed.
+     * @param maximumLimit Most jobs in flight allowed.
+     * @return Limit adapting to job latency.
+     */
+    public static ConcurrencyLimit adaptive( int initialLimit,
+                                             int minimumLimit,
+                                             int maximumLimit){
+
+        return new ConcurrencyLimit( Math.max( minimumLimit,
+                Math.min( initialLimit, maximumLimit)), minimumLimit,
+                maximumLimit, true);
+    }
+
+    /**
+     * Waits until a job may start.
+     */
+    public synchronized void acquire() throws InterruptedException {
+
+        while( this.inFlight>= this.getLimit()){
+
+            this.wait();
+        }
+        this.inFlight++;
+    }
+
+    /**
+     * @return False if the limit is reached.
+     */
+    public synchronized boolean tryAcquire(){
+
+        if( this.inFlight>= this.getLimit()){
+
+            return false;
+        }
+        this.inFlight++;
+
+        return true;
+    }
+
+    public synchronized void release( int permits){
+
+        this.inFlight-= permits;
+        this.notifyAll();
+    }
+
+    /**
+     * Adapts the limit to the latency of a finished job.
+     *
+     * @param latencyNanos Time the job took.
+     */
+    public synchronized void record( long latencyNanos){
+
+        if( !this.adaptive || latencyNanos<= 0){
+
+            return;
+        }
+        if( ++this.samples>= PROBE_SAMPLES){
+
+            this.samples= 0;
+            this.minimumNanos= latencyNanos;
+        }
+        this.minimumNanos= Math.min( this.minimumNanos, latencyNanos);
+        this.smoothedNanos= this.smoothedNanos== 0 ? latencyNanos
+                : this.smoothedNanos* (1- SMOOTHING)
+                        + latencyNanos* SMOOTHING;
+        double gradient= Math.max( 0.5, Math.min( 1.0,
+                TOLERANCE* this.minimumNanos/ this.smoothedNanos));
+        double next= this.limit* gradient;
+        if( this.inFlight>= this.limit/ 2){
+
+            // tf - Only grow while the limit is what holds jobs back.
+            next+= Math.sqrt( this.limit);
+        }
+        this.setLimit( this.limit* (1- SMOOTHING)+ next* SMOOTHING);
+    }
+
+    /**
+     * Shrinks the limit after a job fails.
+     */
+    public synchronized void drop(){
+
+        if( this.adaptive){
+
+            this.setLimit( this.limit* BACKOFF_RATIO);
+        }
+    }
+
+    public synchronized int getLimit() {
+
+        return (int) this.limit;
+    }
+
+    public boolean isAdaptive() {
+
+        return this.adaptive;
+    }
+
+    private void setLimit( double limit){
+
+        this.limit= Math.max( this.minimumLimit,
+                Math.min( this.maximumLimit, limit));
+        this.notifyAll();
+    }
+}
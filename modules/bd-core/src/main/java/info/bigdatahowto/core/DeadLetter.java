@@ -0,0 +1,176 @@
+package info.bigdatahowto.core;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Indexes a job parked in 'Error' state under its user context, holding
+ * enough of the job to queue it again without accessing the job itself.
+ *
+ * @author timfulmer
+ */
+public class DeadLetter extends AggregateRoot {
+
+    /**
+     * User context the parked job was running in.
+     */
+    private String userContext;
+
+    /**
+     * Message the parked job was processing.
+     */
+    private MessageKey messageKey;
+
+    /**
+     * Behavior the parked job was executing.
+     */
+    private BehaviorType behaviorType;
+
+    /**
+     * Authentication of user making original job request.
+     */
+    private String jobOwner;
+
+    /**
+     * Authentication of owner of context job was running in.
+     */
+    private String contextOwner;
+
+    /**
+     * Status of the job when it was parked.
+     */
+    private String status;
+
+    /**
+     * Entries of a parked batch job, null for other jobs.
+     */
+    private List<Job.Entry> entries;
+
+    /**
+     * Behavior a parked batch job applies to its entries, null for their own.
+     */
+    private Behavior behavior;
+
+    public DeadLetter() {
+
+        super();
+    }
+
+    /**
+     * Instantiates a 'DeadLetter' for a 'Job', sharing the job's UUID.
+     *
+     * @param job Job parked in 'Error' state.
+     */
+    public DeadLetter(Job job) {
+
+        this();
+
+        this.setUuid( job.getUuid());
+        this.setUserContext( job.getMessageKey().getUserContext());
+        this.setMessageKey( job.getMessageKey());
+        this.setBehaviorType( job.getBehaviorType());
+        this.setJobOwner( job.getJobOwner());
+        this.setContextOwner( job.getContextOwner());
+        this.setStatus( job.getStatus());
+        this.setEntries( job.getEntries());
+        this.setBehavior( job.getBehavior());
+    }
+
+    public DeadLetter(UUID uuid, String userContext) {
+
+        this();
+
+        this.setUuid( uuid);
+        this.setUserContext( userContext);
+    }
+
+    /**
+     * Resource key prefix for all dead letters in a user context.
+     *
+     * @param userContext User context to list.
+     * @return Resource key prefix.
+     */
+    public static String resourceKeyPrefix( String userContext){
+
+        return String.format( "deadletters/%s/", userContext);
+    }
+
+    public String getUserContext() {
+        return userContext;
+    }
+
+    public void setUserContext(String userContext) {
+        this.userContext = userContext;
+    }
+
+    public MessageKey getMessageKey() {
+        return messageKey;
+    }
+
+    public void setMessageKey(MessageKey messageKey) {
+        this.messageKey = messageKey;
+    }
+
+    public BehaviorType getBehaviorType() {
+        return behaviorType;
+    }
+
+    public void setBehaviorType(BehaviorType behaviorType) {
+        this.behaviorType = behaviorType;
+    }
+
+    public String getJobOwner() {
+        return jobOwner;
+    }
+
+    public void setJobOwner(String jobOwner) {
+        this.jobOwner = jobOwner;
+    }
+
+    public String getContextOwner() {
+        return contextOwner;
+    }
+
+    public void setContextOwner(String contextOwner) {
+        this.contextOwner = contextOwner;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public List<Job.Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Job.Entry> entries) {
+        this.entries = entries;
+    }
+
+    public Behavior getBehavior() {
+        return behavior;
+    }
+
+    public void setBehavior(Behavior behavior) {
+        this.behavior = behavior;
+    }
+
+    @Override
+    public String resourceKey() {
+        return resourceKeyPrefix( this.getUserContext())+
+                this.getUuid().toString();
+    }
+
+    @Override
+    public String toString() {
+        return "DeadLetter{" +
+                "messageKey=" + messageKey +
+                ", behaviorType=" + behaviorType +
+                ", status='" + status + '\'' +
+                "} " + super.toString();
+    }
+}
@@ -0,0 +1,190 @@
+package info.bigdatahowto.core;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roadie class tying together the dead letter index of jobs parked in 'Error'
+ * state and the queue used to replay them.
+ *
+ * @author timfulmer
+ */
+public class DeadLetterRoadie {
+
+    public static final int DEFAULT_BATCH_SIZE= 100;
+    public static final int DEFAULT_PARALLELISM= 8;
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private Resource resource;
+    private Queue queue;
+
+    public DeadLetterRoadie(Resource resource, Queue queue) {
+
+        super();
+
+        this.resource = resource;
+        this.queue = queue;
+    }
+
+    /**
+     * Lists jobs parked in 'Error' state for a user context.
+     *
+     * @param userContext User context to list.
+     * @return UUIDs of parked jobs.
+     */
+    public List<UUID> list( String userContext){
+
+        String prefix= DeadLetter.resourceKeyPrefix( userContext);
+        List<String> keys= this.resource.list( prefix);
+        List<UUID> uuids= new ArrayList<>( keys.size());
+        for( String key: keys){
+
+            uuids.add( UUID.fromString( key.substring( prefix.length())));
+        }
+
+        return uuids;
+    }
+
+    /**
+     * Convenience method, delegates to DeadLetterRoadie.replay(userContext,
+     * DEFAULT_BATCH_SIZE, DEFAULT_PARALLELISM).
+     *
+     * @param userContext User context to replay.
+     * @return Number of jobs queued again.
+     */
+    public int replay( String userContext){
+
+        return this.replay( userContext, DEFAULT_BATCH_SIZE,
+                DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Queues every job parked in 'Error' state for a user context again,
+     * keeping each job's UUID.  Dead letters are split into batches processed
+     * in parallel, each batch queued with 'Queue.pushAll' and removed from
+     * the index once queued.
+     *
+     * @param userContext User context to replay.
+     * @param batchSize Dead letters per batch.
+     * @param parallelism Batches processed at once.
+     * @return Number of jobs queued again.
+     */
+    public int replay( final String userContext, int batchSize,
+                       int parallelism){
+
+        final List<String> keys= this.resource.list(
+                DeadLetter.resourceKeyPrefix( userContext));
+        if( keys.isEmpty()){
+
+            return 0;
+        }
+        ExecutorService executorService= Executors.newFixedThreadPool(
+                Math.max( 1, Math.min( parallelism,
+                        (keys.size()+ batchSize- 1)/ batchSize)));
+        try{
+
+            List<Future<Integer>> futures= new ArrayList<>();
+            for( int i= 0; i< keys.size(); i+= batchSize){
+
+                final List<String> batch= keys.subList( i,
+                        Math.min( keys.size(), i+ batchSize));
+                futures.add( executorService.submit( new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return replayBatch( userContext, batch);
+                    }
+                }));
+            }
+
+            return this.sum( userContext, futures);
+        }finally{
+
+            executorService.shutdown();
+        }
+    }
+
+    private int sum( String userContext, List<Future<Integer>> futures){
+
+        int replayed= 0;
+        Throwable failure= null;
+        for( Future<Integer> future: futures){
+
+            try {
+
+                replayed+= future.get();
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+                failure= e;
+            } catch (ExecutionException e) {
+
+                failure= e.getCause();
+            }
+        }
+        if( failure!= null){
+
+            String msg= String.format( "Could not replay all dead letters " +
+                    "for user context '%s', replayed '%d'.", userContext,
+                    replayed);
+            this.logger.log( Level.SEVERE, msg, failure);
+
+            throw new RuntimeException( msg, failure);
+        }
+
+        return replayed;
+    }
+
+    private int replayBatch( String userContext, List<String> keys){
+
+        // tf - pushAll takes one authentication, group by job owner.
+        Map<String,List<DeadLetter>> owners= new HashMap<>();
+        for( String key: keys){
+
+            DeadLetter deadLetter= this.resource.get( new DeadLetter(
+                    UUID.fromString( key.substring( key.lastIndexOf( "/")+ 1)),
+                    userContext));
+            if( deadLetter== null){
+
+                continue;
+            }
+            if( !owners.containsKey( deadLetter.getJobOwner())){
+
+                owners.put( deadLetter.getJobOwner(),
+                        new ArrayList<DeadLetter>());
+            }
+            owners.get( deadLetter.getJobOwner()).add( deadLetter);
+        }
+        int replayed= 0;
+        for( Map.Entry<String,List<DeadLetter>> entry: owners.entrySet()){
+
+            List<Queue.PushTuple> pushTuples= new ArrayList<>(
+                    entry.getValue().size());
+            for( DeadLetter deadLetter: entry.getValue()){
+
+                Message message= new Message( deadLetter.getMessageKey());
+                message.setContextOwner( deadLetter.getContextOwner());
+                // tf - Batch jobs replay with their entries, so pending
+                //  entries run again.
+                pushTuples.add( deadLetter.getBehavior()== null ?
+                        new Queue.PushTuple( deadLetter.getUuid(), message,
+                                deadLetter.getBehaviorType(),
+                                deadLetter.getEntries()) :
+                        new Queue.PushTuple( deadLetter.getUuid(), message,
+                                deadLetter.getBehavior(),
+                                deadLetter.getEntries()));
+            }
+            this.queue.pushAll( pushTuples, entry.getKey());
+            for( DeadLetter deadLetter: entry.getValue()){
+
+                this.resource.remove( deadLetter.resourceKey());
+            }
+            replayed+= pushTuples.size();
+        }
+
+        return replayed;
+    }
+}
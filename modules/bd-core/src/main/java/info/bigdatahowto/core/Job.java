@@ -1,5 +1,11 @@
 package info.bigdatahowto.core;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -50,6 +56,24 @@ public class Job extends AggregateRoot {
      */
     private String queueIdentifier;
 
+    /**
+     * Paths of new messages this job has already queued or processed inline,
+     * kept across tries so a retry does not fan them out again.
+     */
+    private Set<String> fanOut= new HashSet<>();
+
+    /**
+     * Messages a batch job applies its behavior to, in order; null for a job
+     * processing only its own message.
+     */
+    private List<Entry> entries;
+
+    /**
+     * Behavior a batch job applies to its entries in place of their own, as
+     * a map does; null to run each entry's own behavior.
+     */
+    private Behavior behavior;
+
     public Job() {
 
         super();
@@ -156,6 +180,71 @@ public class Job extends AggregateRoot {
         this.queueIdentifier = queueIdentifier;
     }
 
+    public synchronized Set<String> getFanOut() {
+        return fanOut;
+    }
+
+    public synchronized void setFanOut(Set<String> fanOut) {
+        this.fanOut = fanOut;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    public void setEntries(List<Entry> entries) {
+        this.entries = entries;
+    }
+
+    public Behavior getBehavior() {
+        return behavior;
+    }
+
+    public void setBehavior(Behavior behavior) {
+        this.behavior = behavior;
+    }
+
+    /**
+     * @return True if this job applies its behavior to a list of entries.
+     */
+    @JsonIgnore
+    public boolean isBatch(){
+
+        return this.entries!= null;
+    }
+
+    /**
+     * @param path Position of a new message below this job.
+     * @return True if a previous try already queued or processed it.
+     */
+    public synchronized boolean fannedOut( String path){
+
+        return this.fanOut.contains( path);
+    }
+
+    /**
+     * Records a new message as queued or processed inline.
+     *
+     * @param path Position of a new message below this job.
+     */
+    public synchronized void recordFanOut( String path){
+
+        this.fanOut.add( path);
+    }
+
+    /**
+     * Derives the UUID of the job for a new message from this job's UUID and
+     * the new message's position, so every try queues it under one UUID.
+     *
+     * @param path Position of a new message below this job.
+     * @return Child job UUID.
+     */
+    public UUID childUuid( String path){
+
+        return UUID.nameUUIDFromBytes( (this.getUuid().toString()+ ":"+
+                path).getBytes( StandardCharsets.UTF_8));
+    }
+
     /**
      * Moves job to 'Queued' state.  Only allowed from 'Created' state.
      */
@@ -224,6 +313,81 @@ public class Job extends AggregateRoot {
                 "messageKey=" + messageKey +
                 ", tries=" + tries +
                 ", state=" + state +
+                (entries== null ? "" : ", entries=" + entries.size()) +
                 "} " + super.toString();
     }
+
+    /**
+     * One message in a batch job, with the outcome of applying the batch
+     * job's behavior to it.
+     */
+    public static class Entry{
+
+        private MessageKey messageKey;
+
+        /**
+         * 'Queued' until the entry is processed, then 'Complete'.
+         */
+        private JobState state;
+        private String status;
+
+        /**
+         * Job the entry was handed to, if the batch job could not process it.
+         */
+        private UUID jobUuid;
+
+        public Entry() {
+
+            super();
+        }
+
+        public Entry(MessageKey messageKey) {
+
+            this();
+
+            this.messageKey = messageKey;
+            this.state = JobState.Queued;
+        }
+
+        /**
+         * @return True if the entry is neither processed nor handed off.
+         */
+        @JsonIgnore
+        public boolean isPending(){
+
+            return this.state== JobState.Queued && this.jobUuid== null;
+        }
+
+        public MessageKey getMessageKey() {
+            return messageKey;
+        }
+
+        public void setMessageKey(MessageKey messageKey) {
+            this.messageKey = messageKey;
+        }
+
+        public JobState getState() {
+            return state;
+        }
+
+        public void setState(JobState state) {
+            this.state = state;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public void setStatus(String status) {
+            this.status = status;
+        }
+
+        public UUID getJobUuid() {
+            return jobUuid;
+        }
+
+        public void setJobUuid(UUID jobUuid) {
+            this.jobUuid = jobUuid;
+        }
+    }
 }
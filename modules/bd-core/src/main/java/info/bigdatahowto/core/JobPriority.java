@@ -0,0 +1,10 @@
+package info.bigdatahowto.core;
+
+/**
+ * Scheduling classes for queued jobs, from most to least urgent.
+ *
+ * @author timfulmer
+ */
+public enum JobPriority {
+    Interactive, Normal, Retry
+}
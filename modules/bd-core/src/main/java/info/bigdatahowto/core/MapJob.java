@@ -0,0 +1,198 @@
+package info.bigdatahowto.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Applies a behavior to every message in a user context.  The user keys are
+ * split into ranges processed in parallel, either in place or as queued batch
+ * jobs; each range records the last key it processed, or the job it was
+ * queued as, so an interrupted map resumes where it stopped.
+ *
+ * @author timfulmer
+ */
+public class MapJob extends AggregateRoot {
+
+    /**
+     * Resource holding the messages.
+     */
+    private String resourceName;
+
+    /**
+     * User context whose messages are mapped.
+     */
+    private String userContext;
+
+    /**
+     * Behavior applied to each message.
+     */
+    private Behavior behavior;
+
+    /**
+     * Authentication of user making the map request.
+     */
+    private String jobOwner;
+
+    /**
+     * Key ranges, in user key order, empty until the map first runs.
+     */
+    private List<Range> ranges= new ArrayList<>();
+
+    public MapJob() {
+
+        super();
+    }
+
+    public MapJob(String resourceName, String userContext, Behavior behavior,
+                  String jobOwner) {
+
+        this();
+
+        this.setResourceName( resourceName);
+        this.setUserContext( userContext);
+        this.setBehavior( behavior);
+        this.setJobOwner( jobOwner);
+    }
+
+    public String getResourceName() {
+        return resourceName;
+    }
+
+    public void setResourceName(String resourceName) {
+        this.resourceName = resourceName;
+    }
+
+    public String getUserContext() {
+        return userContext;
+    }
+
+    public void setUserContext(String userContext) {
+        this.userContext = userContext;
+    }
+
+    public Behavior getBehavior() {
+        return behavior;
+    }
+
+    public void setBehavior(Behavior behavior) {
+        this.behavior = behavior;
+    }
+
+    public String getJobOwner() {
+        return jobOwner;
+    }
+
+    public void setJobOwner(String jobOwner) {
+        this.jobOwner = jobOwner;
+    }
+
+    public List<Range> getRanges() {
+        return ranges;
+    }
+
+    public void setRanges(List<Range> ranges) {
+        this.ranges = ranges;
+    }
+
+    @Override
+    public String resourceKey() {
+        return String.format( "maps/%s", this.getUuid().toString());
+    }
+
+    @Override
+    public String toString() {
+        return "MapJob{" +
+                "resourceName='" + resourceName + '\'' +
+                ", userContext='" + userContext + '\'' +
+                ", jobOwner='" + jobOwner + '\'' +
+                ", ranges=" + ranges.size() +
+                "} " + super.toString();
+    }
+
+    /**
+     * User keys from start, inclusive, to end, exclusive.  A null end is
+     * unbounded.
+     */
+    public static class Range{
+
+        private String start;
+        private String end;
+
+        /**
+         * Last user key processed, null if none.
+         */
+        private String checkpoint;
+        private boolean done;
+
+        /**
+         * Batch job processing this range, null if it is processed in place.
+         */
+        private UUID jobUuid;
+
+        public Range() {
+
+            super();
+        }
+
+        public Range(String start, String end) {
+
+            this();
+
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @param userKey User key to check.
+         * @return True if the key is in this range and past the checkpoint.
+         */
+        public boolean remaining( String userKey){
+
+            return userKey.compareTo( this.start)>= 0
+                    && (this.end== null || userKey.compareTo( this.end)< 0)
+                    && (this.checkpoint== null
+                            || userKey.compareTo( this.checkpoint)> 0);
+        }
+
+        public String getStart() {
+            return start;
+        }
+
+        public void setStart(String start) {
+            this.start = start;
+        }
+
+        public String getEnd() {
+            return end;
+        }
+
+        public void setEnd(String end) {
+            this.end = end;
+        }
+
+        public String getCheckpoint() {
+            return checkpoint;
+        }
+
+        public void setCheckpoint(String checkpoint) {
+            this.checkpoint = checkpoint;
+        }
+
+        public boolean isDone() {
+            return done;
+        }
+
+        public void setDone(boolean done) {
+            this.done = done;
+        }
+
+        public UUID getJobUuid() {
+            return jobUuid;
+        }
+
+        public void setJobUuid(UUID jobUuid) {
+            this.jobUuid = jobUuid;
+        }
+    }
+}
@@ -0,0 +1,340 @@
+package info.bigdatahowto.core;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Roadie class tying together map jobs, the messages they enumerate and the
+ * processor applying their behavior.
+ *
+ * @author timfulmer
+ */
+public class MapRoadie {
+
+    public static final int DEFAULT_RANGE_SIZE= 1000;
+    public static final int DEFAULT_PARALLELISM= 16;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL= 100;
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private Resource resource;
+    private ResourceRoadie resourceRoadie;
+    private Processor processor;
+    private Queue queue;
+
+    /**
+     * Messages per key range, fixed when a map first runs.
+     */
+    private int rangeSize= DEFAULT_RANGE_SIZE;
+
+    /**
+     * Ranges processed at once.
+     */
+    private int parallelism= DEFAULT_PARALLELISM;
+
+    /**
+     * Messages processed between checkpoints of a range.
+     */
+    private int checkpointInterval= DEFAULT_CHECKPOINT_INTERVAL;
+
+    public MapRoadie(Resource resource, ResourceRoadie resourceRoadie,
+                     Processor processor) {
+
+        this( resource, resourceRoadie, processor, null);
+    }
+
+    /**
+     * @param queue Queue map ranges are submitted to as batch jobs.
+     */
+    public MapRoadie(Resource resource, ResourceRoadie resourceRoadie,
+                     Processor processor, Queue queue) {
+
+        super();
+
+        this.resource = resource;
+        this.resourceRoadie = resourceRoadie;
+        this.processor = processor;
+        this.queue = queue;
+    }
+
+    /**
+     * Stores a map job applying behavior to every message under a key
+     * prefix.
+     *
+     * @param key Key prefix, '//resource-name/user-context/'.
+     * @param behavior Behavior to apply.
+     * @param authentication Authenticates access to messages.
+     * @return Map job, not yet run.
+     */
+    public MapJob create( String key, Behavior behavior,
+                          String authentication){
+
+        MessageKey messageKey= new MessageKey( key);
+        MapJob mapJob= new MapJob( messageKey.getResourceName(),
+                messageKey.getUserContext(), behavior, authentication);
+        this.resource.put( mapJob);
+
+        return mapJob;
+    }
+
+    /**
+     * Runs a stored map job again, skipping ranges and keys already
+     * processed.
+     *
+     * @param uuid Map job to resume.
+     * @return Number of messages processed.
+     */
+    public int resume( UUID uuid){
+
+        MapJob mapJob= new MapJob();
+        mapJob.setUuid( uuid);
+        mapJob= this.resource.get( mapJob);
+        if( mapJob== null){
+
+            String msg= String.format( "No map job '%s'.", uuid);
+            this.logger.log( Level.SEVERE, msg);
+
+            throw new IllegalArgumentException( msg);
+        }
+
+        return this.run( mapJob);
+    }
+
+    /**
+     * Queues each range of a map job not yet done as a batch job applying the
+     * map's behavior to the range's remaining messages, so processor workers
+     * on any node share the ranges.  Returns once the jobs are queued; each
+     * batch job records its progress in its entries.
+     *
+     * @param mapJob Map job to submit.
+     * @return UUIDs of the batch jobs queued.
+     */
+    public List<UUID> submit( MapJob mapJob){
+
+        List<MessageKey> messageKeys= this.listMessages( mapJob);
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        List<MapJob.Range> submitted= new ArrayList<>();
+        for( int i= 0; i< mapJob.getRanges().size(); i++){
+
+            MapJob.Range range= mapJob.getRanges().get( i);
+            if( range.isDone() || range.getJobUuid()!= null){
+
+                continue;
+            }
+            List<Job.Entry> entries= new ArrayList<>();
+            for( MessageKey messageKey: messageKeys){
+
+                if( range.remaining( messageKey.getUserKey())){
+
+                    entries.add( new Job.Entry( messageKey));
+                }
+            }
+            // tf - Derived UUIDs keep a range from being queued twice.
+            UUID jobUuid= UUID.nameUUIDFromBytes( (mapJob.getUuid()+
+                    ":range-"+ i).getBytes( StandardCharsets.UTF_8));
+            Message message= new Message( new MessageKey( String.format(
+                    "//%s/%s/map-%s/%d", mapJob.getResourceName(),
+                    mapJob.getUserContext(), mapJob.getUuid(), i)));
+            pushTuples.add( new Queue.PushTuple( jobUuid, message,
+                    mapJob.getBehavior(), entries));
+            submitted.add( range);
+        }
+        if( pushTuples.isEmpty()){
+
+            return Collections.emptyList();
+        }
+        List<UUID> uuids= this.queue.pushAll( pushTuples,
+                mapJob.getJobOwner());
+        synchronized( mapJob){
+
+            for( int i= 0; i< submitted.size(); i++){
+
+                submitted.get( i).setJobUuid( uuids.get( i));
+            }
+            this.resource.put( mapJob);
+        }
+
+        return uuids;
+    }
+
+    /**
+     * Applies a map job's behavior to every message in its user context.
+     * The first run splits the user keys into ranges; ranges are processed
+     * in parallel, splitting the list of ranges in halves until each task
+     * holds one.  Messages whose key is busy or whose behavior fails are
+     * queued as jobs instead.  Ranges submitted as batch jobs are skipped.
+     *
+     * @param mapJob Map job to run.
+     * @return Number of messages processed.
+     */
+    public int run( MapJob mapJob){
+
+        List<MessageKey> messageKeys= this.listMessages( mapJob);
+        List<String> userKeys= new ArrayList<>( messageKeys.size());
+        for( MessageKey messageKey: messageKeys){
+
+            userKeys.add( messageKey.getUserKey());
+        }
+        ForkJoinPool forkJoinPool= new ForkJoinPool( this.parallelism);
+        try{
+
+            return forkJoinPool.invoke( new MapTask( mapJob, messageKeys,
+                    userKeys, 0, mapJob.getRanges().size()));
+        }catch( RuntimeException e){
+
+            String msg= String.format( "Could not finish map job '%s', " +
+                    "resume it to continue.", mapJob.getUuid());
+            this.logger.log( Level.SEVERE, msg, e);
+
+            throw new RuntimeException( msg, e);
+        }finally {
+
+            forkJoinPool.shutdown();
+        }
+    }
+
+    /**
+     * Lists the messages a map job covers, splitting their user keys into
+     * ranges the first time.
+     */
+    private List<MessageKey> listMessages( MapJob mapJob){
+
+        List<MessageKey> messageKeys= this.resourceRoadie.listMessages(
+                mapJob.getResourceName(), mapJob.getUserContext());
+        if( mapJob.getRanges().isEmpty()){
+
+            List<String> userKeys= new ArrayList<>( messageKeys.size());
+            for( MessageKey messageKey: messageKeys){
+
+                userKeys.add( messageKey.getUserKey());
+            }
+            mapJob.setRanges( this.split( userKeys));
+            this.resource.put( mapJob);
+        }
+
+        return messageKeys;
+    }
+
+    private List<MapJob.Range> split( List<String> userKeys){
+
+        List<MapJob.Range> ranges= new ArrayList<>();
+        String start= "";
+        for( int i= this.rangeSize; i< userKeys.size(); i+= this.rangeSize){
+
+            ranges.add( new MapJob.Range( start, userKeys.get( i)));
+            start= userKeys.get( i);
+        }
+        ranges.add( new MapJob.Range( start, null));
+
+        return ranges;
+    }
+
+    private int runRange( MapJob mapJob, MapJob.Range range,
+                          List<MessageKey> messageKeys, List<String> userKeys){
+
+        if( range.isDone() || range.getJobUuid()!= null){
+
+            return 0;
+        }
+        int index= this.indexOf( userKeys, range.getStart());
+        int processed= 0;
+        String checkpoint= range.getCheckpoint();
+        for( ; index< userKeys.size(); index++){
+
+            String userKey= userKeys.get( index);
+            if( range.getEnd()!= null
+                    && userKey.compareTo( range.getEnd())>= 0){
+
+                break;
+            }
+            if( !range.remaining( userKey)){
+
+                continue;
+            }
+            this.processor.processMessage( messageKeys.get( index),
+                    mapJob.getBehavior(), mapJob.getJobOwner());
+            processed++;
+            checkpoint= userKey;
+            if( processed% this.checkpointInterval== 0){
+
+                this.checkpoint( mapJob, range, checkpoint, false);
+            }
+        }
+        this.checkpoint( mapJob, range, checkpoint, true);
+
+        return processed;
+    }
+
+    private int indexOf( List<String> userKeys, String userKey){
+
+        int index= Collections.binarySearch( userKeys, userKey);
+
+        return index< 0 ? -index- 1 : index;
+    }
+
+    private void checkpoint( MapJob mapJob, MapJob.Range range,
+                             String checkpoint, boolean done){
+
+        // tf - Ranges share one map job record.
+        synchronized( mapJob){
+
+            range.setCheckpoint( checkpoint);
+            range.setDone( done);
+            this.resource.put( mapJob);
+        }
+    }
+
+    public void setRangeSize(int rangeSize) {
+        this.rangeSize = rangeSize;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setCheckpointInterval(int checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    /**
+     * Processes ranges from first, inclusive, to last, exclusive.
+     */
+    private class MapTask extends RecursiveTask<Integer>{
+        private static final long serialVersionUID= 1L;
+        private final MapJob mapJob;
+        private final List<MessageKey> messageKeys;
+        private final List<String> userKeys;
+        private final int first, last;
+        private MapTask(MapJob mapJob, List<MessageKey> messageKeys,
+                        List<String> userKeys, int first, int last) {
+            this.mapJob = mapJob;
+            this.messageKeys = messageKeys;
+            this.userKeys = userKeys;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected Integer compute() {
+            if( this.last- this.first== 1){
+                return runRange( this.mapJob, this.mapJob.getRanges().get(
+                        this.first), this.messageKeys, this.userKeys);
+            }
+            int middle= (this.first+ this.last)/ 2;
+            MapTask left= new MapTask( this.mapJob, this.messageKeys,
+                    this.userKeys, this.first, middle);
+            left.fork();
+            int right= new MapTask( this.mapJob, this.messageKeys,
+                    this.userKeys, middle, this.last).compute();
+            return left.join()+ right;
+        }
+    }
+}
@@ -2,7 +2,9 @@ package info.bigdatahowto.core;
 
 import org.apache.commons.collections.MapUtils;
 
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,6 +24,51 @@ public abstract class Processor {
     private ResourceRoadie resourceRoadie;
     private Integer maximumTries= 5;
 
+    /**
+     * Delay before the first retry of a failed job, doubled for each further
+     * try.
+     */
+    private long retryBackoffMillis= 1000;
+    private long maximumRetryBackoffMillis= 15* 60* 1000;
+
+    /**
+     * Interval between renewals of a running job's leases, well inside the
+     * thirty second leases of the AWS defaults.  Zero disables renewal.
+     */
+    private long heartbeatMillis= 10000;
+    private ScheduledExecutorService heartbeatExecutor;
+
+    /**
+     * Heartbeat renewing each held job, by job UUID.
+     */
+    private final ConcurrentMap<UUID,Heartbeat> heartbeats=
+            new ConcurrentHashMap<>();
+
+    /**
+     * New messages stored at once for one job.  One stores them in order on
+     * the job's thread.  Helper threads are shared by every level of inline
+     * processing, so nested fan-outs never hold more than this many.
+     */
+    private int childConcurrency= 8;
+    private ExecutorService childExecutor;
+    private Semaphore childPermits;
+
+    /**
+     * New messages nested this deep below a job, and this many in total, are
+     * processed inline by the job's thread instead of queued.  Zero depth,
+     * the default, queues every new message.
+     */
+    private int inlineDepth= 0;
+    private int inlineBudget= 64;
+
+    /**
+     * Fan-outs queueing at least this many jobs with one behavior into one
+     * user context queue them as batch jobs of up to batch job size entries
+     * instead.  Zero queues a job per new message.
+     */
+    private int batchThreshold= 16;
+    private int batchJobSize= 64;
+
     protected Processor(Queue queue, ResourceRoadie resourceRoadie) {
 
         super();
@@ -37,22 +84,235 @@ public abstract class Processor {
      *
      * PLEASE NOTE: Jobs are retried a total of five times.  Any job
      * failing more than five times will be parked in Error state.
+     *
+     * @return False if no job was popped.
      */
-    public void pullJob(){
+    public boolean pullJob(){
 
         // tf - Pop a new job off the queue.
         Job job= this.queue.pop();
         if( job== null){
 
+            return false;
+        }
+        this.runHeldJob( job);
+
+        return true;
+    }
+
+    /**
+     * Pops a job off the queue, waiting up to timeout for one to arrive, and
+     * processes it as 'Processor.pullJob()' does.
+     *
+     * @param timeout Maximum time to wait for a job.
+     * @param unit Unit of timeout.
+     * @return False if no job arrived before the timeout.
+     */
+    public boolean pullJob( long timeout, TimeUnit unit){
+
+        Job job= this.queue.pop( timeout, unit);
+        if( job== null){
+
+            return false;
+        }
+        this.runHeldJob( job);
+
+        return true;
+    }
+
+    /**
+     * Pops up to max jobs off the queue in one operation and processes them.
+     * Jobs targeting the same message key are coalesced: the message is
+     * accessed once, each job's behavior is applied in order against the
+     * in-memory message, the result is written once and the jobs are
+     * completed together.  Delete jobs are never coalesced.
+     *
+     * A job failing more than the maximum number of tries does not stop the
+     * rest of the batch; its exception is rethrown once the batch is
+     * processed.
+     *
+     * @param max Maximum number of jobs to process.
+     * @return Number of jobs popped.
+     */
+    public int pullJobs( int max){
+
+        List<Job> jobs= this.queue.popBatch( max);
+        RuntimeException fatal= null;
+        Heartbeat heartbeat= this.startHeartbeat( jobs);
+        try{
+
+            for( List<Job> sameKeyJobs: this.groupByKey( jobs)){
+
+                try{
+
+                    this.runJobs( sameKeyJobs);
+                }catch( RuntimeException e){
+
+                    if( fatal== null){
+
+                        fatal= e;
+                    }
+                }
+            }
+        }finally {
+
+            this.stopHeartbeat( heartbeat);
+        }
+        if( fatal!= null){
+
+            throw fatal;
+        }
+
+        return jobs.size();
+    }
+
+    /**
+     * Pops up to max jobs off the queue in one operation, grouped by message
+     * key in queue order.  Each group is processed with
+     * 'Processor.processJobs(List)', so groups can run in parallel.
+     *
+     * @param max Maximum number of jobs to pop.
+     * @return Jobs popped, one list per message key.
+     */
+    public List<List<Job>> popJobs( int max){
+
+        return this.groupByKey( this.queue.popBatch( max));
+    }
+
+    /**
+     * Processes jobs popped by 'Processor.popJobs(int)' sharing one message
+     * key, as 'Processor.pullJobs(int)' does.
+     *
+     * @param jobs Jobs targeting the same message key, in queue order.
+     */
+    public void processJobs( List<Job> jobs){
+
+        Heartbeat heartbeat= this.startHeartbeat( jobs);
+        try{
+
+            this.runJobs( jobs);
+        }finally {
+
+            this.stopHeartbeat( heartbeat);
+        }
+    }
+
+    private List<List<Job>> groupByKey(List<Job> jobs) {
+
+        Map<String,List<Job>> keyJobs= new LinkedHashMap<>();
+        for( Job job: jobs){
+
+            String key= job.getMessageKey().getKey();
+            if( !keyJobs.containsKey( key)){
+
+                keyJobs.put( key, new ArrayList<Job>());
+            }
+            keyJobs.get( key).add( job);
+        }
+
+        return new ArrayList<>( keyJobs.values());
+    }
+
+    private void runHeldJob(Job job) {
+
+        Heartbeat heartbeat= this.startHeartbeat(
+                Collections.singletonList( job));
+        try{
+
+            this.runJob( job);
+        }finally {
+
+            this.stopHeartbeat( heartbeat);
+        }
+    }
+
+    /**
+     * Renews the leases of held jobs every heartbeat interval until each
+     * job is completed or failed, so long-running behaviors are not
+     * redelivered and run a second time alongside the first.
+     *
+     * @param jobs Jobs checked out of the queue.
+     * @return Heartbeat to stop once the jobs are done, null if renewal is
+     * disabled.
+     */
+    Heartbeat startHeartbeat(List<Job> jobs) {
+
+        if( this.heartbeatMillis<= 0 || jobs.isEmpty()){
+
+            return null;
+        }
+        Heartbeat heartbeat= new Heartbeat( jobs);
+        for( Job job: jobs){
+
+            this.heartbeats.put( job.getUuid(), heartbeat);
+        }
+        heartbeat.start( this.heartbeatExecutor().scheduleWithFixedDelay(
+                heartbeat, this.heartbeatMillis, this.heartbeatMillis,
+                TimeUnit.MILLISECONDS));
+
+        return heartbeat;
+    }
+
+    /**
+     * Stops renewing jobs not yet completed or failed.
+     */
+    void stopHeartbeat(Heartbeat heartbeat) {
+
+        if( heartbeat!= null){
+
+            for( Job job: heartbeat.stop()){
+
+                this.heartbeats.remove( job.getUuid(), heartbeat);
+            }
+        }
+    }
+
+    /**
+     * Stops renewing a job before it is completed or failed, so a late
+     * renewal cannot lock its key again once the queue releases it.
+     */
+    private void release(Job job) {
+
+        Heartbeat heartbeat= this.heartbeats.remove( job.getUuid());
+        if( heartbeat!= null){
+
+            heartbeat.release( job);
+        }
+    }
+
+    private synchronized ScheduledExecutorService heartbeatExecutor(){
+
+        if( this.heartbeatExecutor== null){
+
+            this.heartbeatExecutor= Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread= new Thread( runnable,
+                                    "processor-heartbeat");
+                            thread.setDaemon( true);
+                            return thread;
+                        }
+                    });
+        }
+
+        return this.heartbeatExecutor;
+    }
+
+    private void runJob(Job job) {
+
+        if( job.isBatch()){
+
+            this.runBatch( job);
+
             return;
         }
+        Message message= this.accessMessage( job);
+        if( message== null){
 
-        // tf - Access current state of message.
-        MessageKey messageKey= job.getMessageKey();
-        Message message= this.resourceRoadie.accessMessage(
-                new Message( messageKey), job.getJobOwner(),
-                job.getBehaviorType());
-        if( message== null || !message.hasBehavior()){
+            // tf - Nothing to run, complete so the job gives up its key.
+            this.release( job);
+            this.queue.complete( job);
 
             return;
         }
@@ -60,43 +320,342 @@ public abstract class Processor {
 
             ProcessingResult processingResult= this.process( message,
                     job.getBehaviorType());
-            this.handleProcessingResult(job, message, processingResult);
+            this.completeJob( job, message, processingResult);
+        }catch( Throwable t){
+
+            this.handleError( job, message, t);
+        }
+    }
+
+    /**
+     * Applies a batch job's behavior to each pending entry in turn, holding
+     * the entry's key while it runs.  Entries whose key is being processed,
+     * or whose behavior fails, are handed to jobs of their own so they park
+     * and retry as any job.  The outcome of each entry is recorded in the
+     * batch job, so a retry only runs entries still pending.  Failures once
+     * an entry's message is written fail the batch job instead.  A map job
+     * applies its own behavior in place of each entry's.
+     */
+    private void runBatch(Job job) {
+
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        List<Job.Entry> handedOff= new ArrayList<>();
+        try{
+
+            for( int i= 0; i< job.getEntries().size(); i++){
+
+                Job.Entry entry= job.getEntries().get( i);
+                if( !entry.isPending()){
+
+                    continue;
+                }
+                if( job.getBehavior()!= null){
+
+                    this.mapEntry( job, entry, job.childUuid( "entry-"+ i));
+                    continue;
+                }
+                String status= this.runEntry( job, entry, "entry-"+ i+ "/");
+                if( status!= null){
+
+                    Message message= new Message( entry.getMessageKey());
+                    message.setContextOwner( job.getContextOwner());
+                    pushTuples.add( new Queue.PushTuple( job.childUuid(
+                            "entry-"+ i), message, job.getBehaviorType()));
+                    entry.setStatus( status);
+                    handedOff.add( entry);
+                }
+            }
+            if( !isEmpty( pushTuples)){
+
+                this.queue.pushAll( pushTuples, job.getJobOwner());
+                for( int i= 0; i< handedOff.size(); i++){
+
+                    handedOff.get( i).setJobUuid( pushTuples.get( i).jobUuid);
+                }
+            }
+            this.release( job);
             this.queue.complete( job);
         }catch( Throwable t){
 
             if( job.getTries()< this.maximumTries){
 
-                String msg= String.format(
-                        "Caught exception processing message " +
-                        "'%s' for job '%s'.", message.toString(),
+                String msg= String.format( "Could not finish batch job '%s'.",
                         job.toString());
                 this.logger.log( Level.WARNING, msg, t);
-
-                if( message.getBehavior().containsKey( BehaviorType.Error)){
-
-                    ProcessingResult processingResult= this.error( message,
-                            job.getTries());
-                    this.handleProcessingResult(job, message, processingResult);
-                }
-                this.queue.error( job, msg, false);
+                this.release( job);
+                this.queue.error( job, msg, false, this.retryBackoff( job));
             }else{
 
                 String msg= String.format(
                         "Attempted processing '%s' tries; job state '%s'.  " +
                                 "Giving up and removing job from queue.",
                         job.getTries(), job.toString());
-
+                this.release( job);
                 this.queue.error( job, msg, true);
-                this.logger.log(Level.SEVERE,msg,t);
+                this.logger.log( Level.SEVERE, msg, t);
 
                 throw new RuntimeException( msg, t);
             }
         }
     }
 
+    /**
+     * Applies a batch job's behavior to one entry.  Failures writing the
+     * results are thrown, since handing the entry to its own job would run
+     * the behavior a second time.
+     *
+     * @return Null if the entry is complete, otherwise why it should be
+     * handed to a job of its own.
+     */
+    private String runEntry(Job job, Job.Entry entry, String path) {
+
+        String key= entry.getMessageKey().getKey();
+        if( !this.queue.lockKey( key)){
+
+            return "Message is being processed, handed to its own job.";
+        }
+        try{
+
+            Message message;
+            ProcessingResult processingResult= null;
+            try{
+
+                message= this.resourceRoadie.accessMessage(
+                        new Message( entry.getMessageKey()), job.getJobOwner(),
+                        job.getBehaviorType());
+                if( message!= null && message.hasBehavior()){
+
+                    processingResult= this.process( message,
+                            job.getBehaviorType());
+                }
+            }catch( Throwable t){
+
+                String msg= String.format( "Caught exception processing " +
+                        "message '%s' in batch job '%s', handed to its own " +
+                        "job.", key, job.getUuid());
+                this.logger.log( Level.WARNING, msg, t);
+
+                return msg;
+            }
+            this.handleProcessingResult( job, message, processingResult, path);
+            entry.setState( JobState.Complete);
+            entry.setStatus( "Processed in batch job.");
+
+            return null;
+        }finally {
+
+            this.queue.releaseKey( key);
+        }
+    }
+
+    /**
+     * Applies a map job's behavior to one entry's stored message, as
+     * 'Processor.processMessage' does.  An entry whose message is queued
+     * instead records the job processing it.
+     */
+    private void mapEntry(Job job, Job.Entry entry, UUID childUuid) {
+
+        if( this.processMessage( entry.getMessageKey(), job.getBehavior(),
+                job.getJobOwner(), childUuid)){
+
+            entry.setState( JobState.Complete);
+            entry.setStatus( "Processed in map job.");
+        }else{
+
+            entry.setJobUuid( childUuid);
+            entry.setStatus( "Queued as its own job.");
+        }
+    }
+
+    Job popJob( long timeout, TimeUnit unit){
+
+        return this.queue.pop( timeout, unit);
+    }
+
+    /**
+     * Accesses the current state of a job's message.
+     *
+     * @return Message, null if there is no behavior to process.
+     */
+    Message accessMessage(Job job) {
+
+        Message message= this.resourceRoadie.accessMessage(
+                new Message( job.getMessageKey()), job.getJobOwner(),
+                job.getBehaviorType());
+        if( message== null || !message.hasBehavior()){
+
+            return null;
+        }
+
+        return message;
+    }
+
+    /**
+     * Writes the results of processing a job and completes it.
+     */
+    void completeJob(Job job, Message message,
+                     ProcessingResult processingResult) {
+
+        this.handleProcessingResult(job, message, processingResult, "");
+        this.release( job);
+        this.queue.complete( job);
+    }
+
+    /**
+     * Runs jobs sharing one message key, coalescing consecutive non-delete
+     * jobs into a single read-modify-write of the message.  Every job is
+     * completed or failed; the queue holds the key until the last one is.
+     *
+     * @param jobs Jobs targeting the same message key, in queue order.
+     */
+    private void runJobs(List<Job> jobs) {
+
+        int index= 0;
+        while( index< jobs.size()){
+
+            Job job= jobs.get( index);
+            if( jobs.size()== 1 || job.isBatch()
+                    || job.getBehaviorType()== BehaviorType.Delete){
+
+                this.runJob( job);
+                index++;
+                continue;
+            }
+            Message message= this.accessMessage( job);
+            if( message== null){
+
+                // tf - Nothing to run for any job left on this key.
+                for( ; index< jobs.size(); index++){
+
+                    this.release( jobs.get( index));
+                    this.queue.complete( jobs.get( index));
+                }
+
+                return;
+            }
+            int next= this.runCoalesced( jobs, index, message);
+            if( next== index){
+
+                this.runJob( job);
+                next++;
+            }
+            index= next;
+        }
+    }
+
+    /**
+     * Applies consecutive jobs, starting at index, to one in-memory message.
+     * Stops at the first delete job, the first job not authorized against the
+     * message, or after the first failing job.  The job at index is assumed
+     * authorized when the message was accessed.
+     *
+     * @param jobs Jobs targeting the same message key.
+     * @param index Position of the first job to run.
+     * @param message Current state of the message.
+     * @return Position of the first job not run.
+     */
+    @SuppressWarnings("unchecked")
+    private int runCoalesced(List<Job> jobs, int index, Message message) {
+
+        List<Job> processed= new ArrayList<>( jobs.size()- index);
+        boolean modified= false;
+        for( ; index< jobs.size(); index++){
+
+            Job job= jobs.get( index);
+            if( job.getBehaviorType()== BehaviorType.Delete
+                    || (!processed.isEmpty() && !this.resourceRoadie.authorize(
+                            message, job.getJobOwner(),
+                            job.getBehaviorType()))){
+
+                break;
+            }
+            Map<String,Object> values= new HashMap<>( message.getValues());
+            try{
+
+                ProcessingResult processingResult= this.process( message,
+                        job.getBehaviorType());
+                if( processingResult!= null
+                        && processingResult.isContinueProcessing()){
+
+                    if( processingResult.getMessage()!= null){
+
+                        message= processingResult.getMessage();
+                        modified= true;
+                    }
+                    this.handleNewMessages( job, processingResult, "");
+                }else{
+
+                    // tf - Discard changes this job did not want kept.
+                    message.setValues( values);
+                }
+                processed.add( job);
+            }catch( Throwable t){
+
+                message.setValues( values);
+                this.completeCoalesced( message, modified, processed);
+                this.handleError( job, message, t);
+
+                return index+ 1;
+            }
+        }
+        this.completeCoalesced( message, modified, processed);
+
+        return index;
+    }
+
+    private void completeCoalesced(Message message, boolean modified,
+                                   List<Job> processed) {
+
+        if( modified){
+
+            this.resourceRoadie.updateMessage( message);
+        }
+        for( Job job: processed){
+
+            this.release( job);
+            this.queue.complete( job);
+        }
+    }
+
+    void handleError(Job job, Message message, Throwable t) {
+
+        if( job.getTries()< this.maximumTries){
+
+            String msg= String.format(
+                    "Caught exception processing message " +
+                    "'%s' for job '%s'.", message.toString(),
+                    job.toString());
+            this.logger.log( Level.WARNING, msg, t);
+
+            if( message.getBehavior().containsKey( BehaviorType.Error)){
+
+                ProcessingResult processingResult= this.error( message,
+                        job.getTries());
+                // tf - Each try's error handling creates its own messages.
+                this.handleProcessingResult(job, message, processingResult,
+                        String.format( "error-%s/", job.getTries()));
+            }
+            this.release( job);
+            this.queue.error( job, msg, false, this.retryBackoff( job));
+        }else{
+
+            String msg= String.format(
+                    "Attempted processing '%s' tries; job state '%s'.  " +
+                            "Giving up and removing job from queue.",
+                    job.getTries(), job.toString());
+
+            this.release( job);
+            this.queue.error( job, msg, true);
+            this.logger.log(Level.SEVERE,msg,t);
+
+            throw new RuntimeException( msg, t);
+        }
+    }
+
     @SuppressWarnings("unchecked")
     private void handleProcessingResult(Job job, Message message,
-                                        ProcessingResult processingResult) {
+                                        ProcessingResult processingResult,
+                                        String path) {
 
         if( processingResult!= null
                 && processingResult.isContinueProcessing()){
@@ -110,27 +669,416 @@ public abstract class Processor {
                 //  message already authenticated above.
                 this.resourceRoadie.updateMessage(processingResult.getMessage());
             }
-            if( !isEmpty( processingResult.getMessages())){
+            this.handleNewMessages( job, processingResult, path);
+        }
+    }
+
+    private void handleNewMessages(Job job,
+                                   ProcessingResult processingResult,
+                                   String path) {
+
+        this.handleNewMessages( job, processingResult, new Fusion( 0,
+                new AtomicInteger( this.inlineBudget), path));
+    }
+
+    /**
+     * Stores the new messages created during processing, and queues a job
+     * for each one defining behavior.  New messages are stored in parallel,
+     * up to the child concurrency; if any fails the jobs are not queued and
+     * its exception fails the parent job.  New messages within the inline
+     * depth and budget are processed inline rather than queued.
+     *
+     * Child jobs take UUIDs derived from the job and their position, and the
+     * job records each child once queued or processed inline; a retry of
+     * the job skips those children rather than repeating them.
+     */
+    private void handleNewMessages(Job job, ProcessingResult processingResult,
+                                   Fusion fusion) {
+
+        if( !isEmpty( processingResult.getMessages())){
+
+            List<ProcessingResult.NewMessage> newMessages=
+                    processingResult.getMessages();
+            Message[] stored= this.storeNewMessages( newMessages, job,
+                    fusion);
+            List<Queue.PushTuple> pushTuples= new ArrayList<>(
+                    newMessages.size());
+            List<String> paths= new ArrayList<>( newMessages.size());
+            for( int i= 0; i< newMessages.size(); i++){
+
+                // tf - New messages processed inline or by a previous try are
+                //  not stored here.
+                if( newMessages.get( i).behavior!= null && stored[i]!= null){
+
+                    String childPath= fusion.path+ i;
+                    pushTuples.add( new Queue.PushTuple(
+                            job.childUuid( childPath), stored[i],
+                            newMessages.get( i).behavior.getBehaviorType()));
+                    paths.add( childPath);
+                }
+            }
+            if( !isEmpty( pushTuples)){
 
-                for(ProcessingResult.NewMessage newMessage:
-                        processingResult.getMessages()){
+                // tf - Queue all child jobs in one batch.
+                this.queue.pushAll( this.batch( job, pushTuples, fusion.path),
+                        job.getJobOwner());
+                for( String childPath: paths){
 
-                    // TODO: Add test for new message meta data & null behavior.
-                    Message m= new Message( newMessage.makeKey());
-                    if( !MapUtils.isEmpty(newMessage.values)){
-                        m.getValues().putAll( newMessage.values);
+                    job.recordFanOut( childPath);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bundles the push tuples of a large fan-out into batch jobs: tuples
+     * sharing a user context and behavior, other than deletes, are queued
+     * batch job size at a time once there are batch threshold of them.
+     * Queues serializing keys run every job on its own.
+     *
+     * @return Push tuples to queue.
+     */
+    private List<Queue.PushTuple> batch(Job job,
+                                        List<Queue.PushTuple> pushTuples,
+                                        String path) {
+
+        if( this.batchThreshold<= 0
+                || pushTuples.size()< this.batchThreshold
+                || this.queue.serializesKeys()){
+
+            return pushTuples;
+        }
+        List<Queue.PushTuple> batched= new ArrayList<>( pushTuples.size());
+        Map<String,List<Queue.PushTuple>> groups= new LinkedHashMap<>();
+        for( Queue.PushTuple pushTuple: pushTuples){
+
+            if( pushTuple.behaviorType== BehaviorType.Delete){
+
+                batched.add( pushTuple);
+                continue;
+            }
+            MessageKey messageKey= pushTuple.message.getMessageKey();
+            String group= String.format( "//%s/%s/%s",
+                    messageKey.getResourceName(), messageKey.getUserContext(),
+                    pushTuple.behaviorType);
+            if( !groups.containsKey( group)){
+
+                groups.put( group, new ArrayList<Queue.PushTuple>());
+            }
+            groups.get( group).add( pushTuple);
+        }
+        int batches= 0;
+        for( List<Queue.PushTuple> group: groups.values()){
+
+            if( group.size()< this.batchThreshold){
+
+                batched.addAll( group);
+                continue;
+            }
+            for( int i= 0; i< group.size(); i+= this.batchJobSize){
+
+                batched.add( this.batchTuple( job, group.subList( i,
+                        Math.min( group.size(), i+ this.batchJobSize)),
+                        path+ "batch-"+ batches++));
+            }
+        }
+
+        return batched;
+    }
+
+    private Queue.PushTuple batchTuple(Job job,
+                                       List<Queue.PushTuple> pushTuples,
+                                       String path) {
+
+        UUID uuid= job.childUuid( path);
+        Queue.PushTuple first= pushTuples.get( 0);
+        MessageKey messageKey= first.message.getMessageKey();
+        Message message= new Message( new MessageKey( String.format(
+                "//%s/%s/batch-%s", messageKey.getResourceName(),
+                messageKey.getUserContext(), uuid)));
+        message.setContextOwner( first.message.getContextOwner());
+        List<Job.Entry> entries= new ArrayList<>( pushTuples.size());
+        for( Queue.PushTuple pushTuple: pushTuples){
+
+            entries.add( new Job.Entry( pushTuple.message.getMessageKey()));
+        }
+
+        return new Queue.PushTuple( uuid, message, first.behaviorType,
+                entries);
+    }
+
+    /**
+     * Stores new messages, spreading them across up to child concurrency
+     * threads including the caller's.
+     *
+     * @return Stored messages, in the order of newMessages, null for those
+     * processed inline or already fanned out.
+     */
+    private Message[] storeNewMessages(
+            final List<ProcessingResult.NewMessage> newMessages,
+            final Job job, final Fusion fusion) {
+
+        final Message[] stored= new Message[newMessages.size()];
+        final AtomicInteger next= new AtomicInteger();
+        final Runnable storer= new Runnable() {
+            @Override
+            public void run() {
+                int i;
+                while( (i= next.getAndIncrement())< newMessages.size()){
+                    if( !job.fannedOut( fusion.path+ i)){
+                        stored[i]= storeNewMessage( newMessages.get( i), job,
+                                fusion, fusion.path+ i);
                     }
-                    m= this.resourceRoadie.storeMessage(m, newMessage.behavior,
-                            job.getJobOwner());
-                    if( newMessage.behavior!= null){
+                }
+            }
+        };
+        int helpers= Math.min( this.childConcurrency, newMessages.size())- 1;
+        List<Future<?>> futures= new ArrayList<>( Math.max( 0, helpers));
+        final Semaphore permits= this.childPermits();
+        // tf - Take only free helpers, nested levels may hold the rest.
+        for( int i= 0; i< helpers && permits.tryAcquire(); i++){
 
-                        this.queue.push(UUID.randomUUID(), m,
-                                newMessage.behavior.getBehaviorType(),
-                                job.getJobOwner());
+            futures.add( this.childExecutor().submit( new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        storer.run();
+                    }finally {
+                        permits.release();
                     }
                 }
+            }));
+        }
+        RuntimeException failure= null;
+        try{
+
+            storer.run();
+        }catch( RuntimeException e){
+
+            // tf - Stop handing out new messages, let the helpers finish.
+            next.set( newMessages.size());
+            failure= e;
+        }
+        for( Future<?> future: futures){
+
+            try{
+
+                future.get();
+            }catch( InterruptedException e){
+
+                Thread.currentThread().interrupt();
+                String msg= "Interrupted storing new messages.";
+                this.logger.log( Level.SEVERE, msg, e);
+
+                throw new RuntimeException( msg, e);
+            }catch( ExecutionException e){
+
+                next.set( newMessages.size());
+                if( failure== null){
+
+                    failure= e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new RuntimeException( e.getCause());
+                }
             }
         }
+        if( failure!= null){
+
+            throw failure;
+        }
+
+        return stored;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message storeNewMessage(ProcessingResult.NewMessage newMessage,
+                                    Job job, Fusion fusion, String path) {
+
+        // TODO: Add test for new message meta data & null behavior.
+        Message m= new Message( newMessage.makeKey());
+        if( !MapUtils.isEmpty(newMessage.values)){
+            m.getValues().putAll( newMessage.values);
+        }
+
+        return this.runOrStore( m, newMessage.behavior, job, fusion, path);
+    }
+
+    /**
+     * Applies a behavior to a stored message on the current thread, as a job
+     * for it would.  If the message's key is being processed, the behavior
+     * fails or deletes the message, the message is queued instead so it is
+     * processed as any job.
+     *
+     * @param messageKey Message to process.
+     * @param behavior Behavior to apply.
+     * @param authentication Authenticates access to messages.
+     * @return False if the message was queued rather than processed.
+     */
+    public boolean processMessage( MessageKey messageKey, Behavior behavior,
+                                   String authentication){
+
+        return this.processMessage( messageKey, behavior, authentication,
+                UUID.randomUUID());
+    }
+
+    private boolean processMessage( MessageKey messageKey, Behavior behavior,
+                                    String authentication, UUID jobUuid){
+
+        Message m= new Message( messageKey);
+        Job job= new Job( m, behavior.getBehaviorType(), authentication,
+                null);
+        Message queued= this.runOrStore( m, behavior, job, new Fusion( 0,
+                new AtomicInteger( this.inlineBudget), ""), "",
+                behavior.getBehaviorType()!= BehaviorType.Delete);
+        if( queued!= null){
+
+            this.queue.push( jobUuid, queued,
+                    behavior.getBehaviorType(), authentication);
+
+            return false;
+        }
+
+        return true;
+    }
+
+    private Message runOrStore(Message m, Behavior behavior, Job job,
+                               Fusion fusion, String path) {
+
+        return this.runOrStore( m, behavior, job, fusion, path,
+                this.admitInline( behavior, fusion));
+    }
+
+    /**
+     * Runs a new message inline if admitted and its key is free, otherwise
+     * stores it.
+     *
+     * @return Stored message, null if processed inline.
+     */
+    private Message runOrStore(Message m, Behavior behavior, Job job,
+                               Fusion fusion, String path, boolean admitted) {
+
+        if( admitted && this.runInline( m, behavior, job, fusion, path)){
+
+            job.recordFanOut( path);
+
+            return null;
+        }
+
+        return this.resourceRoadie.storeMessage(m, behavior,
+                job.getJobOwner());
+    }
+
+    private boolean admitInline(Behavior behavior, Fusion fusion) {
+
+        return behavior!= null
+                && behavior.getBehaviorType()!= BehaviorType.Delete
+                && fusion.depth< this.inlineDepth
+                && fusion.budget.getAndDecrement()> 0;
+    }
+
+    /**
+     * Processes a new message on the current thread, as a queued job for it
+     * would: the merged message is processed in memory, its own new
+     * messages are handled one level deeper, and it is written once they
+     * are.
+     *
+     * @return False if the message's key is locked or its behavior failed,
+     * so the message should be queued instead.
+     */
+    private boolean runInline(Message m, Behavior behavior, Job job,
+                              Fusion fusion, String path) {
+
+        String key= m.getMessageKey().getKey();
+        if( !this.queue.lockKey( key)){
+
+            fusion.budget.incrementAndGet();
+
+            return false;
+        }
+        try{
+
+            Message message= this.resourceRoadie.prepareMessage( m, behavior,
+                    job.getJobOwner());
+            ProcessingResult processingResult;
+            try{
+
+                processingResult= this.process( message,
+                        behavior.getBehaviorType());
+            }catch( Throwable t){
+
+                this.logger.log( Level.WARNING, String.format(
+                        "Caught exception processing message '%s' inline " +
+                        "for job '%s', queueing it instead.", key,
+                        job.getUuid()), t);
+
+                return false;
+            }
+            boolean continueProcessing= processingResult!= null
+                    && processingResult.isContinueProcessing();
+            if( continueProcessing && processingResult.getMessage()!= null){
+
+                message= processingResult.getMessage();
+            }
+            if( continueProcessing){
+
+                this.handleNewMessages( job, processingResult, new Fusion(
+                        fusion.depth+ 1, fusion.budget, path+ "/"));
+            }
+            // tf - Written once the subtree succeeds, a failure before here
+            //  leaves the message untouched for the job's retry.
+            this.resourceRoadie.updateMessage( message);
+
+            return true;
+        }finally {
+
+            this.queue.releaseKey( key);
+        }
+    }
+
+    private synchronized ExecutorService childExecutor(){
+
+        if( this.childExecutor== null){
+
+            this.childExecutor= Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread= new Thread( runnable,
+                                    "processor-child");
+                            thread.setDaemon( true);
+                            return thread;
+                        }
+                    });
+        }
+
+        return this.childExecutor;
+    }
+
+    private synchronized Semaphore childPermits(){
+
+        if( this.childPermits== null){
+
+            this.childPermits= new Semaphore( Math.max( 0,
+                    this.childConcurrency- 1));
+        }
+
+        return this.childPermits;
+    }
+
+    /**
+     * Exponential backoff before retrying a failed job, so failing behaviors
+     * do not hot-loop through the queue.
+     */
+    private long retryBackoff(Job job) {
+
+        int tries= Math.max( 1, job.getTries());
+        if( tries> 30){
+
+            return this.maximumRetryBackoffMillis;
+        }
+
+        return Math.min( this.maximumRetryBackoffMillis,
+                this.retryBackoffMillis<< (tries- 1));
     }
 
     /**
@@ -167,4 +1115,104 @@ public abstract class Processor {
     public void setMaximumTries(Integer maximumTries) {
         this.maximumTries = maximumTries;
     }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public void setRetryBackoffMillis(long retryBackoffMillis) {
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    @SuppressWarnings("UnusedDeclaration")
+    public void setMaximumRetryBackoffMillis(long maximumRetryBackoffMillis) {
+        this.maximumRetryBackoffMillis = maximumRetryBackoffMillis;
+    }
+
+    public void setHeartbeatMillis(long heartbeatMillis) {
+        this.heartbeatMillis = heartbeatMillis;
+    }
+
+    public void setChildConcurrency(int childConcurrency) {
+        this.childConcurrency = childConcurrency;
+    }
+
+    public void setInlineDepth(int inlineDepth) {
+        this.inlineDepth = inlineDepth;
+    }
+
+    public void setInlineBudget(int inlineBudget) {
+        this.inlineBudget = inlineBudget;
+    }
+
+    public void setBatchThreshold(int batchThreshold) {
+        this.batchThreshold = batchThreshold;
+    }
+
+    public void setBatchJobSize(int batchJobSize) {
+        this.batchJobSize = batchJobSize;
+    }
+
+    /**
+     * Tracks the new messages processed inline below one job; path prefixes
+     * the positions of new messages at this depth.
+     */
+    private static class Fusion{
+        private final int depth;
+        private final AtomicInteger budget;
+        private final String path;
+        private Fusion(int depth, AtomicInteger budget, String path) {
+            this.depth = depth;
+            this.budget = budget;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Renews the leases of jobs held together until each is released.
+     * Renewing and releasing exclude each other, so a released job is never
+     * renewed afterwards.
+     */
+    class Heartbeat implements Runnable{
+        private final List<Job> jobs;
+        private Future<?> future;
+        private Heartbeat(List<Job> jobs) {
+            this.jobs = new ArrayList<>( jobs);
+        }
+
+        private synchronized void start(Future<?> future) {
+            this.future = future;
+            if( this.jobs.isEmpty()){
+                future.cancel( false);
+            }
+        }
+
+        @Override
+        public synchronized void run() {
+            for( Job job: this.jobs){
+                try{
+                    queue.renew( job);
+                }catch( RuntimeException e){
+                    logger.log( Level.WARNING, String.format(
+                            "Could not renew job '%s'.", job.getUuid()), e);
+                }
+            }
+        }
+
+        private synchronized void release(Job job) {
+            this.jobs.remove( job);
+            if( this.jobs.isEmpty() && this.future!= null){
+                this.future.cancel( false);
+            }
+        }
+
+        /**
+         * @return Jobs not yet released.
+         */
+        private synchronized List<Job> stop() {
+            List<Job> held= new ArrayList<>( this.jobs);
+            this.jobs.clear();
+            if( this.future!= null){
+                this.future.cancel( false);
+            }
+            return held;
+        }
+    }
 }
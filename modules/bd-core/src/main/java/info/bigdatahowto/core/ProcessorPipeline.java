@@ -0,0 +1,340 @@
+package info.bigdatahowto.core;
+
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a processor's jobs through three stages, each with its own threads:
+ * fetch pops a job and accesses its message, process applies the behavior,
+ * and write stores the results and completes the job.  Stages are connected
+ * by bounded queues, so the next messages are fetched while a behavior runs
+ * and results are written in the background, while a slow stage holds back
+ * the stages feeding it.
+ *
+ * Jobs for one message key do not overlap: the queue keeps the key locked
+ * until the write stage completes the job.
+ *
+ * @author timfulmer
+ */
+public class ProcessorPipeline {
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private Processor processor;
+
+    private int fetchThreads= 4;
+    private int processThreads= Runtime.getRuntime().availableProcessors();
+    private int writeThreads= 4;
+
+    /**
+     * Jobs waiting between two stages.
+     */
+    private int stageCapacity= 16;
+
+    private long minimumIdleMillis= 10;
+    private long maximumIdleMillis= 1000;
+
+    /**
+     * Time allowed jobs in the pipeline to finish on stop.
+     */
+    private long shutdownMillis= 30000;
+
+    private BlockingQueue<InFlight> fetched;
+    private BlockingQueue<InFlight> processed;
+    private ExecutorService fetchers, processors, writers;
+    private volatile boolean running, fetchDone, processDone;
+
+    public ProcessorPipeline(Processor processor) {
+
+        super();
+
+        this.processor = processor;
+    }
+
+    /**
+     * Starts the stage threads.  Does nothing if already running.
+     */
+    public synchronized void start(){
+
+        if( this.running){
+
+            return;
+        }
+        this.fetched= new ArrayBlockingQueue<>( this.stageCapacity);
+        this.processed= new ArrayBlockingQueue<>( this.stageCapacity);
+        this.fetchDone= false;
+        this.processDone= false;
+        this.running= true;
+        this.fetchers= this.startStage( "fetch", this.fetchThreads,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        fetch();
+                    }
+                });
+        this.processors= this.startStage( "process", this.processThreads,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        process();
+                    }
+                });
+        this.writers= this.startStage( "write", this.writeThreads,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        write();
+                    }
+                });
+    }
+
+    /**
+     * Stops popping jobs, waiting up to the shutdown interval for jobs already
+     * in the pipeline to be written.
+     */
+    public synchronized void stop(){
+
+        if( !this.running){
+
+            return;
+        }
+        this.running= false;
+        long deadline= System.currentTimeMillis()+ this.shutdownMillis;
+        this.awaitTermination( this.fetchers, deadline);
+        this.fetchDone= true;
+        this.awaitTermination( this.processors, deadline);
+        this.processDone= true;
+        this.awaitTermination( this.writers, deadline);
+    }
+
+    public boolean isRunning() {
+
+        return this.running;
+    }
+
+    private void fetch(){
+
+        long idleMillis= this.minimumIdleMillis;
+        while( this.running){
+
+            Job job= null;
+            Processor.Heartbeat heartbeat= null;
+            try{
+
+                job= this.processor.popJob( idleMillis,
+                        TimeUnit.MILLISECONDS);
+                if( job== null){
+
+                    idleMillis= Math.min( idleMillis* 2,
+                            this.maximumIdleMillis);
+                    continue;
+                }
+                idleMillis= this.minimumIdleMillis;
+                if( job.isBatch()){
+
+                    // tf - Batch jobs touch many messages, run them whole.
+                    this.processor.processJobs(
+                            Collections.singletonList( job));
+                    continue;
+                }
+                heartbeat= this.processor.startHeartbeat(
+                        Collections.singletonList( job));
+                Message message= this.processor.accessMessage( job);
+                if( message== null){
+
+                    // tf - Nothing to run, complete so the job gives up its
+                    //  key.
+                    this.processor.completeJob( job, null, null);
+                    continue;
+                }
+                // tf - Blocks while the process stage is behind.
+                this.fetched.put( new InFlight( job, message, heartbeat));
+            }catch( InterruptedException e){
+
+                this.processor.stopHeartbeat( heartbeat);
+                Thread.currentThread().interrupt();
+
+                return;
+            }catch( RuntimeException e){
+
+                this.processor.stopHeartbeat( heartbeat);
+                this.logger.log( Level.WARNING, String.format( "Could not " +
+                        "fetch job '%s'.", job), e);
+            }
+        }
+    }
+
+    private void process(){
+
+        try{
+
+            while( !this.fetchDone || !this.fetched.isEmpty()){
+
+                InFlight inFlight= this.fetched.poll( this.maximumIdleMillis,
+                        TimeUnit.MILLISECONDS);
+                if( inFlight== null){
+
+                    continue;
+                }
+                try{
+
+                    inFlight.processingResult= this.processor.process(
+                            inFlight.message, inFlight.job.getBehaviorType());
+                }catch( Throwable t){
+
+                    inFlight.error= t;
+                }
+                this.processed.put( inFlight);
+            }
+        }catch( InterruptedException e){
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(){
+
+        try{
+
+            while( !this.processDone || !this.processed.isEmpty()){
+
+                InFlight inFlight= this.processed.poll(
+                        this.maximumIdleMillis, TimeUnit.MILLISECONDS);
+                if( inFlight!= null){
+
+                    this.write( inFlight);
+                }
+            }
+        }catch( InterruptedException e){
+
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(InFlight inFlight) {
+
+        try{
+
+            if( inFlight.error== null){
+
+                try{
+
+                    this.processor.completeJob( inFlight.job, inFlight.message,
+                            inFlight.processingResult);
+
+                    return;
+                }catch( Throwable t){
+
+                    inFlight.error= t;
+                }
+            }
+            this.processor.handleError( inFlight.job, inFlight.message,
+                    inFlight.error);
+        }catch( RuntimeException e){
+
+            // tf - Processor logged the failed job, keep writing.
+            this.logger.log( Level.WARNING, "Write stage caught exception " +
+                    "processing jobs.", e);
+        }finally {
+
+            this.processor.stopHeartbeat( inFlight.heartbeat);
+        }
+    }
+
+    private ExecutorService startStage( final String name, int threads,
+                                        Runnable stage){
+
+        final AtomicInteger count= new AtomicInteger();
+        ExecutorService executor= Executors.newFixedThreadPool( threads,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread= new Thread( runnable, "processor-"+
+                                name+ "-"+ count.incrementAndGet());
+                        thread.setDaemon( true);
+                        return thread;
+                    }
+                });
+        for( int i= 0; i< threads; i++){
+
+            executor.execute( stage);
+        }
+
+        return executor;
+    }
+
+    private void awaitTermination(ExecutorService executor, long deadline) {
+
+        executor.shutdown();
+        try {
+
+            if( !executor.awaitTermination( Math.max( 0,
+                    deadline- System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS)){
+
+                this.logger.warning( String.format( "Jobs still in pipeline " +
+                        "after '%d' milliseconds, interrupting.",
+                        this.shutdownMillis));
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void setFetchThreads(int fetchThreads) {
+        this.fetchThreads = fetchThreads;
+    }
+
+    public void setProcessThreads(int processThreads) {
+        this.processThreads = processThreads;
+    }
+
+    public void setWriteThreads(int writeThreads) {
+        this.writeThreads = writeThreads;
+    }
+
+    public void setStageCapacity(int stageCapacity) {
+        this.stageCapacity = stageCapacity;
+    }
+
+    public void setMinimumIdleMillis(long minimumIdleMillis) {
+        this.minimumIdleMillis = minimumIdleMillis;
+    }
+
+    public void setMaximumIdleMillis(long maximumIdleMillis) {
+        this.maximumIdleMillis = maximumIdleMillis;
+    }
+
+    public void setShutdownMillis(long shutdownMillis) {
+        this.shutdownMillis = shutdownMillis;
+    }
+
+    /**
+     * A job moving through the stages.
+     */
+    private static class InFlight{
+        private final Job job;
+        private final Message message;
+        private final Processor.Heartbeat heartbeat;
+        private ProcessingResult processingResult;
+        private Throwable error;
+        private InFlight(Job job, Message message,
+                         Processor.Heartbeat heartbeat) {
+            this.job = job;
+            this.message = message;
+            this.heartbeat = heartbeat;
+        }
+    }
+}
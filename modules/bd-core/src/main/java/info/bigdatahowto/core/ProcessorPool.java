@@ -0,0 +1,372 @@
+package info.bigdatahowto.core;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs worker loops pulling jobs through a processor, so jobs are processed
+ * without an external poller.  Workers take in-flight permits before popping,
+ * so no more jobs are checked out than the pool can process, and wait longer
+ * for jobs each time they find the queue empty.
+ *
+ * With virtual threads on, workers only pop, handing each message key's jobs
+ * to a new thread, so many jobs waiting on I/O can be in flight at once.
+ *
+ * With an adaptive limit, jobs in flight follow job latency up to the
+ * maximum, see 'ConcurrencyLimit'.
+ *
+ * @author timfulmer
+ */
+public class ProcessorPool {
+
+    public static final int DEFAULT_POOL_SIZE= 4;
+    public static final int DEFAULT_VIRTUAL_IN_FLIGHT= 1024;
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private Processor processor;
+    private int poolSize;
+
+    /**
+     * Jobs a worker pops in one operation, see 'Processor.pullJobs(int)'.
+     */
+    private int batchSize= 1;
+
+    /**
+     * Jobs checked out across all workers, zero for one batch per worker, or
+     * the virtual thread default.  The most allowed when adaptive.
+     */
+    private int maximumInFlight;
+    private boolean adaptive;
+
+    private long minimumIdleMillis= 10;
+    private long maximumIdleMillis= 1000;
+
+    /**
+     * Time allowed running jobs to finish on stop.
+     */
+    private long shutdownMillis= 30000;
+
+    /**
+     * Runs jobs on virtual threads when the JVM provides them, falling back
+     * to cached platform threads.
+     */
+    private boolean virtualThreads;
+
+    private ConcurrencyLimit limit;
+    private ExecutorService workers;
+    private ExecutorService jobs;
+    private volatile boolean running;
+
+    public ProcessorPool(Processor processor) {
+
+        this( processor, DEFAULT_POOL_SIZE);
+    }
+
+    public ProcessorPool(Processor processor, int poolSize) {
+
+        super();
+
+        this.processor = processor;
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * Starts the worker loops.  Does nothing if already running.
+     */
+    public synchronized void start(){
+
+        if( this.running){
+
+            return;
+        }
+        int permits= this.maximumInFlight> 0 ? this.maximumInFlight
+                : this.virtualThreads ? DEFAULT_VIRTUAL_IN_FLIGHT
+                : this.poolSize* Math.max( 1, this.batchSize);
+        this.limit= this.adaptive ? ConcurrencyLimit.adaptive( this.poolSize,
+                1, permits) : new ConcurrencyLimit( permits);
+        if( this.virtualThreads){
+
+            this.jobs= this.newJobExecutor();
+        }
+        final AtomicInteger count= new AtomicInteger();
+        this.workers= Executors.newFixedThreadPool( this.poolSize,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread= new Thread( runnable,
+                                "processor-worker-"+ count.incrementAndGet());
+                        thread.setDaemon( true);
+                        return thread;
+                    }
+                });
+        this.running= true;
+        for( int i= 0; i< this.poolSize; i++){
+
+            this.workers.execute( new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the worker loops, waiting up to the shutdown interval for running
+     * jobs to finish.  Jobs still running after that are interrupted and
+     * redelivered by the queue once their leases expire.
+     */
+    public synchronized void stop(){
+
+        if( !this.running){
+
+            return;
+        }
+        this.running= false;
+        long deadline= System.currentTimeMillis()+ this.shutdownMillis;
+        this.awaitTermination( this.workers, deadline);
+        if( this.jobs!= null){
+
+            // tf - Workers are done handing out jobs.
+            this.awaitTermination( this.jobs, deadline);
+            this.jobs= null;
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor, long deadline) {
+
+        executor.shutdown();
+        try {
+
+            if( !executor.awaitTermination( Math.max( 0,
+                    deadline- System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS)){
+
+                this.logger.warning( String.format( "Jobs still running " +
+                        "after '%d' milliseconds, interrupting.",
+                        this.shutdownMillis));
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+
+        return this.running;
+    }
+
+    /**
+     * @return Current limit on jobs in flight, zero if not started.
+     */
+    public int getLimit() {
+
+        return this.limit== null ? 0 : this.limit.getLimit();
+    }
+
+    private void work(){
+
+        long idleMillis= this.minimumIdleMillis;
+        while( this.running){
+
+            int permits;
+            try {
+
+                permits= this.acquire();
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+
+                return;
+            }
+            int popped= 0;
+            int dispatched= 0;
+            try{
+
+                if( this.running && this.jobs!= null){
+
+                    popped= dispatched= this.dispatch( permits, idleMillis);
+                }else if( this.running){
+
+                    popped= this.pull( permits, idleMillis);
+                }
+            }catch( InterruptedException e){
+
+                Thread.currentThread().interrupt();
+
+                return;
+            }catch( RuntimeException e){
+
+                // tf - Processor logged the failed job, keep working.
+                this.logger.log( Level.WARNING, "Worker caught exception " +
+                        "processing jobs.", e);
+                this.limit.drop();
+                popped= 1;
+            }finally {
+
+                this.limit.release( permits- dispatched);
+            }
+            idleMillis= popped> 0 ? this.minimumIdleMillis
+                    : Math.min( idleMillis* 2, this.maximumIdleMillis);
+        }
+    }
+
+    /**
+     * Waits for one in-flight permit, then takes up to a batch without
+     * waiting.
+     *
+     * @return Number of permits taken.
+     */
+    private int acquire() throws InterruptedException {
+
+        this.limit.acquire();
+        int permits= 1;
+        while( permits< this.batchSize && this.limit.tryAcquire()){
+
+            permits++;
+        }
+
+        return permits;
+    }
+
+    /**
+     * Pulls up to max jobs, waiting up to idleMillis for them to arrive.  An
+     * adaptive limit records the time each job took; its pops do not wait,
+     * so waiting for jobs is not counted as latency.
+     *
+     * @return Number of jobs popped.
+     */
+    private int pull( int max, long idleMillis) throws InterruptedException {
+
+        if( max== 1 && !this.limit.isAdaptive()){
+
+            return this.processor.pullJob( idleMillis, TimeUnit.MILLISECONDS)
+                    ? 1 : 0;
+        }
+        long start= System.nanoTime();
+        int popped= this.processor.pullJobs( max);
+        if( popped== 0){
+
+            Thread.sleep( idleMillis);
+        }else{
+
+            this.limit.record( (System.nanoTime()- start)/ popped);
+        }
+
+        return popped;
+    }
+
+    /**
+     * Pops up to max jobs, running each message key's jobs as one task on
+     * the job executor.  Tasks return their jobs' permits when done.
+     *
+     * @return Number of jobs popped.
+     */
+    private int dispatch( int max, long idleMillis)
+            throws InterruptedException {
+
+        List<List<Job>> groups= this.processor.popJobs( max);
+        if( groups.isEmpty()){
+
+            Thread.sleep( idleMillis);
+
+            return 0;
+        }
+        int popped= 0;
+        for( final List<Job> jobs: groups){
+
+            popped+= jobs.size();
+            this.jobs.execute( new Runnable() {
+                @Override
+                public void run() {
+                    long start= System.nanoTime();
+                    try{
+                        processor.processJobs( jobs);
+                        limit.record( (System.nanoTime()- start)/
+                                jobs.size());
+                    }catch( RuntimeException e){
+                        logger.log( Level.WARNING, "Worker caught " +
+                                "exception processing jobs.", e);
+                        limit.drop();
+                    }finally {
+                        limit.release( jobs.size());
+                    }
+                }
+            });
+        }
+
+        return popped;
+    }
+
+    /**
+     * Creates an executor starting a virtual thread per job.  Virtual threads
+     * need Java 21; the build still targets Java 7, so the factory is looked
+     * up at runtime.
+     */
+    private ExecutorService newJobExecutor(){
+
+        try {
+
+            return (ExecutorService) Executors.class.getMethod(
+                    "newVirtualThreadPerTaskExecutor").invoke( null);
+        } catch (ReflectiveOperationException e) {
+
+            this.logger.warning( "Virtual threads not available, running " +
+                    "jobs on platform threads.");
+        }
+        final AtomicInteger count= new AtomicInteger();
+
+        return Executors.newCachedThreadPool( new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread= new Thread( runnable,
+                        "processor-job-"+ count.incrementAndGet());
+                thread.setDaemon( true);
+                return thread;
+            }
+        });
+    }
+
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setMaximumInFlight(int maximumInFlight) {
+        this.maximumInFlight = maximumInFlight;
+    }
+
+    public void setMinimumIdleMillis(long minimumIdleMillis) {
+        this.minimumIdleMillis = minimumIdleMillis;
+    }
+
+    public void setMaximumIdleMillis(long maximumIdleMillis) {
+        this.maximumIdleMillis = maximumIdleMillis;
+    }
+
+    public void setShutdownMillis(long shutdownMillis) {
+        this.shutdownMillis = shutdownMillis;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+}
@@ -1,6 +1,13 @@
 package info.bigdatahowto.core;
 
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.apache.commons.lang3.StringUtils.isEmpty;
@@ -12,6 +19,13 @@ import static org.apache.commons.lang3.StringUtils.isEmpty;
  */
 public abstract class Queue {
 
+    /**
+     * Bounds on the sleep between reads when waiting on a queue without
+     * native blocking reads.
+     */
+    private static final long MINIMUM_POLL_MILLIS= 10;
+    private static final long MAXIMUM_POLL_MILLIS= 1000;
+
     private transient Logger logger= Logger.getLogger(
             this.getClass().getName());
 
@@ -22,6 +36,47 @@ public abstract class Queue {
 
     private Cache cache;
 
+    /**
+     * If true, jobs are serialized into the underlying queue message so
+     * reading a job does not access the external resource.
+     */
+    private boolean embedJobs= false;
+
+    /**
+     * Jobs in 'Created' or 'Processing' state modified more recently than this
+     * are put back to 'Queued' when read.
+     */
+    private long staleMillis= 5000;
+
+    /**
+     * Jobs read while their message key was being processed, by key in read
+     * order.  Completing or failing a job hands its key lock to the first job
+     * parked behind it.
+     */
+    private final Map<String,Deque<Parked>> parked= new HashMap<>();
+
+    /**
+     * Jobs holding each key lock taken by this queue: the job that took or
+     * was handed the lock, plus jobs coalesced under it.  The lock is handed
+     * off once the last of them completes or fails.
+     */
+    private final Map<String,Set<UUID>> holders= new HashMap<>();
+
+    /**
+     * Jobs handed a key lock, returned by the next pop.
+     */
+    private final java.util.Queue<Job> handedOff=
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * A job parked this long without a hand off, for instance because its key
+     * is held by another node, tries the key lock again.
+     */
+    private long parkMillis= 5000;
+    private volatile long nextParkCheck;
+
+    private ObjectMapper objectMapper= new ObjectMapper();
+
     protected Queue() {
 
         super();
@@ -50,6 +105,23 @@ public abstract class Queue {
     public UUID push(UUID jobUuid, Message message, BehaviorType behaviorType,
                      String authentication){
 
+        return this.push( jobUuid, message, behaviorType, authentication,
+                null);
+    }
+
+    /**
+     * Creates a new job as 'Queue.push' does, delaying delivery of the job
+     * from the underlying queue until a point in time.
+     *
+     * @param jobUuid Use this as the Job.uuid if not null.
+     * @param message Message to process in a job.
+     * @param behaviorType Behavior to execute.
+     * @param authentication Identifies the user originally requesting this job.
+     * @param notBefore Job is not delivered before this time, if not null.
+     */
+    public UUID push(UUID jobUuid, Message message, BehaviorType behaviorType,
+                     String authentication, Date notBefore){
+
         Job job= new Job( message, behaviorType, authentication,
                 message.getContextOwner());
         if( jobUuid!= null){
@@ -58,7 +130,13 @@ public abstract class Queue {
         }
         job.setStatus( "Job creation request has been received.");
         this.resource.put(job);
-        this.write(job.getUuid());
+        if( notBefore== null){
+
+            this.write(job);
+        }else{
+
+            this.write(job, notBefore.getTime()- System.currentTimeMillis());
+        }
         job.toQueued();
         job.setStatus("Job creation request has been processed.");
         this.resource.put(job);
@@ -66,6 +144,72 @@ public abstract class Queue {
         return job.getUuid();
     }
 
+    /**
+     * Creates a job instance for each message in a batch; stores the job
+     * records in 'Queued' state; and writes all job UUIDs to the underlying
+     * queue in one operation.  Costs one resource put per job instead of the
+     * two 'Queue.push' uses, and one queue write for the whole batch.
+     *
+     * !!WARNING: This method assumes unique job UUIDs!!
+     *
+     * Jobs the underlying queue could not write are moved to 'Error' state
+     * and an exception is thrown; jobs written stay queued.
+     *
+     * @param pushTuples Messages and behaviors to queue as jobs; tuples with
+     *                   entries are queued as batch jobs.
+     * @param authentication Identifies the user originally requesting the jobs.
+     * @return UUIDs of the queued jobs, in the same order as pushTuples.
+     */
+    public List<UUID> pushAll(List<PushTuple> pushTuples,
+                              String authentication){
+
+        List<Job> jobs= new ArrayList<>( pushTuples.size());
+        List<UUID> uuids= new ArrayList<>( pushTuples.size());
+        for( PushTuple pushTuple: pushTuples){
+
+            Job job= new Job( pushTuple.message, pushTuple.behaviorType,
+                    authentication, pushTuple.message.getContextOwner());
+            if( pushTuple.jobUuid!= null){
+
+                job.setUuid( pushTuple.jobUuid);
+            }
+            job.setEntries( pushTuple.entries);
+            job.setBehavior( pushTuple.behavior);
+            job.toQueued();
+            job.setStatus("Job creation request has been processed.");
+            this.resource.put(job);
+            jobs.add( job);
+            uuids.add( job.getUuid());
+        }
+        List<Job> unwritten;
+        RuntimeException cause= null;
+        try{
+
+            unwritten= this.writeAll( jobs);
+        }catch( RuntimeException e){
+
+            // tf - Nothing reported, assume nothing was written.
+            unwritten= jobs;
+            cause= e;
+        }
+        if( !unwritten.isEmpty()){
+
+            for( Job job: unwritten){
+
+                job.setState( JobState.Error);
+                job.setStatus( "Job could not be written to the queue.");
+                this.resource.put( job);
+            }
+            String msg= String.format( "Could not write '%d' of '%d' jobs " +
+                    "to the queue.", unwritten.size(), jobs.size());
+            this.logger.log( Level.SEVERE, msg, cause);
+
+            throw new RuntimeException( msg, cause);
+        }
+
+        return uuids;
+    }
+
     /**
      * Reads a job from the underlying queue; updating state information in
      * external resource.
@@ -74,10 +218,29 @@ public abstract class Queue {
      */
     public Job pop(){
 
-        Job job;
+        return this.pop( 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Reads a job from the underlying queue, waiting up to timeout for one to
+     * arrive; updating state information in external resource.
+     *
+     * @param timeout Maximum time to wait for a job.
+     * @param unit Unit of timeout.
+     * @return Job instance, null if no job arrived in time.
+     */
+    public Job pop( long timeout, TimeUnit unit){
+
+        Job job= this.takeParked();
+        if( job!= null){
+
+            return job;
+        }
+        long deadline= System.currentTimeMillis()+ unit.toMillis( timeout);
         do{
 
-            ResultTuple resultTuple= this.read();
+            ResultTuple resultTuple= this.read( Math.max( 0,
+                    deadline- System.currentTimeMillis()));
             if( resultTuple== null){
 
                 this.logger.info( "Job queue empty, returning null.");
@@ -85,22 +248,271 @@ public abstract class Queue {
                 // tf - There are no jobs in the queue.
                 return null;
             }
-            job = getJob(resultTuple.uuid);
+            job = this.toJob(resultTuple);
             job.setQueueIdentifier( resultTuple.identifier);
         }while( !readyToProcess( job));
-        if( this.alreadyProcessingKey(job.getMessageKey().getKey())){
+
+        return this.checkOut( job) ? job : null;
+    }
+
+    /**
+     * Reads up to max jobs from the underlying queue in one operation;
+     * updating state information in external resource.  Jobs not ready to
+     * process, or whose message key is already being processed elsewhere, are
+     * left in the underlying queue.  Jobs sharing a message key with an
+     * earlier job in the batch are returned under that job's key lock, so the
+     * caller may coalesce them.
+     *
+     * @param max Maximum number of jobs to return.
+     * @return Job instances, empty if the queue is empty.
+     */
+    public List<Job> popBatch( int max){
+
+        List<Job> jobs= new ArrayList<>( max);
+        Set<String> keys= new HashSet<>( max);
+        Job handedOff;
+        while( jobs.size()< max && (handedOff= this.takeParked())!= null){
+
+            jobs.add( handedOff);
+            keys.add( handedOff.getMessageKey().getKey());
+        }
+        if( jobs.size()== max){
+
+            return jobs;
+        }
+        List<ResultTuple> resultTuples= this.readBatch( max- jobs.size());
+        if( resultTuples.isEmpty()){
+
+            this.logger.info( "Job queue empty, returning batch.");
+
+            return jobs;
+        }
+        for( ResultTuple resultTuple: resultTuples){
+
+            Job job= this.toJob(resultTuple);
+            job.setQueueIdentifier( resultTuple.identifier);
+            if( !readyToProcess( job)){
+
+                continue;
+            }
+            String key= job.getMessageKey().getKey();
+            if( keys.contains( key)){
+
+                // tf - Key already locked by this batch.
+                this.toProcessing( job);
+                this.hold( job, false);
+                jobs.add( job);
+            }else if( this.checkOut( job)){
+
+                keys.add( key);
+                jobs.add( job);
+            }
+        }
+
+        return jobs;
+    }
+
+    /**
+     * Uses the job carried in the queue message when present, otherwise
+     * accesses the job from the external resource.
+     */
+    private Job toJob(ResultTuple resultTuple) {
+
+        if( resultTuple.job!= null){
+
+            return resultTuple.job;
+        }
+
+        return getJob(resultTuple.uuid);
+    }
+
+    /**
+     * Locks a job's message key and moves the job into 'Processing' state.
+     * The lock is skipped when the underlying queue serializes keys itself.
+     * A job whose key is already locked is parked behind it, keeping its
+     * lease in the underlying queue.
+     *
+     * @param job Job ready to process.
+     * @return False if the job's message key is already being processed.
+     */
+    private boolean checkOut(Job job) {
+
+        if( !this.serializesKeys()
+                && this.alreadyProcessingKey(job.getMessageKey().getKey())){
 
             this.logger.info( String.format( "Message with key '%s' already " +
-                    "being processed, returning null.",
-                    job.getMessageKey().getKey()));
+                    "being processed, parking job '%s'.",
+                    job.getMessageKey().getKey(), job.getUuid()));
+            this.park( job);
+
+            return false;
+        }
+        this.toProcessing( job);
+        this.hold( job, true);
+
+        return true;
+    }
+
+    private void park(Job job) {
+
+        String key= job.getMessageKey().getKey();
+        synchronized( this.parked){
+
+            Deque<Parked> waiting= this.parked.get( key);
+            if( waiting== null){
+
+                waiting= new ArrayDeque<>();
+                this.parked.put( key, waiting);
+            }
+            for( Parked parked: waiting){
+
+                if( parked.job.getUuid().equals( job.getUuid())){
+
+                    // tf - Redelivered while parked, keep the newer lease.
+                    parked.job.setQueueIdentifier( job.getQueueIdentifier());
+
+                    return;
+                }
+            }
+            waiting.addLast( new Parked( job));
+        }
+    }
+
+    /**
+     * Records a job as holding its message key lock.
+     *
+     * @param job Job in 'Processing' state.
+     * @param fresh True if the lock was just taken or handed to this job,
+     *              replacing holders left over from an expired lock.
+     */
+    private void hold(Job job, boolean fresh) {
+
+        String key= job.getMessageKey().getKey();
+        synchronized( this.holders){
+
+            Set<UUID> uuids= fresh ? null : this.holders.get( key);
+            if( uuids== null){
+
+                uuids= new HashSet<>();
+                this.holders.put( key, uuids);
+            }
+            uuids.add( job.getUuid());
+        }
+    }
+
+    /**
+     * Hands off a finished job's key lock once no other job holds it.  Jobs
+     * not holding the lock, such as stale copies of a job, hand off nothing.
+     */
+    private void handOff(Job job) {
+
+        String key= job.getMessageKey().getKey();
+        synchronized( this.holders){
+
+            Set<UUID> uuids= this.holders.get( key);
+            if( uuids== null || !uuids.remove( job.getUuid())
+                    || !uuids.isEmpty()){
+
+                return;
+            }
+            this.holders.remove( key);
+        }
+        this.handOff( key);
+    }
+
+    /**
+     * Passes a key lock to the first job parked behind it, or unlocks the
+     * key if none is parked.
+     */
+    private void handOff(String key) {
+
+        Parked next= null;
+        synchronized( this.parked){
+
+            Deque<Parked> waiting= this.parked.get( key);
+            if( waiting!= null){
+
+                next= waiting.pollFirst();
+                if( waiting.isEmpty()){
+
+                    this.parked.remove( key);
+                }
+            }
+        }
+        if( next== null){
+
+            this.unlockKey( key);
+
+            return;
+        }
+        // tf - Key stays locked, restart its expiry for the next job.
+        if( !this.serializesKeys()){
+
+            this.cache.touch( key);
+        }
+        this.toProcessing( next.job);
+        this.hold( next.job, true);
+        this.handedOff.add( next.job);
+    }
+
+    /**
+     * Takes a job handed a key lock.  Otherwise, at most once per park
+     * interval, tries the key lock again for jobs parked longer than that
+     * interval, extending the leases of those still blocked.
+     *
+     * @return Job in 'Processing' state, null if none is ready.
+     */
+    private Job takeParked() {
 
-            return null;
+        Job job= this.handedOff.poll();
+        long now= System.currentTimeMillis();
+        if( job!= null || now< this.nextParkCheck){
+
+            return job;
         }
+        this.nextParkCheck= now+ this.parkMillis;
+        synchronized( this.parked){
+
+            Iterator<Map.Entry<String,Deque<Parked>>> iterator=
+                    this.parked.entrySet().iterator();
+            while( job== null && iterator.hasNext()){
+
+                Map.Entry<String,Deque<Parked>> entry= iterator.next();
+                Parked first= entry.getValue().peekFirst();
+                if( now- first.since< this.parkMillis){
+
+                    continue;
+                }
+                if( this.alreadyProcessingKey( entry.getKey())){
+
+                    first.since= now;
+                    for( Parked parked: entry.getValue()){
+
+                        this.extend( parked.job.getQueueIdentifier());
+                    }
+                    continue;
+                }
+                job= entry.getValue().pollFirst().job;
+                if( entry.getValue().isEmpty()){
+
+                    iterator.remove();
+                }
+            }
+        }
+        if( job!= null){
+
+            this.toProcessing( job);
+            this.hold( job, true);
+        }
+
+        return job;
+    }
+
+    private void toProcessing(Job job) {
+
         job.toProcessing();
         job.setStatus("Job processing in progress ...");
         this.resource.put(job);
-
-        return job;
     }
 
     /**
@@ -113,16 +525,20 @@ public abstract class Queue {
      */
     private boolean readyToProcess(Job job) {
 
-        Calendar calendar= new GregorianCalendar();
-        calendar.add( Calendar.SECOND, -5);
+        long stale= System.currentTimeMillis()- this.staleMillis;
         switch( job.getState()){
             case Processing:
-            case Created: if( calendar.getTime().before(
-                    job.getModifiedDate())){
+            case Created: if( stale< job.getModifiedDate().getTime()){
                 job.toQueued();
                 break;
             }
-            case Complete: this.complete( job); break;
+                // tf - Never checked out here, so no key lock to hand off.
+                this.toComplete( job);
+                break;
+            case Complete:
+                // tf - Redelivered copy of a finished job, drop it.
+                this.delete( job.getQueueIdentifier());
+                break;
         }
 
         return job.getState()== JobState.Queued;
@@ -133,15 +549,89 @@ public abstract class Queue {
         return !this.cache.put( key, key);
     }
 
+    private void unlockKey(String key){
+
+        if( !this.serializesKeys()){
+
+            this.cache.remove( key);
+        }
+    }
+
+    /**
+     * Locks a message key for work done outside the queue, such as a child
+     * message processed inline by its parent's job.
+     *
+     * @param key Message key to lock.
+     * @return False if the key is already being processed, or if the
+     * underlying queue serializes keys itself so no lock can be taken.
+     */
+    public boolean lockKey(String key){
+
+        return !this.serializesKeys() && !this.alreadyProcessingKey( key);
+    }
+
+    /**
+     * Releases a key locked with 'Queue.lockKey(String)', passing it to the
+     * first job parked behind it.
+     *
+     * @param key Message key to release.
+     */
+    public void releaseKey(String key){
+
+        this.handOff( key);
+    }
+
     public void complete(Job job){
 
-        this.cache.remove( job.getMessageKey().getKey());
+        try{
+
+            this.toComplete( job);
+        }finally {
+
+            this.handOff( job);
+        }
+    }
+
+    private void toComplete(Job job){
+
         job.toComplete();
         job.setStatus("Job processing complete.");
         this.resource.put(job);
         this.delete(job.getQueueIdentifier());
     }
 
+    /**
+     * Extends a processing job's hold on its message key, and its lease in
+     * the underlying queue, as if both were freshly taken.  Processors call
+     * this periodically while running a job.
+     *
+     * @param job Job in 'Processing' state.
+     */
+    public void renew( Job job){
+
+        if( !this.serializesKeys()
+                && !this.cache.touch( job.getMessageKey().getKey())){
+
+            this.logger.warning( String.format( "Lock on message key '%s' " +
+                    "expired before renewal of job '%s'.",
+                    job.getMessageKey().getKey(), job.getUuid()));
+        }
+        this.extend( job.getQueueIdentifier());
+        // tf - Jobs parked behind this one keep their leases too.
+        synchronized( this.parked){
+
+            Deque<Parked> waiting= this.parked.get(
+                    job.getMessageKey().getKey());
+            if( waiting!= null){
+
+                for( Parked parked: waiting){
+
+                    this.extend( parked.job.getQueueIdentifier());
+                }
+            }
+        }
+    }
+
     public Job getJob(UUID uuid) {
 
         Job job= new Job( uuid);
@@ -167,7 +657,33 @@ public abstract class Queue {
      */
     public void error( Job job, String msg, boolean remove){
 
-        this.cache.remove( job.getMessageKey().getKey());
+        this.error( job, msg, remove, 0);
+    }
+
+    /**
+     * Error a job by updating it's state and status in external resource.
+     * Removed jobs are deleted from the underlying queue, others are handed
+     * back to it for redelivery after a backoff delay.
+     *
+     * @param job Job entering error state.
+     * @param msg Error message.
+     * @param remove True to park the job in 'Error' state.
+     * @param delayMillis Delay before a job not removed is delivered again.
+     */
+    public void error( Job job, String msg, boolean remove, long delayMillis){
+
+        try{
+
+            this.toError( job, msg, remove, delayMillis);
+        }finally {
+
+            this.handOff( job);
+        }
+    }
+
+    private void toError( Job job, String msg, boolean remove,
+                          long delayMillis){
+
         // TODO: TestMe
         if( isEmpty(msg) && isEmpty(job.getStatus())){
 
@@ -179,6 +695,15 @@ public abstract class Queue {
             job.toQueued();
             job.setStatus( msg);
             this.resource.put(job);
+            if( this.embedJobs){
+
+                // tf - Queued copy carries a stale try count, replace it.
+                this.write(job, delayMillis);
+                this.delete(job.getQueueIdentifier());
+            }else{
+
+                this.release(job.getQueueIdentifier(), delayMillis);
+            }
 
             return;
         }
@@ -186,6 +711,8 @@ public abstract class Queue {
         job.toError();
         job.setStatus( msg);
         this.resource.put(job);
+        // tf - Index parked job for replay.
+        this.resource.put(new DeadLetter( job));
         this.delete(job.getQueueIdentifier());
     }
 
@@ -195,6 +722,15 @@ public abstract class Queue {
     public void clear(){
 
         this.cache.clear();
+        synchronized( this.parked){
+
+            this.parked.clear();
+        }
+        synchronized( this.holders){
+
+            this.holders.clear();
+        }
+        this.handedOff.clear();
     }
 
     /**
@@ -204,6 +740,188 @@ public abstract class Queue {
      */
     protected abstract void write( UUID uuid);
 
+    /**
+     * Writes a job into the underlying queue.  Implementations able to carry
+     * a message body should override this and write 'Queue.encode(job)'; the
+     * default writes the job UUID.
+     *
+     * @param job Job to queue.
+     */
+    protected void write( Job job){
+
+        this.write( job.getUuid());
+    }
+
+    /**
+     * Assigns a job to a priority class.  Jobs already tried are 'Retry';
+     * 'Get' and 'Delete' jobs, which callers usually wait on, are
+     * 'Interactive'; everything else is 'Normal'.  Implementations supporting
+     * priorities use this when writing a job.
+     *
+     * @param job Job to classify.
+     * @return Priority class of the job.
+     */
+    protected JobPriority priority( Job job){
+
+        if( job.getTries()!= null && job.getTries()> 0){
+
+            return JobPriority.Retry;
+        }
+        if( job.getBehaviorType()== BehaviorType.Get
+                || job.getBehaviorType()== BehaviorType.Delete){
+
+            return JobPriority.Interactive;
+        }
+
+        return JobPriority.Normal;
+    }
+
+    /**
+     * Writes a job into the underlying queue, to be delivered no sooner than
+     * delayMillis from now.  Implementations supporting delayed delivery
+     * should override this; the default writes the job immediately.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    protected void write( Job job, long delayMillis){
+
+        this.write( job);
+    }
+
+    /**
+     * Writes a batch of jobs into the underlying queue.  Implementations
+     * supporting batch writes should override this; the default writes each
+     * job in turn, stopping at the first failure.  Failures are reported in
+     * the result rather than thrown, so jobs already written stay queued.
+     *
+     * @param jobs Jobs to queue.
+     * @return Jobs not written, empty if every job was written.
+     */
+    protected List<Job> writeAll( List<Job> jobs){
+
+        for( int i= 0; i< jobs.size(); i++){
+
+            try{
+
+                this.write( jobs.get( i));
+            }catch( RuntimeException e){
+
+                this.logger.log( Level.SEVERE, String.format( "Could not " +
+                        "write job '%s'.", jobs.get( i).getUuid()), e);
+
+                return jobs.subList( i, jobs.size());
+            }
+        }
+
+        return Collections.emptyList();
+    }
+
+    /**
+     * Encodes a job into a queue message body.  When embedding jobs this is a
+     * compact JSON object holding the fields needed to process the job,
+     * otherwise it is the job UUID.
+     *
+     * @param job Job to encode.
+     * @return Queue message body.
+     */
+    protected String encode( Job job){
+
+        if( !this.embedJobs){
+
+            return job.getUuid().toString();
+        }
+        Map<String,Object> payload= new LinkedHashMap<>();
+        payload.put( "u", job.getUuid().toString());
+        payload.put( "k", job.getMessageKey().getKey());
+        payload.put( "b", job.getBehaviorType().toString());
+        payload.put( "o", job.getJobOwner());
+        payload.put( "c", job.getContextOwner());
+        payload.put( "t", job.getTries());
+        payload.put( "d", job.getCreationDate().getTime());
+        if( job.isBatch()){
+
+            payload.put( "e", job.getEntries());
+        }
+        if( job.getBehavior()!= null){
+
+            payload.put( "h", job.getBehavior());
+        }
+        if( !job.getFanOut().isEmpty()){
+
+            // tf - Retries skip children already fanned out.
+            payload.put( "f", job.getFanOut());
+        }
+        try {
+
+            return this.objectMapper.writeValueAsString( payload);
+        } catch (IOException e) {
+
+            String msg= String.format( "Could not encode job '%s'.",
+                    job.toString());
+            this.logger.log(Level.SEVERE, msg, e);
+
+            throw new RuntimeException( msg, e);
+        }
+    }
+
+    /**
+     * Decodes a queue message body written by 'Queue.encode'.  Bodies carrying
+     * a job are decoded into a 'Queued' job instance without accessing the
+     * external resource.
+     *
+     * @param body Queue message body.
+     * @param identifier Identifies message within queue.
+     * @return Result tuple, holding a job if one was embedded.
+     */
+    protected ResultTuple decode( String body, String identifier){
+
+        if( !body.startsWith( "{")){
+
+            return new ResultTuple( UUID.fromString( body), identifier);
+        }
+        try {
+
+            Map<String,Object> payload= this.objectMapper.readValue( body,
+                    new TypeReference<Map<String,Object>>(){});
+            Job job= new Job( UUID.fromString( (String) payload.get( "u")));
+            job.setMessageKey( new MessageKey( (String) payload.get( "k")));
+            job.setBehaviorType( BehaviorType.valueOf(
+                    (String) payload.get( "b")));
+            job.setJobOwner( (String) payload.get( "o"));
+            job.setContextOwner( (String) payload.get( "c"));
+            job.setTries( ((Number) payload.get( "t")).intValue());
+            job.setCreationDate( new Date(
+                    ((Number) payload.get( "d")).longValue()));
+            if( payload.containsKey( "e")){
+
+                job.setEntries( this.objectMapper.<List<Job.Entry>>
+                        convertValue( payload.get( "e"),
+                        new TypeReference<List<Job.Entry>>(){}));
+            }
+            if( payload.containsKey( "h")){
+
+                job.setBehavior( this.objectMapper.convertValue(
+                        payload.get( "h"), Behavior.class));
+            }
+            if( payload.containsKey( "f")){
+
+                job.setFanOut( this.objectMapper.<Set<String>>
+                        convertValue( payload.get( "f"),
+                        new TypeReference<Set<String>>(){}));
+            }
+            job.setState( JobState.Queued);
+
+            return new ResultTuple( job, identifier);
+        } catch (IOException e) {
+
+            String msg= String.format( "Could not decode job '%s'.", body);
+            this.logger.log(Level.SEVERE, msg, e);
+
+            throw new RuntimeException( msg, e);
+        }
+    }
+
     /**
      * Reads a  UUID from the underlying queue.  Reading must not delete
      * from the underlying queue.  Repeated calls to read may return the same
@@ -213,6 +931,52 @@ public abstract class Queue {
      */
     protected abstract ResultTuple read();
 
+    /**
+     * Reads a UUID from the underlying queue, waiting up to timeoutMillis for
+     * one to arrive.  Implementations supporting blocking or long-polling
+     * reads should override this; the default repeats 'Queue.read()',
+     * sleeping for an increasing interval between empty reads.
+     *
+     * @param timeoutMillis Milliseconds to wait, zero reads once.
+     * @return UUID in the queue, null if none arrived in time.
+     */
+    protected ResultTuple read( long timeoutMillis){
+
+        long deadline= System.currentTimeMillis()+ timeoutMillis;
+        long sleepMillis= MINIMUM_POLL_MILLIS;
+        ResultTuple resultTuple;
+        while( (resultTuple= this.read())== null){
+
+            long remaining= deadline- System.currentTimeMillis();
+            if( remaining<= 0){
+
+                return null;
+            }
+            try {
+
+                Thread.sleep( Math.min( sleepMillis, remaining));
+            } catch (InterruptedException e) {
+
+                Thread.currentThread().interrupt();
+
+                return null;
+            }
+            sleepMillis= Math.min( sleepMillis* 2, MAXIMUM_POLL_MILLIS);
+        }
+
+        return resultTuple;
+    }
+
+    /**
+     * Reads up to max UUIDs from the underlying queue in one operation.
+     * Reading must not delete from the underlying queue.  Repeated calls to
+     * readBatch may return the same UUIDs.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    protected abstract List<ResultTuple> readBatch( int max);
+
     /**
      * Deletes a uuid from the queue.
      *
@@ -220,6 +984,57 @@ public abstract class Queue {
      */
     protected abstract void delete( String identifier);
 
+    /**
+     * Hands a read but unprocessed uuid back to the underlying queue for
+     * redelivery.  The default does nothing, leaving redelivery to the
+     * underlying queue.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    protected void release( String identifier){
+
+        // tf - Underlying queue redelivers unacknowledged reads on its own.
+    }
+
+    /**
+     * Hands a read but unprocessed uuid back to the underlying queue, to be
+     * delivered again no sooner than delayMillis from now.  Implementations
+     * supporting delayed delivery should override this; the default
+     * delegates to 'Queue.release(identifier)'.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    protected void release( String identifier, long delayMillis){
+
+        this.release( identifier);
+    }
+
+    /**
+     * True if the underlying queue never delivers a job while another job
+     * with the same message key is read and not yet deleted, such as a FIFO
+     * queue grouped by message key.  Jobs are then checked out without
+     * locking their message key in cache.  The default is false.
+     *
+     * @return True if the underlying queue serializes message keys.
+     */
+    protected boolean serializesKeys(){
+
+        return false;
+    }
+
+    /**
+     * Restarts the lease on a read uuid, so the underlying queue does not
+     * redeliver it while it is still being processed.  Implementations
+     * leasing reads should override this; the default does nothing.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    protected void extend( String identifier){
+
+        // tf - Underlying queue does not lease reads.
+    }
+
     public void setResource(Resource resource) {
         this.resource = resource;
     }
@@ -228,12 +1043,77 @@ public abstract class Queue {
         this.cache = cache;
     }
 
+    public void setParkMillis(long parkMillis) {
+        this.parkMillis = parkMillis;
+    }
+
+    public void setStaleMillis(long staleMillis) {
+        this.staleMillis = staleMillis;
+    }
+
+    /**
+     * Opt in to carrying jobs inside queue messages.  Saves one external
+     * resource read per job popped, at the cost of no longer noticing
+     * duplicate deliveries of jobs already complete.
+     *
+     * @param embedJobs True to embed jobs in queue messages.
+     */
+    public void setEmbedJobs(boolean embedJobs) {
+        this.embedJobs = embedJobs;
+    }
+
+    private static class Parked{
+        private final Job job;
+        private long since;
+        private Parked(Job job) {
+            this.job = job;
+            this.since = System.currentTimeMillis();
+        }
+    }
+
+    public static class PushTuple{
+        public UUID jobUuid;
+        public Message message;
+        public BehaviorType behaviorType;
+        public List<Job.Entry> entries;
+        public Behavior behavior;
+        public PushTuple(UUID jobUuid, Message message,
+                         BehaviorType behaviorType) {
+            this.jobUuid = jobUuid;
+            this.message = message;
+            this.behaviorType = behaviorType;
+        }
+        /**
+         * Queues a batch job applying behaviorType to each entry; message
+         * names the batch job.
+         */
+        public PushTuple(UUID jobUuid, Message message,
+                         BehaviorType behaviorType, List<Job.Entry> entries) {
+            this(jobUuid, message, behaviorType);
+            this.entries = entries;
+        }
+        /**
+         * Queues a batch job applying behavior to each entry in place of the
+         * entry's own; message names the batch job.
+         */
+        public PushTuple(UUID jobUuid, Message message, Behavior behavior,
+                         List<Job.Entry> entries) {
+            this(jobUuid, message, behavior.getBehaviorType(), entries);
+            this.behavior = behavior;
+        }
+    }
+
     public static class ResultTuple{
         public UUID uuid;
         public String identifier;
+        public Job job;
         public ResultTuple(UUID uuid, String identifier) {
             this.uuid = uuid;
             this.identifier = identifier;
         }
+        public ResultTuple(Job job, String identifier) {
+            this( job.getUuid(), identifier);
+            this.job = job;
+        }
     }
 }
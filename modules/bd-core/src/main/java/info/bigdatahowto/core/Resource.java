@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.IOException;
 import java.util.Date;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -63,6 +64,20 @@ public abstract class Resource {
                 this.getClass().getName()));
     }
 
+    /**
+     * A resource may optionally list the keys it holds by overriding this
+     * method.
+     *
+     * @param prefix Only keys starting with this prefix are listed.
+     * @return Keys starting with prefix, in lexicographic order.
+     */
+    public List<String> list(String prefix){
+
+        throw new UnsupportedOperationException( String.format(
+                "Class '%s' has not implemented 'Resource.list'.",
+                this.getClass().getName()));
+    }
+
     /**
      * Remove information from the external resource.
      *
@@ -1,7 +1,10 @@
 package info.bigdatahowto.core;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -34,8 +37,7 @@ public class ResourceRoadie {
 
             return null;
         }
-        if( !this.authenticator.authorize( message, authentication,
-                behaviorType)){
+        if( !this.authorize( message, authentication, behaviorType)){
 
             throw new IllegalAccessError( String.format(
                     "Authentication '%s' does not have '%s' access to " +
@@ -46,6 +48,22 @@ public class ResourceRoadie {
         return message;
     }
 
+    /**
+     * Checks if authentication may run a behavior against a message already
+     * accessed.
+     *
+     * @param message Message to check.
+     * @param authentication Authentication requesting access.
+     * @param behaviorType Behavior to execute.
+     * @return True if access is allowed.
+     */
+    public boolean authorize( Message message, String authentication,
+                              BehaviorType behaviorType){
+
+        return this.authenticator.authorize( message, authentication,
+                behaviorType);
+    }
+
     /**
      * Checks if authentication has access to an existing message.  If so, that
      * message's metadata is used.  Otherwise a new message is created and
@@ -59,10 +77,28 @@ public class ResourceRoadie {
      * @param behavior New behavior.
      * @param authentication Authenticates access to messages.
      */
-    @SuppressWarnings("unchecked")
     public Message storeMessage(Message message, Behavior behavior,
                              String authentication) {
 
+        message= this.prepareMessage( message, behavior, authentication);
+        this.updateMessage(message);
+
+        return message;
+    }
+
+    /**
+     * Merges a new message and behavior into the existing message as
+     * 'ResourceRoadie.storeMessage' does, without writing the result.
+     *
+     * @param message New message to merge.
+     * @param behavior New behavior.
+     * @param authentication Authenticates access to messages.
+     * @return Merged message.
+     */
+    @SuppressWarnings("unchecked")
+    public Message prepareMessage(Message message, Behavior behavior,
+                                  String authentication) {
+
         // TODO: Revisit null behavior handling.
 
         assert authentication!= null:
@@ -84,7 +120,6 @@ public class ResourceRoadie {
 
             message.getBehavior().put( behavior.getBehaviorType(), behavior);
         }
-        this.updateMessage(message);
 
         return message;
     }
@@ -112,6 +147,39 @@ public class ResourceRoadie {
                 message.getMessageKey().getResourceName()).delete( message);
     }
 
+    /**
+     * Lists the messages stored under a user context.
+     *
+     * @param resourceName Resource holding the messages.
+     * @param userContext User context to list.
+     * @return Message keys, ordered by user key.
+     */
+    public List<MessageKey> listMessages( String resourceName,
+                                          String userContext){
+
+        Resource resource= this.resources.get( resourceName);
+        if( resource== null){
+
+            String msg= String.format( "No resource named '%s'.",
+                    resourceName);
+            this.logger.log( Level.SEVERE, msg);
+
+            throw new IllegalArgumentException( msg);
+        }
+        String prefix= new Message( new MessageKey( String.format(
+                "//%s/%s/", resourceName, userContext))).resourceKey();
+        List<String> keys= resource.list( prefix);
+        List<MessageKey> messageKeys= new ArrayList<>( keys.size());
+        for( String key: keys){
+
+            messageKeys.add( new MessageKey( String.format( "//%s/%s/%s",
+                    resourceName, userContext,
+                    key.substring( prefix.length()))));
+        }
+
+        return messageKeys;
+    }
+
     /**
      * Add a resource.  Please note there is only one resource per-resource
      * name.
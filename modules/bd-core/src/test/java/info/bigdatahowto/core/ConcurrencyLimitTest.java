@@ -0,0 +1,93 @@
+package info.bigdatahowto.core;
+
+import org.junit.Test;
+
+/**
+ * @author timfulmer
+ */
+public class ConcurrencyLimitTest {
+
+    @Test
+    public void testFixed(){
+
+        ConcurrencyLimit limit= new ConcurrencyLimit( 2);
+        assert limit.tryAcquire(): "ConcurrencyLimit is not allowing jobs.";
+        assert limit.tryAcquire(): "ConcurrencyLimit is not allowing jobs.";
+        assert !limit.tryAcquire(): "ConcurrencyLimit is not limiting jobs.";
+
+        limit.record( 1000000000L);
+        limit.drop();
+        assert limit.getLimit()== 2: "Fixed limit is adapting.";
+
+        limit.release( 1);
+        assert limit.tryAcquire(): "ConcurrencyLimit is not releasing jobs.";
+    }
+
+    @Test
+    public void testAdaptive_Grow(){
+
+        ConcurrencyLimit limit= ConcurrencyLimit.adaptive( 4, 1, 100);
+        for( int i= 0; i< 200; i++){
+
+            this.saturate( limit);
+            limit.record( 10000000L);
+            limit.release( limit.getLimit());
+        }
+
+        assert limit.getLimit()== 100:
+                "Adaptive limit is not growing under steady latency.";
+    }
+
+    @Test
+    public void testAdaptive_Idle(){
+
+        ConcurrencyLimit limit= ConcurrencyLimit.adaptive( 4, 1, 100);
+        for( int i= 0; i< 200; i++){
+
+            limit.tryAcquire();
+            limit.record( 10000000L);
+            limit.release( 1);
+        }
+
+        assert limit.getLimit()== 4:
+                "Adaptive limit is growing without demand.";
+    }
+
+    @Test
+    public void testAdaptive_Shrink(){
+
+        ConcurrencyLimit limit= ConcurrencyLimit.adaptive( 50, 1, 100);
+        this.saturate( limit);
+        limit.record( 10000000L);
+        limit.release( limit.getLimit());
+        for( int i= 0; i< 50; i++){
+
+            this.saturate( limit);
+            limit.record( 100000000L);
+            limit.release( limit.getLimit());
+        }
+
+        assert limit.getLimit()< 25:
+                "Adaptive limit is not shrinking as latency climbs.";
+    }
+
+    @Test
+    public void testAdaptive_Drop(){
+
+        ConcurrencyLimit limit= ConcurrencyLimit.adaptive( 10, 2, 100);
+        limit.drop();
+        assert limit.getLimit()== 9: "Adaptive limit is not dropping.";
+
+        for( int i= 0; i< 50; i++){
+
+            limit.drop();
+        }
+        assert limit.getLimit()== 2:
+                "Adaptive limit is dropping below minimum.";
+    }
+
+    private void saturate(ConcurrencyLimit limit){
+
+        while( limit.tryAcquire()){}
+    }
+}
@@ -0,0 +1,143 @@
+package info.bigdatahowto.core;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.util.*;
+
+import static info.bigdatahowto.core.TestUtils.fakeJob;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author timfulmer
+ */
+public class DeadLetterRoadieTest {
+
+    private final Map<String,String> hackery= new TreeMap<>();
+    private Resource resource;
+    private Queue queueMock;
+    private DeadLetterRoadie deadLetterRoadie;
+
+    @Captor
+    private ArgumentCaptor<List<Queue.PushTuple>> pushTuplesCaptor;
+
+    @Before
+    public void before(){
+
+        MockitoAnnotations.initMocks( this);
+        this.hackery.clear();
+        this.resource= new Resource( "test-resource") {
+            @Override
+            public void write(String key, String value) {
+                hackery.put(key,value);
+            }
+
+            @Override
+            public String read(String key) {
+                return hackery.get(key);
+            }
+
+            @Override
+            public List<String> list(String prefix) {
+                List<String> keys= new ArrayList<>();
+                for( String key: hackery.keySet()){
+                    if( key.startsWith( prefix)) keys.add( key);
+                }
+                return keys;
+            }
+
+            @Override
+            public boolean remove(String key) {
+                return hackery.remove( key)!= null;
+            }
+        };
+        this.queueMock= mock( Queue.class);
+        this.deadLetterRoadie= new DeadLetterRoadie( this.resource,
+                this.queueMock);
+    }
+
+    @Test
+    public void testReplay(){
+
+        Set<UUID> parked= new HashSet<>();
+        for( int i= 0; i< 5; i++){
+
+            Job job= fakeJob();
+            job.setStatus( "test-status");
+            this.resource.put( new DeadLetter( job));
+            parked.add( job.getUuid());
+        }
+        Job other= fakeJob( new Message( new MessageKey(
+                "//test-resource/other-userContext/test-key")));
+        this.resource.put( new DeadLetter( other));
+
+        List<UUID> listed= this.deadLetterRoadie.list(
+                TestUtils.MESSAGE_USER_CONTEXT_KEY);
+        assert parked.equals( new HashSet<>( listed)):
+                "DeadLetterRoadie.list is not indexing by user context.";
+
+        int replayed= this.deadLetterRoadie.replay(
+                TestUtils.MESSAGE_USER_CONTEXT_KEY, 2, 2);
+        assert replayed== 5: "DeadLetterRoadie.replay is not replaying.";
+        assert this.deadLetterRoadie.list(
+                TestUtils.MESSAGE_USER_CONTEXT_KEY).isEmpty():
+                "DeadLetterRoadie.replay is not removing dead letters.";
+        assert this.deadLetterRoadie.list( "other-userContext").size()== 1:
+                "DeadLetterRoadie.replay is replaying other contexts.";
+
+        verify( this.queueMock, times( 3)).pushAll(
+                this.pushTuplesCaptor.capture(), eq( "test-authentication"));
+        Set<UUID> pushed= new HashSet<>();
+        for( List<Queue.PushTuple> pushTuples:
+                this.pushTuplesCaptor.getAllValues()){
+
+            for( Queue.PushTuple pushTuple: pushTuples){
+
+                pushed.add( pushTuple.jobUuid);
+                assert BehaviorType.Persist== pushTuple.behaviorType:
+                        "DeadLetterRoadie.replay is not keeping behavior.";
+                assert pushTuple.message.getMessageKey().getKey().equals(
+                        TestUtils.MESSAGE_KEY):
+                        "DeadLetterRoadie.replay is not keeping message key.";
+            }
+        }
+        assert parked.equals( pushed):
+                "DeadLetterRoadie.replay is not keeping job UUIDs.";
+    }
+
+    @Test
+    public void testReplay_Batch(){
+
+        Job job= fakeJob();
+        List<Job.Entry> entries= new ArrayList<>();
+        for( int i= 0; i< 2; i++){
+
+            entries.add( new Job.Entry( new MessageKey(
+                    TestUtils.MESSAGE_KEY+ "-"+ i)));
+        }
+        entries.get( 0).setState( JobState.Complete);
+        job.setEntries( entries);
+        this.resource.put( new DeadLetter( job));
+
+        this.deadLetterRoadie.replay( TestUtils.MESSAGE_USER_CONTEXT_KEY);
+
+        verify( this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq( "test-authentication"));
+        Queue.PushTuple pushTuple= this.pushTuplesCaptor.getValue().get( 0);
+        assert pushTuple.entries!= null && pushTuple.entries.size()== 2:
+                "DeadLetterRoadie.replay is not keeping batch entries.";
+        assert !pushTuple.entries.get( 0).isPending()
+                && pushTuple.entries.get( 1).isPending():
+                "DeadLetterRoadie.replay is not keeping entry state.";
+    }
+
+    @Test
+    public void testReplay_Empty(){
+
+        assert this.deadLetterRoadie.replay( "empty-userContext")== 0:
+                "DeadLetterRoadie.replay is not handling empty contexts.";
+    }
+}
@@ -65,6 +65,23 @@ public class JobTest {
                 "Job.incrementTries is not implemented correctly.";
     }
 
+    @Test
+    public void testChildUuid(){
+
+        Job job= fakeJob(fakeMessage());
+        assert job.childUuid( "0").equals( job.childUuid( "0")):
+                "Job.childUuid is not deterministic.";
+        assert !job.childUuid( "0").equals( job.childUuid( "1")):
+                "Job.childUuid is not using the child path.";
+        assert !job.childUuid( "0").equals( fakeJob(fakeMessage()).childUuid(
+                "0")): "Job.childUuid is not using the job UUID.";
+
+        assert !job.fannedOut( "0"): "Job.fanOut is not initialized correctly.";
+        job.recordFanOut( "0");
+        assert job.fannedOut( "0") && !job.fannedOut( "1"):
+                "Job.recordFanOut is not implemented correctly.";
+    }
+
     @Test
     public void testToQueued() throws NoSuchMethodException {
 
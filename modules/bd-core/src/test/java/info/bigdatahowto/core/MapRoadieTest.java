@@ -0,0 +1,165 @@
+package info.bigdatahowto.core;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author timfulmer
+ */
+public class MapRoadieTest {
+
+    private static final String CONTEXT= "test-userContext";
+
+    private final Behavior behavior= new Behavior( BehaviorType.Persist,
+            "test-behavior");
+
+    private Resource resourceMock;
+    private ResourceRoadie resourceRoadieMock;
+    private Processor processorMock;
+    private MapRoadie mapRoadie;
+    private List<MessageKey> messageKeys;
+
+    @Captor
+    private ArgumentCaptor<List<Queue.PushTuple>> pushTuplesCaptor;
+
+    @Before
+    public void before(){
+
+        MockitoAnnotations.initMocks( this);
+        this.resourceMock= mock( Resource.class);
+        this.resourceRoadieMock= mock( ResourceRoadie.class);
+        this.processorMock= mock( Processor.class);
+        this.mapRoadie= new MapRoadie( this.resourceMock,
+                this.resourceRoadieMock, this.processorMock);
+        this.mapRoadie.setRangeSize( 2);
+        // tf - Mocks are not safe to call from several threads.
+        this.mapRoadie.setParallelism( 1);
+
+        this.messageKeys= new ArrayList<>();
+        for( String userKey: new String[]{ "a", "b", "c", "d", "e"}){
+
+            this.messageKeys.add( new MessageKey( "//test-resource/"+
+                    CONTEXT+ "/"+ userKey));
+        }
+        when( this.resourceRoadieMock.listMessages( "test-resource",
+                CONTEXT)).thenReturn( this.messageKeys);
+    }
+
+    @Test
+    public void testMap(){
+
+        MapJob mapJob= this.mapRoadie.create( "//test-resource/"+ CONTEXT+
+                "/", this.behavior, "test-authentication");
+        assert "test-resource".equals( mapJob.getResourceName()):
+                "MapRoadie.create is not parsing resource name.";
+        assert CONTEXT.equals( mapJob.getUserContext()):
+                "MapRoadie.create is not parsing user context.";
+
+        int processed= this.mapRoadie.run( mapJob);
+
+        assert processed== 5: "MapRoadie.run is not processing every message.";
+        assert mapJob.getRanges().size()== 3:
+                "MapRoadie.run is not splitting key ranges.";
+        for( MapJob.Range range: mapJob.getRanges()){
+
+            assert range.isDone(): "MapRoadie.run is not checkpointing ranges.";
+        }
+        assert "e".equals( mapJob.getRanges().get( 2).getCheckpoint()):
+                "MapRoadie.run is not recording last key.";
+        for( MessageKey messageKey: this.messageKeys){
+
+            verify( this.processorMock).processMessage( messageKey,
+                    this.behavior, "test-authentication");
+        }
+        verify( this.resourceMock, atLeast( 5)).put( mapJob);
+    }
+
+    @Test
+    public void testResume(){
+
+        MapJob mapJob= new MapJob( "test-resource", CONTEXT, this.behavior,
+                "test-authentication");
+        List<MapJob.Range> ranges= new ArrayList<>();
+        MapJob.Range done= new MapJob.Range( "", "c");
+        done.setDone( true);
+        ranges.add( done);
+        MapJob.Range partial= new MapJob.Range( "c", null);
+        partial.setCheckpoint( "c");
+        ranges.add( partial);
+        mapJob.setRanges( ranges);
+        when( this.resourceMock.get( any( MapJob.class))).thenReturn( mapJob);
+
+        int processed= this.mapRoadie.resume( mapJob.getUuid());
+
+        assert processed== 2: "MapRoadie.resume is not skipping checkpoints.";
+        verify( this.processorMock, never()).processMessage(
+                this.messageKeys.get( 2), this.behavior,
+                "test-authentication");
+        verify( this.processorMock).processMessage( this.messageKeys.get( 3),
+                this.behavior, "test-authentication");
+        verify( this.processorMock).processMessage( this.messageKeys.get( 4),
+                this.behavior, "test-authentication");
+    }
+
+    @Test
+    public void testSubmit(){
+
+        Queue queueMock= mock( Queue.class);
+        this.mapRoadie= new MapRoadie( this.resourceMock,
+                this.resourceRoadieMock, this.processorMock, queueMock);
+        this.mapRoadie.setRangeSize( 2);
+        MapJob mapJob= new MapJob( "test-resource", CONTEXT, this.behavior,
+                "test-authentication");
+        List<UUID> uuids= new ArrayList<>();
+        for( int i= 0; i< 3; i++){
+
+            uuids.add( UUID.randomUUID());
+        }
+        when( queueMock.pushAll( anyListOf( Queue.PushTuple.class),
+                eq( "test-authentication"))).thenReturn( uuids);
+
+        this.mapRoadie.submit( mapJob);
+
+        verify( queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq( "test-authentication"));
+        List<Queue.PushTuple> pushTuples= this.pushTuplesCaptor.getValue();
+        assert pushTuples.size()== 3:
+                "MapRoadie.submit is not queueing a job per range.";
+        int entries= 0;
+        for( Queue.PushTuple pushTuple: pushTuples){
+
+            assert this.behavior.equals( pushTuple.behavior):
+                    "MapRoadie.submit is not carrying the map behavior.";
+            assert CONTEXT.equals( pushTuple.message.getMessageKey()
+                    .getUserContext()): "MapRoadie.submit is not queueing " +
+                    "range jobs under the map's user context.";
+            entries+= pushTuple.entries.size();
+        }
+        assert entries== 5: "MapRoadie.submit is not covering every message.";
+        assert uuids.get( 1).equals( mapJob.getRanges().get( 1).getJobUuid()):
+                "MapRoadie.submit is not recording range jobs.";
+        verifyZeroInteractions( this.processorMock);
+
+        // tf - Queued ranges are neither queued again nor run in place.
+        this.mapRoadie.submit( mapJob);
+        verify( queueMock, times( 1)).pushAll(
+                anyListOf( Queue.PushTuple.class), anyString());
+        assert this.mapRoadie.run( mapJob)== 0:
+                "MapRoadie.run is not skipping queued ranges.";
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testResume_Missing(){
+
+        this.mapRoadie.resume( UUID.randomUUID());
+    }
+}
@@ -0,0 +1,143 @@
+package info.bigdatahowto.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static info.bigdatahowto.core.TestUtils.fakeJob;
+import static info.bigdatahowto.core.TestUtils.fakeMessage;
+import static org.mockito.Mockito.*;
+
+/**
+ * @author timfulmer
+ */
+public class ProcessorPipelineTest {
+
+    private final ProcessingResult processingResultMock=
+            mock( ProcessingResult.class);
+
+    private Queue queueMock;
+    private ResourceRoadie resourceRoadieMock;
+    private ProcessorPipeline processorPipeline;
+    private RuntimeException processError;
+
+    @Before
+    public void before(){
+
+        this.queueMock= mock( Queue.class);
+        this.resourceRoadieMock= mock( ResourceRoadie.class);
+
+        Processor processor= new Processor(this.queueMock,
+                this.resourceRoadieMock) {
+            @Override
+            protected ProcessingResult process(Message message,
+                                               BehaviorType behaviorType) {
+                if( processError!= null){
+                    throw processError;
+                }
+                return processingResultMock;
+            }
+
+            @Override
+            protected ProcessingResult error(Message message, int tries) {
+                return processingResultMock;
+            }
+        };
+        this.processorPipeline= new ProcessorPipeline( processor);
+        this.processorPipeline.setShutdownMillis( 1000);
+        // tf - Stubbed mocks are not safe to call from several threads.
+        this.processorPipeline.setFetchThreads( 1);
+        this.processorPipeline.setProcessThreads( 1);
+        this.processorPipeline.setWriteThreads( 1);
+    }
+
+    @After
+    public void after(){
+
+        this.processorPipeline.stop();
+    }
+
+    @Test
+    public void testProcessorPipeline(){
+
+        Job job1= fakeJob();
+        Job job2= fakeJob();
+        when( this.queueMock.pop( anyLong(), any( TimeUnit.class)))
+                .thenReturn( job1, job2, (Job) null);
+        Message message= this.fakeBehaviorMessage();
+        when( this.resourceRoadieMock.accessMessage( any( Message.class),
+                anyString(), eq( BehaviorType.Persist))).thenReturn( message);
+        when( this.processingResultMock.isContinueProcessing()).thenReturn(
+                true);
+        when( this.processingResultMock.getMessage()).thenReturn( message);
+
+        this.processorPipeline.start();
+        verify( this.queueMock, timeout( 1000)).complete( job1);
+        verify( this.queueMock, timeout( 1000)).complete( job2);
+        verify( this.resourceRoadieMock, times( 2)).updateMessage( message);
+    }
+
+    @Test
+    public void testProcessorPipeline_Error(){
+
+        Job job= fakeJob();
+        when( this.queueMock.pop( anyLong(), any( TimeUnit.class)))
+                .thenReturn( job, (Job) null);
+        when( this.resourceRoadieMock.accessMessage( any( Message.class),
+                anyString(), eq( BehaviorType.Persist))).thenReturn(
+                this.fakeBehaviorMessage());
+        this.processError= new RuntimeException( "test-error");
+
+        this.processorPipeline.start();
+        verify( this.queueMock, timeout( 1000)).error( eq( job), anyString(),
+                eq( false), eq( 1000L));
+        verify( this.queueMock, never()).complete( job);
+    }
+
+    @Test
+    public void testProcessorPipeline_NoBehavior(){
+
+        Job job= fakeJob();
+        when( this.queueMock.pop( anyLong(), any( TimeUnit.class)))
+                .thenReturn( job, (Job) null);
+        when( this.resourceRoadieMock.accessMessage( any( Message.class),
+                anyString(), eq( BehaviorType.Persist))).thenReturn(
+                fakeMessage());
+
+        this.processorPipeline.start();
+        verify( this.queueMock, timeout( 1000)).complete( job);
+        verify( this.resourceRoadieMock, never()).updateMessage(
+                any( Message.class));
+    }
+
+    @Test
+    public void testStop(){
+
+        Job job= fakeJob();
+        when( this.queueMock.pop( anyLong(), any( TimeUnit.class)))
+                .thenReturn( job, (Job) null);
+        when( this.resourceRoadieMock.accessMessage( any( Message.class),
+                anyString(), eq( BehaviorType.Persist))).thenReturn(
+                this.fakeBehaviorMessage());
+
+        this.processorPipeline.start();
+        verify( this.resourceRoadieMock, timeout( 1000)).accessMessage(
+                any( Message.class), anyString(), eq( BehaviorType.Persist));
+        this.processorPipeline.stop();
+
+        assert !this.processorPipeline.isRunning():
+                "ProcessorPipeline.stop is not stopping stages.";
+        verify( this.queueMock).complete( job);
+    }
+
+    private Message fakeBehaviorMessage(){
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put( behavior.getBehaviorType(), behavior);
+
+        return message;
+    }
+}
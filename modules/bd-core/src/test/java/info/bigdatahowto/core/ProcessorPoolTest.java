@@ -0,0 +1,159 @@
+package info.bigdatahowto.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author timfulmer
+ */
+public class ProcessorPoolTest {
+
+    private Processor processorMock;
+    private ProcessorPool processorPool;
+
+    @Before
+    public void before(){
+
+        this.processorMock= mock( Processor.class);
+        this.processorPool= new ProcessorPool( this.processorMock, 4);
+        this.processorPool.setShutdownMillis( 1000);
+    }
+
+    @After
+    public void after(){
+
+        this.processorPool.stop();
+    }
+
+    @Test
+    public void testProcessorPool() throws InterruptedException {
+
+        final AtomicInteger pulls= new AtomicInteger();
+        when( this.processorMock.pullJob( anyLong(), any( TimeUnit.class)))
+                .thenAnswer( new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        return pulls.incrementAndGet()% 3!= 0;
+                    }
+                });
+        this.processorPool.start();
+        assert this.processorPool.isRunning():
+                "ProcessorPool.start is not starting workers.";
+        verify( this.processorMock, timeout( 1000).atLeast( 4)).pullJob(
+                anyLong(), any( TimeUnit.class));
+
+        this.processorPool.stop();
+        assert !this.processorPool.isRunning():
+                "ProcessorPool.stop is not stopping workers.";
+        int stopped= pulls.get();
+        Thread.sleep( 50);
+        assert stopped== pulls.get():
+                "ProcessorPool.stop is not stopping workers.";
+    }
+
+    @Test
+    public void testMaximumInFlight(){
+
+        final AtomicInteger running= new AtomicInteger();
+        final AtomicInteger maximum= new AtomicInteger();
+        when( this.processorMock.pullJob( anyLong(), any( TimeUnit.class)))
+                .thenAnswer( new Answer<Boolean>() {
+                    @Override
+                    public Boolean answer(InvocationOnMock invocation)
+                            throws Throwable {
+                        int current= running.incrementAndGet();
+                        maximum.set( Math.max( maximum.get(), current));
+                        Thread.sleep( 5);
+                        running.decrementAndGet();
+                        return true;
+                    }
+                });
+        this.processorPool.setMaximumInFlight( 2);
+        this.processorPool.start();
+        verify( this.processorMock, timeout( 1000).atLeast( 20)).pullJob(
+                anyLong(), any( TimeUnit.class));
+
+        assert maximum.get()<= 2:
+                "ProcessorPool is not bounding jobs in flight.";
+    }
+
+    @Test
+    public void testBatch(){
+
+        when( this.processorMock.pullJobs( 3)).thenReturn( 3);
+        this.processorPool.setBatchSize( 3);
+        this.processorPool.start();
+
+        verify( this.processorMock, timeout( 1000).atLeast( 4)).pullJobs( 3);
+    }
+
+    @Test
+    public void testAdaptive(){
+
+        when( this.processorMock.pullJobs( 1)).thenReturn( 1);
+        this.processorPool.setAdaptive( true);
+        this.processorPool.setMaximumInFlight( 3);
+        assert this.processorPool.getLimit()== 0:
+                "ProcessorPool is reporting a limit before start.";
+        this.processorPool.start();
+
+        verify( this.processorMock, timeout( 1000).atLeast( 8)).pullJobs( 1);
+        verify( this.processorMock, never()).pullJob( anyLong(),
+                any( TimeUnit.class));
+        assert this.processorPool.getLimit()>= 1
+                && this.processorPool.getLimit()<= 3:
+                "ProcessorPool is not bounding its adaptive limit.";
+    }
+
+    @Test
+    public void testError(){
+
+        when( this.processorMock.pullJob( anyLong(), any( TimeUnit.class)))
+                .thenThrow( new RuntimeException( "test-error"));
+        this.processorPool.start();
+
+        verify( this.processorMock, timeout( 1000).atLeast( 8)).pullJob(
+                anyLong(), any( TimeUnit.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testVirtualThreads(){
+
+        final AtomicInteger running= new AtomicInteger();
+        final AtomicInteger maximum= new AtomicInteger();
+        Job job= TestUtils.fakeJob();
+        when( this.processorMock.popJobs( anyInt())).thenReturn(
+                Collections.singletonList( Collections.singletonList( job)));
+        doAnswer( new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                int current= running.incrementAndGet();
+                maximum.set( Math.max( maximum.get(), current));
+                Thread.sleep( 20);
+                running.decrementAndGet();
+                return null;
+            }
+        }).when( this.processorMock).processJobs( anyList());
+        this.processorPool.setVirtualThreads( true);
+        this.processorPool.setMaximumInFlight( 8);
+        this.processorPool.start();
+        verify( this.processorMock, timeout( 1000).atLeast( 40)).processJobs(
+                anyList());
+
+        assert maximum.get()> 4:
+                "ProcessorPool is not running jobs apart from workers.";
+        assert maximum.get()<= 8:
+                "ProcessorPool is not bounding jobs in flight.";
+    }
+}
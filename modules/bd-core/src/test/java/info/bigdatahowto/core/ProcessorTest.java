@@ -2,10 +2,19 @@ package info.bigdatahowto.core;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static info.bigdatahowto.core.TestUtils.fakeJob;
 import static info.bigdatahowto.core.TestUtils.fakeMessage;
@@ -23,9 +32,13 @@ public class ProcessorTest {
     private ResourceRoadie resourceRoadieMock;
     private Processor processor;
 
+    @Captor
+    private ArgumentCaptor<List<Queue.PushTuple>> pushTuplesCaptor;
+
     @Before
     public void before(){
 
+        MockitoAnnotations.initMocks( this);
         this.queueMock= mock( Queue.class);
         this.resourceRoadieMock= mock( ResourceRoadie.class);
 
@@ -72,11 +85,463 @@ public class ProcessorTest {
 
         this.processor.pullJob();
 
-        verify(this.queueMock).push(any(UUID.class), eq(message),
-                eq(BehaviorType.Persist), eq(job.getJobOwner()));
+        verifyPushAll(job, message);
+        verify(this.queueMock).complete( job);
+    }
+
+    @Test
+    public void testProcessor_ParallelChildren(){
+
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        final Message message= this.fakeChildMessages( job, 8);
+        final AtomicInteger running= new AtomicInteger();
+        final AtomicInteger maximum= new AtomicInteger();
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenAnswer( new Answer<Message>() {
+            @Override
+            public Message answer(InvocationOnMock invocation)
+                    throws Throwable {
+                int current= running.incrementAndGet();
+                synchronized( maximum){
+                    maximum.set( Math.max( maximum.get(), current));
+                }
+                Thread.sleep( 20);
+                running.decrementAndGet();
+                return message;
+            }
+        });
+        this.processor.setChildConcurrency( 4);
+
+        this.processor.pullJob();
+
+        assert maximum.get()> 1: "Processor is not storing children in " +
+                "parallel.";
+        assert maximum.get()<= 4: "Processor is not bounding child " +
+                "concurrency.";
+        verify(this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        assert this.pushTuplesCaptor.getValue().size()== 8:
+                "Processor is not queueing every child.";
+        verify(this.queueMock).complete( job);
+    }
+
+    @Test
+    public void testProcessor_ChildFailure(){
+
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= this.fakeChildMessages( job, 8);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( message, message, message).thenThrow(
+                new RuntimeException( "test-error")).thenReturn( message);
+
+        this.processor.pullJob();
+
+        verify(this.queueMock, never()).pushAll(
+                anyListOf( Queue.PushTuple.class), anyString());
+        verify(this.queueMock, never()).complete( job);
+        verify(this.queueMock).error( eq(job), anyString(), eq(false),
+                anyLong());
+    }
+
+    @Test
+    public void testProcessor_Retry(){
+
+        Job job= fakeJob();
+        // tf - A previous try queued the first child before failing.
+        job.recordFanOut( "0");
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= this.fakeChildMessages( job, 3);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( message);
+        this.processor.setInlineDepth( 0);
+
+        this.processor.pullJob();
+
+        verify(this.resourceRoadieMock, times( 2)).storeMessage(
+                any(Message.class), any(Behavior.class),
+                eq(job.getJobOwner()));
+        verify(this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        List<Queue.PushTuple> pushTuples= this.pushTuplesCaptor.getValue();
+        assert pushTuples.size()== 2: "Processor is not skipping children " +
+                "queued by a previous try.";
+        assert job.childUuid( "1").equals( pushTuples.get( 0).jobUuid)
+                && job.childUuid( "2").equals( pushTuples.get( 1).jobUuid):
+                "Processor is not deriving child job UUIDs.";
+        assert job.fannedOut( "1") && job.fannedOut( "2"):
+                "Processor is not recording fan out progress.";
+        verify(this.queueMock).complete( job);
+    }
+
+    @Test
+    public void testProcessor_BatchChildren(){
+
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= this.fakeChildMessages( job, 20);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( message);
+        this.processor.setInlineDepth( 0);
+        this.processor.setBatchJobSize( 15);
+
+        this.processor.pullJob();
+
+        verify(this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        List<Queue.PushTuple> pushTuples= this.pushTuplesCaptor.getValue();
+        assert pushTuples.size()== 2: "Processor is not batching children.";
+        assert pushTuples.get( 0).entries.size()== 15
+                && pushTuples.get( 1).entries.size()== 5:
+                "Processor is not splitting batch jobs.";
+        assert job.childUuid( "batch-0").equals( pushTuples.get( 0).jobUuid):
+                "Processor is not deriving batch job UUIDs.";
+        assert job.fannedOut( "19"): "Processor is not recording batched " +
+                "children.";
+    }
+
+    @Test
+    public void testProcessor_Batch(){
+
+        Job job= fakeJob();
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        List<Job.Entry> entries= new ArrayList<>();
+        for( int i= 0; i< 3; i++){
+
+            entries.add( new Job.Entry( new MessageKey(
+                    message.getKey()+ "-"+ i)));
+        }
+        entries.get( 2).setState( JobState.Complete);
+        job.setEntries( entries);
+        when(this.queueMock.pop()).thenReturn( job);
+        when(this.queueMock.lockKey( anyString())).thenReturn( true, false);
+        when(this.resourceRoadieMock.accessMessage( any( Message.class),
+                eq(job.getJobOwner()), eq(BehaviorType.Persist))).thenReturn(
+                message);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+
+        this.processor.pullJob();
+
+        // tf - Second entry's key is busy, third completed on a previous try.
+        verify(this.resourceRoadieMock, times( 1)).updateMessage( message);
+        verify(this.queueMock, times( 1)).releaseKey( anyString());
+        verify(this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        List<Queue.PushTuple> pushTuples= this.pushTuplesCaptor.getValue();
+        assert pushTuples.size()== 1 && entries.get( 1).getMessageKey().equals(
+                pushTuples.get( 0).message.getMessageKey()):
+                "Processor is not handing off busy batch entries.";
+        assert entries.get( 0).getState()== JobState.Complete:
+                "Processor is not recording batch entry status.";
+        assert job.childUuid( "entry-1").equals( entries.get( 1).getJobUuid())
+                && !entries.get( 1).isPending():
+                "Processor is not recording handed off batch entries.";
+        verify(this.queueMock).complete( job);
+    }
+
+    @Test
+    public void testProcessor_BatchWriteFailure(){
+
+        Job job= fakeJob();
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        job.setEntries( Collections.singletonList( new Job.Entry(
+                message.getMessageKey())));
+        when(this.queueMock.pop()).thenReturn( job);
+        when(this.queueMock.lockKey( anyString())).thenReturn( true);
+        when(this.resourceRoadieMock.accessMessage( any( Message.class),
+                eq(job.getJobOwner()), eq(BehaviorType.Persist))).thenReturn(
+                message);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+        doThrow( new RuntimeException( "test-error")).when(
+                this.resourceRoadieMock).updateMessage( message);
+
+        this.processor.pullJob();
+
+        // tf - Failed writing, the batch job retries rather than handing the
+        //  entry to its own job.
+        verify(this.queueMock, never()).pushAll(
+                anyListOf( Queue.PushTuple.class), anyString());
+        assert job.getEntries().get( 0).isPending():
+                "Processor is not leaving failed batch entries pending.";
+        verify(this.queueMock).releaseKey( message.getKey());
+        verify(this.queueMock).error( eq(job), anyString(), eq(false),
+                anyLong());
+    }
+
+    @Test
+    public void testProcessor_MapBusyEntry(){
+
+        Job job= fakeJob();
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-map");
+        job.setBehavior( behavior);
+        job.setEntries( Collections.singletonList( new Job.Entry(
+                message.getMessageKey())));
+        when(this.queueMock.pop()).thenReturn( job);
+        when(this.queueMock.lockKey( anyString())).thenReturn( false);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                eq(behavior), eq(job.getJobOwner()))).thenReturn( message);
+
+        this.processor.pullJob();
+
+        // tf - Busy entry is queued under a UUID derived from the map job.
+        UUID childUuid= job.childUuid( "entry-0");
+        verify(this.queueMock).push( childUuid, message,
+                BehaviorType.Persist, job.getJobOwner());
+        verify(this.queueMock, never()).pushAll(
+                anyListOf( Queue.PushTuple.class), anyString());
+        assert childUuid.equals( job.getEntries().get( 0).getJobUuid()):
+                "Processor is not recording jobs map entries were queued as.";
+        verify(this.queueMock).complete( job);
+    }
+
+    @Test
+    public void testProcessor_Inline(){
+
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= this.fakeChildMessages( job, 1);
+        Message child= fakeMessage();
+        when(this.queueMock.lockKey( anyString())).thenReturn( true);
+        when(this.resourceRoadieMock.prepareMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( child);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( message);
+        this.processor.setInlineDepth( 1);
+
+        this.processor.pullJob();
+
+        // tf - Child runs inline, its own child is one level too deep.
+        verify(this.queueMock).lockKey( anyString());
+        verify(this.queueMock).releaseKey( anyString());
+        verify(this.resourceRoadieMock).prepareMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner()));
+        verify(this.resourceRoadieMock, times( 1)).storeMessage(
+                any(Message.class), any(Behavior.class),
+                eq(job.getJobOwner()));
+        verify(this.queueMock).pushAll( this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        assert this.pushTuplesCaptor.getValue().size()== 1:
+                "Processor is not queueing children past the inline depth.";
         verify(this.queueMock).complete( job);
     }
 
+    @Test
+    public void testProcessor_InlineSubtreeFailure(){
+
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= this.fakeChildMessages( job, 1);
+        when(this.queueMock.lockKey( anyString())).thenReturn( true);
+        when(this.resourceRoadieMock.prepareMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( fakeMessage());
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                any(Behavior.class), eq(job.getJobOwner())
+        )).thenReturn( message);
+        doThrow( new RuntimeException( "test-error")).when( this.queueMock)
+                .pushAll( anyListOf( Queue.PushTuple.class), anyString());
+        this.processor.setInlineDepth( 1);
+
+        this.processor.pullJob();
+
+        // tf - Only the job's own message is written, the inline child is
+        //  left for the retry.
+        verify(this.resourceRoadieMock, times( 1)).updateMessage( message);
+        assert !job.fannedOut( "0"):
+                "Processor is recording a failed inline child.";
+        verify(this.queueMock).error( eq(job), anyString(), eq(false),
+                anyLong());
+    }
+
+    @Test
+    public void testProcessMessage(){
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        when(this.queueMock.lockKey( message.getKey())).thenReturn( true,
+                false);
+        when(this.resourceRoadieMock.prepareMessage(any(Message.class),
+                eq(behavior), eq("test-authentication"))).thenReturn( message);
+        when(this.resourceRoadieMock.storeMessage(any(Message.class),
+                eq(behavior), eq("test-authentication"))).thenReturn( message);
+
+        boolean processed= this.processor.processMessage(
+                message.getMessageKey(), behavior, "test-authentication");
+        assert processed: "Processor.processMessage is not running inline.";
+        verify(this.resourceRoadieMock).updateMessage( message);
+        verify(this.queueMock).releaseKey( message.getKey());
+
+        processed= this.processor.processMessage( message.getMessageKey(),
+                behavior, "test-authentication");
+        assert !processed: "Processor.processMessage is not queueing busy " +
+                "message.";
+        verify(this.queueMock).push( any(UUID.class), eq(message),
+                eq(BehaviorType.Persist), eq("test-authentication"));
+    }
+
+    private Message fakeChildMessages(Job job, int children){
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        when(this.resourceRoadieMock.accessMessage(
+                any( Message.class),
+                eq(job.getJobOwner()),
+                eq(BehaviorType.Persist)
+        )).thenReturn(message);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+        List<ProcessingResult.NewMessage> messages= new ArrayList<>(children);
+        ProcessingResult pr= new ProcessingResult();
+        pr.setMessage(message);
+        for( int i= 0; i< children; i++){
+            messages.add(pr.new NewMessage(
+                    message.getMessageKey().getUserKey()+ "-"+ i, behavior,
+                    null));
+        }
+        when(this.processingResultMock.getMessages()).thenReturn(messages);
+
+        return message;
+    }
+
+    @Test
+    public void testPullJobs(){
+
+        Job job1= fakeJob();
+        Job job2= fakeJob();
+        List<Job> jobs= new ArrayList<>(2);
+        jobs.add( job1);
+        jobs.add( job2);
+        when(this.queueMock.popBatch(10)).thenReturn( jobs);
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        when(this.resourceRoadieMock.accessMessage(
+                any( Message.class),
+                eq(job1.getJobOwner()),
+                eq(BehaviorType.Persist)
+        )).thenReturn(message);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+
+        int popped= this.processor.pullJobs( 10);
+        assert popped== 2: "Processor.pullJobs is not counting jobs.";
+
+        verify(this.queueMock).complete( job1);
+        verify(this.queueMock).complete( job2);
+    }
+
+    @Test
+    public void testPullJobs_Coalesced(){
+
+        Job job1= fakeJob();
+        Job job2= fakeJob();
+        Job job3= fakeJob( new Message( new MessageKey(
+                "//test-resource/test-userContext/test-key2")));
+        when(this.queueMock.popBatch(10)).thenReturn(
+                Arrays.asList( job1, job2, job3));
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        when(this.resourceRoadieMock.accessMessage(
+                any( Message.class),
+                eq(job1.getJobOwner()),
+                eq(BehaviorType.Persist)
+        )).thenReturn(message);
+        when(this.resourceRoadieMock.authorize( message, job2.getJobOwner(),
+                BehaviorType.Persist)).thenReturn( true);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+
+        this.processor.pullJobs( 10);
+
+        verify(this.resourceRoadieMock, times(2)).accessMessage(
+                any( Message.class), eq(job1.getJobOwner()),
+                eq(BehaviorType.Persist));
+        verify(this.resourceRoadieMock, times(2)).updateMessage( message);
+        verify(this.queueMock).complete( job1);
+        verify(this.queueMock).complete( job2);
+        verify(this.queueMock).complete( job3);
+    }
+
+    @Test
+    public void testPullJobs_CoalescedError(){
+
+        Job job1= fakeJob();
+        Job job2= fakeJob();
+        when(this.queueMock.popBatch(10)).thenReturn(
+                Arrays.asList( job1, job2));
+
+        Message message= fakeMessage();
+        Behavior behavior= new Behavior( BehaviorType.Persist, "test-value");
+        message.getBehavior().put(behavior.getBehaviorType(), behavior);
+        when(this.resourceRoadieMock.accessMessage(
+                any( Message.class),
+                eq(job1.getJobOwner()),
+                eq(BehaviorType.Persist)
+        )).thenReturn(message);
+        when(this.resourceRoadieMock.authorize( message, job2.getJobOwner(),
+                BehaviorType.Persist)).thenReturn( true);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(true);
+        when(this.processingResultMock.getMessage()).thenReturn(message);
+
+        this.processor= new Processor(this.queueMock, this.resourceRoadieMock) {
+            private int count= 0;
+            @Override
+            protected ProcessingResult process(Message message,
+                                               BehaviorType behaviorType) {
+                if( count++> 0) throw new RuntimeException();
+                return processingResultMock;
+            }
+
+            @Override
+            protected ProcessingResult error(Message message, int tries) {
+                return null;
+            }
+        };
+        this.processor.pullJobs( 10);
+
+        verify(this.resourceRoadieMock).updateMessage( message);
+        verify(this.queueMock).complete( job1);
+        verify(this.queueMock).error( eq(job2), anyString(), eq(false),
+                eq(1000L));
+    }
+
+    @Test
+    public void testPullJobs_CoalescedNullMessage(){
+
+        Job job1= fakeJob();
+        Job job2= fakeJob();
+        when(this.queueMock.popBatch(10)).thenReturn(
+                Arrays.asList( job1, job2));
+        when(this.resourceRoadieMock.accessMessage(
+                any( Message.class),
+                eq(job1.getJobOwner()),
+                eq(BehaviorType.Persist)
+        )).thenReturn( null);
+
+        this.processor.pullJobs( 10);
+
+        verify(this.queueMock).complete( job1);
+        verify(this.queueMock).complete( job2);
+    }
+
     @Test
     public void testProcessor_NullJob(){
 
@@ -94,6 +559,8 @@ public class ProcessorTest {
                 BehaviorType.Persist
         )).thenReturn( null);
         this.processor.pullJob();
+
+        verify(this.queueMock).complete( job);
     }
 
     @Test
@@ -158,8 +625,7 @@ public class ProcessorTest {
         this.processor.setResourceRoadie( this.resourceRoadieMock);
         this.processor.pullJob();
 
-        verify(this.queueMock).push(any(UUID.class), eq(message),
-                eq(BehaviorType.Persist), eq(job.getJobOwner()));
+        verifyPushAll(job, message);
     }
 
     @Test
@@ -327,4 +793,127 @@ public class ProcessorTest {
         verify(this.resourceRoadieMock).deleteMessage(any(Message.class));
         verify(this.queueMock).complete( job);
     }
+
+    private void verifyPushAll(Job job, Message message){
+
+        verify(this.queueMock).pushAll(this.pushTuplesCaptor.capture(),
+                eq(job.getJobOwner()));
+        List<Queue.PushTuple> pushTuples= this.pushTuplesCaptor.getValue();
+        assert pushTuples.size()== 1:
+                "Processor is not batching child jobs correctly.";
+        assert pushTuples.get(0).jobUuid!= null:
+                "Processor is not batching child jobs correctly.";
+        assert message.equals(pushTuples.get(0).message):
+                "Processor is not batching child jobs correctly.";
+        assert BehaviorType.Persist== pushTuples.get(0).behaviorType:
+                "Processor is not batching child jobs correctly.";
+    }
+
+    @Test
+    public void testHeartbeat(){
+
+        Processor processor= new Processor(this.queueMock,
+                this.resourceRoadieMock) {
+            @Override
+            protected ProcessingResult process(Message message,
+                                               BehaviorType behaviorType) {
+                try {
+                    Thread.sleep( 300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return processingResultMock;
+            }
+
+            @Override
+            protected ProcessingResult error(Message message, int tries) {
+                return processingResultMock;
+            }
+        };
+        processor.setHeartbeatMillis( 50);
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= fakeMessage();
+        message.getBehavior().put( BehaviorType.Persist,
+                new Behavior( BehaviorType.Persist, "test-value"));
+        when(this.resourceRoadieMock.accessMessage( any( Message.class),
+                eq(job.getJobOwner()), eq(BehaviorType.Persist)))
+                .thenReturn( message);
+        when(this.processingResultMock.isContinueProcessing()).thenReturn(
+                false);
+
+        processor.pullJob();
+
+        verify(this.queueMock, atLeastOnce()).renew( job);
+        verify(this.queueMock).complete( job);
+        reset( this.queueMock);
+        try {
+            Thread.sleep( 150);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        verify(this.queueMock, never()).renew( job);
+    }
+
+    @Test
+    public void testHeartbeat_ReleasedBeforeComplete(){
+
+        final AtomicBoolean completed= new AtomicBoolean();
+        final AtomicBoolean renewedAfter= new AtomicBoolean();
+        Processor processor= new Processor(this.queueMock,
+                this.resourceRoadieMock) {
+            @Override
+            protected ProcessingResult process(Message message,
+                                               BehaviorType behaviorType) {
+                try {
+                    Thread.sleep( 50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return processingResultMock;
+            }
+
+            @Override
+            protected ProcessingResult error(Message message, int tries) {
+                return processingResultMock;
+            }
+        };
+        processor.setHeartbeatMillis( 1);
+        Job job= fakeJob();
+        when(this.queueMock.pop()).thenReturn( job);
+        Message message= fakeMessage();
+        message.getBehavior().put( BehaviorType.Persist,
+                new Behavior( BehaviorType.Persist, "test-value"));
+        when(this.resourceRoadieMock.accessMessage( any( Message.class),
+                eq(job.getJobOwner()), eq(BehaviorType.Persist)))
+                .thenReturn( message);
+        doAnswer( new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                if( completed.get()){
+                    renewedAfter.set( true);
+                }
+                return null;
+            }
+        }).when(this.queueMock).renew( job);
+        doAnswer( new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                completed.set( true);
+                // tf - Give a renewal still running the chance to land.
+                try {
+                    Thread.sleep( 20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+        }).when(this.queueMock).complete( job);
+
+        processor.pullJob();
+
+        verify(this.queueMock, atLeastOnce()).renew( job);
+        assert !renewedAfter.get():
+                "Processor is renewing jobs once they are completed.";
+    }
 }
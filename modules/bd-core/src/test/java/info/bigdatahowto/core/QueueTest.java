@@ -2,10 +2,15 @@ package info.bigdatahowto.core;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 import static info.bigdatahowto.core.TestUtils.fakeJob;
 import static info.bigdatahowto.core.TestUtils.fakeMessage;
@@ -41,6 +46,16 @@ public class QueueTest {
                         new ResultTuple(uuid, uuid.toString());
             }
 
+            @Override
+            protected List<ResultTuple> readBatch(int max) {
+                List<ResultTuple> resultTuples= new ArrayList<>();
+                for( UUID uuid: jobs){
+                    if( resultTuples.size()== max) break;
+                    resultTuples.add( new ResultTuple(uuid, uuid.toString()));
+                }
+                return resultTuples;
+            }
+
             @Override
             protected void delete(String identifier) {
                 if( identifier!= null){
@@ -81,12 +96,105 @@ public class QueueTest {
         verify( this.resourceMock, times(4)).put(job);
     }
 
+    @Test
+    public void testPushAll(){
+
+        Message message1= fakeMessage();
+        Message message2= fakeMessage();
+        String authentication= "test-authentication";
+        List<Queue.PushTuple> pushTuples= new ArrayList<>(2);
+        pushTuples.add( new Queue.PushTuple( UUID.randomUUID(), message1,
+                BehaviorType.Persist));
+        pushTuples.add( new Queue.PushTuple( null, message2,
+                BehaviorType.Get));
+
+        List<UUID> uuids= this.queue.pushAll( pushTuples, authentication);
+        assert uuids.size()== 2: "Queue.pushAll is not writing jobs correctly.";
+        assert uuids.get( 0).equals( pushTuples.get( 0).jobUuid):
+                "Queue.pushAll is not using job UUIDs correctly.";
+        assert this.jobs.containsAll( uuids):
+                "Queue.pushAll is not writing jobs correctly.";
+
+        ArgumentCaptor<Job> captor= ArgumentCaptor.forClass( Job.class);
+        verify( this.resourceMock, times(2)).put(captor.capture());
+        for( Job job: captor.getAllValues()){
+
+            assert JobState.Queued== job.getState():
+                    "Queue.pushAll is not updating job state correctly.";
+            assert authentication.equals( job.getJobOwner()):
+                    "Queue.pushAll is not setting job owner correctly.";
+        }
+    }
+
+    @Test
+    public void testPushAll_PartialWrite(){
+
+        Queue queue= new Queue(this.resourceMock, this.cacheMock) {
+            @Override
+            protected void write(UUID uuid) {
+                if( !jobs.isEmpty()){
+                    throw new RuntimeException( "test-error");
+                }
+                jobs.add( uuid);
+            }
+
+            @Override
+            protected ResultTuple read() {
+                return null;
+            }
+
+            @Override
+            protected List<ResultTuple> readBatch(int max) {
+                return new ArrayList<>();
+            }
+
+            @Override
+            protected void delete(String identifier) {
+            }
+        };
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        for( int i= 0; i< 3; i++){
+
+            pushTuples.add( new Queue.PushTuple( UUID.randomUUID(),
+                    fakeMessage(), BehaviorType.Persist));
+        }
+
+        try{
+
+            queue.pushAll( pushTuples, "test-authentication");
+            assert false: "Queue.pushAll is not reporting write failures.";
+        }catch( RuntimeException e){
+
+            // tf - Expected.
+        }
+        ArgumentCaptor<Job> captor= ArgumentCaptor.forClass( Job.class);
+        verify( this.resourceMock, times( 5)).put( captor.capture());
+        for( Job job: captor.getAllValues()){
+
+            boolean written= job.getUuid().equals( pushTuples.get( 0).jobUuid);
+            assert written== (job.getState()== JobState.Queued):
+                    "Queue.pushAll is not marking only unwritten jobs Error.";
+        }
+    }
+
+    @Test
+    public void testPop_Timeout(){
+
+        long start= System.currentTimeMillis();
+        assert this.queue.pop( 100, TimeUnit.MILLISECONDS)== null:
+                "Queue.pop is not timing out on an empty queue.";
+        assert System.currentTimeMillis()- start>= 100:
+                "Queue.pop is not waiting for jobs.";
+    }
+
     @Test
     public void testQueue_ErrorMessage(){
 
         Job job= fakeJob();
         job.setState( JobState.Processing);
         this.queue.error(job, "test-message", true);
+
+        verify( this.resourceMock, atLeastOnce()).put( any( DeadLetter.class));
     }
 
     @Test
@@ -138,6 +246,287 @@ public class QueueTest {
         assert result!= null: "Job.clear is not clearing key cache.";
     }
 
+    @Test
+    public void testPop_Parked(){
+
+        Message message= fakeMessage();
+        String authentication= "test-authentication";
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+
+        Job job1= fakeJob();
+        job1.setUuid(UUID.randomUUID());
+        job1.setState(JobState.Queued);
+        Job job2= fakeJob();
+        job2.setUuid(popUuid());
+        job2.setState(JobState.Queued);
+        when(this.resourceMock.get( any(Job.class))).thenReturn( job1, job2);
+        when(this.cacheMock.put(message.getKey(), message.getKey())).thenReturn(
+                true, false);
+
+        Job result= this.queue.pop();
+        assert result== job1: "Queue.pop is not locking key.";
+        result= this.queue.pop();
+        assert result== null: "Queue.pop is not parking contended job.";
+
+        this.queue.complete( job1);
+        verify( this.cacheMock, never()).remove( message.getKey());
+        verify( this.cacheMock).touch( message.getKey());
+        assert JobState.Processing== job2.getState():
+                "Queue.complete is not handing off key.";
+        result= this.queue.pop();
+        assert result== job2: "Queue.pop is not returning handed off job.";
+
+        this.queue.complete( job2);
+        verify( this.cacheMock).remove( message.getKey());
+    }
+
+    @Test
+    public void testPopBatch(){
+
+        Message message1= fakeMessage();
+        Message message2= new Message( new MessageKey(
+                "//test-resource/test-userContext/test-key2"));
+        String authentication= "test-authentication";
+        this.queue.push(UUID.randomUUID(), message1, BehaviorType.Persist,
+                authentication);
+        this.queue.push(UUID.randomUUID(), message2, BehaviorType.Persist,
+                authentication);
+
+        Job job1= fakeJob( message1);
+        job1.setState(JobState.Queued);
+        Job job2= fakeJob( message2);
+        job2.setState(JobState.Queued);
+        when(this.resourceMock.get( any(Job.class))).thenReturn( job1, job2);
+        when(this.cacheMock.put(anyString(), anyString())).thenReturn( true,
+                false);
+
+        List<Job> result= this.queue.popBatch( 10);
+        assert result.size()== 1: "Queue.popBatch is not locking keys.";
+        assert result.get( 0)== job1: "Queue.popBatch is not reading jobs.";
+        assert JobState.Processing== job1.getState():
+                "Queue.popBatch is not updating job state correctly.";
+        assert JobState.Queued== job2.getState():
+                "Queue.popBatch is not leaving locked jobs queued.";
+    }
+
+    @Test
+    public void testPopBatch_SameKey(){
+
+        Message message= fakeMessage();
+        String authentication= "test-authentication";
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+
+        Job job1= fakeJob( message);
+        job1.setState(JobState.Queued);
+        Job job2= fakeJob( message);
+        job2.setState(JobState.Queued);
+        when(this.resourceMock.get( any(Job.class))).thenReturn( job1, job2);
+        when(this.cacheMock.put(anyString(), anyString())).thenReturn( true,
+                false);
+
+        List<Job> result= this.queue.popBatch( 10);
+        assert result.size()== 2: "Queue.popBatch is not coalescing keys.";
+        assert JobState.Processing== job2.getState():
+                "Queue.popBatch is not updating job state correctly.";
+        verify( this.cacheMock, times( 1)).put( anyString(), anyString());
+    }
+
+    @Test
+    public void testPopBatch_SameKeyHandOff(){
+
+        Message message= fakeMessage();
+        String authentication= "test-authentication";
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+
+        Job job1= fakeJob( message);
+        job1.setState(JobState.Queued);
+        Job job2= fakeJob( message);
+        job2.setState(JobState.Queued);
+        Job job3= fakeJob( message);
+        job3.setState(JobState.Queued);
+        when(this.resourceMock.get( any(Job.class))).thenReturn( job1, job2,
+                job3);
+        when(this.cacheMock.put(anyString(), anyString())).thenReturn( true,
+                false);
+
+        List<Job> result= this.queue.popBatch( 10);
+        assert result.size()== 2: "Queue.popBatch is not coalescing keys.";
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+        assert this.queue.pop()== null: "Queue.pop is not parking job.";
+
+        this.queue.complete( job1);
+        assert JobState.Queued== job3.getState():
+                "Queue.complete is handing off a key still held.";
+        // tf - A duplicate of a finished job holds nothing.
+        Job copy= fakeJob( message);
+        copy.setUuid( job1.getUuid());
+        copy.setState( JobState.Processing);
+        this.queue.complete( copy);
+        assert JobState.Queued== job3.getState():
+                "Queue.complete is handing off a key twice.";
+        this.queue.complete( job2);
+        assert JobState.Processing== job3.getState():
+                "Queue.complete is not handing off key.";
+        assert this.queue.pop()== job3:
+                "Queue.pop is not returning handed off job.";
+        verify( this.cacheMock, never()).remove( message.getKey());
+    }
+
+    @Test
+    public void testPop_StaleComplete(){
+
+        Message message= fakeMessage();
+        String authentication= "test-authentication";
+        this.queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                authentication);
+
+        Job job= fakeJob( message);
+        job.setState(JobState.Complete);
+        when(this.resourceMock.get( any(Job.class))).thenReturn( job);
+
+        assert this.queue.pop()== null:
+                "Queue.pop is not skipping complete jobs.";
+        verify( this.cacheMock, never()).remove( message.getKey());
+        verify( this.cacheMock, never()).touch( message.getKey());
+    }
+
+    @Test
+    public void testPopBatch_Empty(){
+
+        assert this.queue.popBatch( 10).isEmpty():
+                "Queue.popBatch is not handling an empty queue.";
+    }
+
+    @Test
+    public void testEmbedJobs(){
+
+        final List<String> bodies= new ArrayList<>();
+        Queue queue= new Queue(this.resourceMock, this.cacheMock) {
+            @Override
+            protected void write(UUID uuid) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected void write(Job job) {
+                bodies.add( this.encode( job));
+            }
+
+            @Override
+            protected ResultTuple read() {
+                return bodies.isEmpty() ? null :
+                        this.decode( bodies.get( 0), "0");
+            }
+
+            @Override
+            protected List<ResultTuple> readBatch(int max) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected void delete(String identifier) {
+                bodies.remove( Integer.parseInt( identifier));
+            }
+        };
+        queue.setEmbedJobs( true);
+
+        Message message= fakeMessage();
+        String authentication= "test-authentication";
+        UUID jobUuid= UUID.randomUUID();
+        queue.push(jobUuid, message, BehaviorType.Get, authentication);
+        when(this.cacheMock.put(message.getKey(), message.getKey())).thenReturn(
+                true);
+
+        Job result= queue.pop();
+        assert result!= null: "Queue.pop is not decoding embedded jobs.";
+        assert jobUuid.equals( result.getUuid()):
+                "Queue.pop is not decoding embedded jobs.";
+        assert message.getMessageKey().equals( result.getMessageKey()):
+                "Queue.pop is not decoding embedded jobs.";
+        assert BehaviorType.Get== result.getBehaviorType():
+                "Queue.pop is not decoding embedded jobs.";
+        assert authentication.equals( result.getJobOwner()):
+                "Queue.pop is not decoding embedded jobs.";
+        assert JobState.Processing== result.getState():
+                "Queue.pop is not updating job state correctly.";
+        verify( this.resourceMock, never()).get( any(Job.class));
+
+        queue.error( result, "test-message", false);
+        assert bodies.size()== 1: "Queue.error is not requeuing embedded jobs.";
+        assert queue.decode( bodies.get( 0), "0").job.getTries()== 1:
+                "Queue.error is not updating embedded try count.";
+        Job batch= fakeJob( message);
+        batch.setEntries( Collections.singletonList( new Job.Entry(
+                message.getMessageKey())));
+        batch.setBehavior( new Behavior( BehaviorType.Persist, "test-map"));
+        Job decoded= queue.decode( queue.encode( batch), "0").job;
+        assert decoded.isBatch() && message.getMessageKey().equals(
+                decoded.getEntries().get( 0).getMessageKey())
+                && decoded.getEntries().get( 0).isPending():
+                "Queue.decode is not decoding batch job entries.";
+        assert decoded.getBehavior()!= null && "test-map".equals(
+                decoded.getBehavior().getFunction()):
+                "Queue.decode is not decoding map behavior.";
+    }
+
+    @Test
+    public void testEmbedJobs_Retry(){
+
+        final List<String> bodies= new ArrayList<>();
+        Queue queue= new Queue(this.resourceMock, this.cacheMock) {
+            @Override
+            protected void write(UUID uuid) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected void write(Job job) {
+                bodies.add( this.encode( job));
+            }
+
+            @Override
+            protected ResultTuple read() {
+                return bodies.isEmpty() ? null :
+                        this.decode( bodies.get( 0), "0");
+            }
+
+            @Override
+            protected List<ResultTuple> readBatch(int max) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            protected void delete(String identifier) {
+                bodies.remove( Integer.parseInt( identifier));
+            }
+        };
+        queue.setEmbedJobs( true);
+
+        Message message= fakeMessage();
+        queue.push(UUID.randomUUID(), message, BehaviorType.Persist,
+                "test-authentication");
+        when(this.cacheMock.put(message.getKey(), message.getKey())).thenReturn(
+                true);
+
+        Job result= queue.pop();
+        result.recordFanOut( "0");
+        queue.error( result, "test-message", false);
+        result= queue.pop();
+        assert result!= null: "Queue.pop is not decoding retried jobs.";
+        assert result.fannedOut( "0"):
+                "Queue.error is not carrying fan out into retried jobs.";
+        assert !result.fannedOut( "1"):
+                "Queue.decode is not decoding fan out correctly.";
+    }
+
     @Test
     public void testNullRead(){
 
@@ -147,4 +536,15 @@ public class QueueTest {
     private UUID popUuid(){
         return jobs.isEmpty() ? null : jobs.iterator().next();
     }
+
+    @Test
+    public void testRenew(){
+
+        Job job= fakeJob();
+        when( this.cacheMock.touch( job.getMessageKey().getKey())).thenReturn(
+                true);
+        this.queue.renew( job);
+
+        verify( this.cacheMock).touch( job.getMessageKey().getKey());
+    }
 }
@@ -0,0 +1,419 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.JobPriority;
+import info.bigdatahowto.core.Queue;
+import info.bigdatahowto.core.Resource;
+
+import java.util.*;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An in-memory queue scheduling jobs with weighted fair queuing.  Each
+ * combination of priority class and user context is a flow with its own FIFO,
+ * and flows take turns using deficit round robin.  A flow's turn lasts for as
+ * many jobs as its weight, the product of its priority class weight and its
+ * user context weight.  One context flooding the queue therefore only gets its
+ * share of reads, and interactive jobs from every other context keep moving.
+ *
+ * @author timfulmer
+ */
+public class FairInMemoryQueue extends Queue {
+
+    public static final long DEFAULT_LEASE_MILLIS= 30000;
+
+    private static final String DEFAULT_CONTEXT= "";
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    /**
+     * Flows holding pending UUIDs; a flow is dropped once it empties.
+     */
+    private final Map<String,Flow> flows= new HashMap<>();
+    private final Deque<Flow> active= new ArrayDeque<>();
+
+    /**
+     * UUIDs read but not yet deleted.
+     */
+    private final Map<UUID,Lease> inFlight= new HashMap<>();
+
+    /**
+     * Time of the next scan for expired leases.
+     */
+    private long nextScan;
+
+    /**
+     * Holds delayed UUIDs until they are due.
+     */
+    private final TimingWheel<Lease> delayed= new TimingWheel<>();
+
+    private final Map<JobPriority,Integer> priorityWeights=
+            new EnumMap<>( JobPriority.class);
+    private final Map<String,Integer> contextWeights= new HashMap<>();
+
+    /**
+     * A UUID read and not deleted within this time is delivered again.
+     */
+    private long leaseMillis= DEFAULT_LEASE_MILLIS;
+
+    public FairInMemoryQueue() {
+
+        this(new FileResource(),new InMemoryCache());
+    }
+
+    public FairInMemoryQueue( Resource resource, Cache cache) {
+
+        super( resource, cache);
+
+        this.priorityWeights.put( JobPriority.Interactive, 8);
+        this.priorityWeights.put( JobPriority.Normal, 4);
+        this.priorityWeights.put( JobPriority.Retry, 1);
+    }
+
+    /**
+     * Writes a UUID into the normal priority flow of the default context.
+     *
+     * @param uuid UUID to queue.
+     */
+    @Override
+    protected synchronized void write(UUID uuid) {
+
+        this.enqueue( this.flow( JobPriority.Normal, DEFAULT_CONTEXT), uuid,
+                false);
+    }
+
+    /**
+     * Writes a job into the flow for its priority class and user context.
+     *
+     * @param job Job to queue.
+     */
+    @Override
+    protected synchronized void write(Job job) {
+
+        this.enqueue( this.flow( job), job.getUuid(), false);
+    }
+
+    /**
+     * Writes a job into its flow once delayMillis from now has passed.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected synchronized void write(Job job, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.write( job);
+
+            return;
+        }
+        // tf - Flows are registered once the UUID is due.
+        this.delayed.schedule( new Lease( job.getUuid(), new Flow(
+                this.priority( job), job.getMessageKey().getUserContext()), 0),
+                delayMillis);
+    }
+
+    /**
+     * Reads the next UUID according to weighted fair queuing across flows.
+     * UUIDs whose lease expired are delivered again first.
+     *
+     * @return UUID in the queue.
+     */
+    @Override
+    protected synchronized ResultTuple read() {
+
+        this.promote();
+        while( !this.active.isEmpty()){
+
+            Flow flow= this.active.peekFirst();
+            UUID uuid= flow.pending.poll();
+            if( uuid== null){
+
+                this.deactivate();
+                continue;
+            }
+            if( flow.deficit<= 0){
+
+                flow.deficit= this.weight( flow);
+            }
+            flow.deficit--;
+            if( flow.pending.isEmpty()){
+
+                this.deactivate();
+            }else if( flow.deficit<= 0){
+
+                // tf - Turn is over, rotate to the back of the round.
+                this.active.addLast( this.active.pollFirst());
+            }
+            this.inFlight.put( uuid, new Lease( uuid, flow,
+                    System.currentTimeMillis()+ this.leaseMillis));
+
+            return new ResultTuple( uuid, uuid.toString());
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads up to max UUIDs according to weighted fair queuing across flows.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected synchronized List<ResultTuple> readBatch(int max) {
+
+        List<ResultTuple> resultTuples= new ArrayList<>( max);
+        ResultTuple resultTuple;
+        while( resultTuples.size()< max && (resultTuple= this.read())!= null){
+
+            resultTuples.add( resultTuple);
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Deletes a uuid from the queue.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void delete(String identifier) {
+
+        UUID uuid= UUID.fromString( identifier);
+        if( this.inFlight.remove( uuid)!= null){
+
+            return;
+        }
+        for( Flow flow: this.flows.values()){
+
+            if( flow.pending.remove( uuid)){
+
+                return;
+            }
+        }
+
+        String msg= String.format( "Could not remove UUID '%s' from queue.",
+                uuid.toString());
+        this.logger.log(Level.SEVERE, msg);
+
+        throw new RuntimeException( msg);
+    }
+
+    /**
+     * Puts a read uuid back at the front of its flow.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void release(String identifier) {
+
+        Lease lease= this.inFlight.remove( UUID.fromString( identifier));
+        if( lease!= null){
+
+            this.enqueue( lease.flow, lease.uuid, true);
+        }
+    }
+
+    /**
+     * Moves a read uuid into the retry flow of its user context, once
+     * delayMillis from now has passed.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected synchronized void release(String identifier, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.release( identifier);
+
+            return;
+        }
+        Lease lease= this.inFlight.remove( UUID.fromString( identifier));
+        if( lease!= null){
+
+            this.delayed.schedule( new Lease( lease.uuid, new Flow(
+                    JobPriority.Retry, lease.flow.context), 0), delayMillis);
+        }
+    }
+
+    /**
+     * Restarts the lease on a read uuid.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void extend(String identifier) {
+
+        UUID uuid= UUID.fromString( identifier);
+        Lease lease= this.inFlight.get( uuid);
+        if( lease!= null){
+
+            this.inFlight.put( uuid, new Lease( uuid, lease.flow,
+                    System.currentTimeMillis()+ this.leaseMillis));
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+
+        super.clear();
+
+        this.flows.clear();
+        this.active.clear();
+        this.inFlight.clear();
+        this.delayed.clear();
+    }
+
+    /**
+     * Sets the weight of a priority class, relative to other classes.
+     *
+     * @param jobPriority Priority class.
+     * @param weight Jobs read per turn, at least one.
+     */
+    public synchronized void setPriorityWeight( JobPriority jobPriority,
+                                                int weight){
+
+        this.priorityWeights.put( jobPriority, Math.max( 1, weight));
+    }
+
+    /**
+     * Sets the weight of a user context, relative to other contexts.  Contexts
+     * default to a weight of one.
+     *
+     * @param userContext User context.
+     * @param weight Multiplier applied to priority class weights.
+     */
+    public synchronized void setContextWeight( String userContext, int weight){
+
+        this.contextWeights.put( userContext, Math.max( 1, weight));
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    private Flow flow( Job job){
+
+        return this.flow( this.priority( job),
+                job.getMessageKey().getUserContext());
+    }
+
+    private Flow flow( JobPriority jobPriority, String userContext){
+
+        Flow flow= this.flows.get( this.key( jobPriority, userContext));
+        if( flow== null){
+
+            flow= new Flow( jobPriority, userContext);
+            this.flows.put( this.key( jobPriority, userContext), flow);
+        }
+
+        return flow;
+    }
+
+    private String key( JobPriority jobPriority, String userContext){
+
+        return jobPriority+ "/"+ userContext;
+    }
+
+    private int weight( Flow flow){
+
+        Integer contextWeight= this.contextWeights.get( flow.context);
+
+        return this.priorityWeights.get( flow.priority)*
+                (contextWeight== null ? 1 : contextWeight);
+    }
+
+    private void enqueue( Flow flow, UUID uuid, boolean front){
+
+        // tf - Leases may outlive their flow, queue into the current one.
+        flow= this.flow( flow.priority, flow.context);
+        if( front){
+
+            flow.pending.addFirst( uuid);
+        }else{
+
+            flow.pending.addLast( uuid);
+        }
+        if( !flow.active){
+
+            flow.active= true;
+            flow.deficit= 0;
+            this.active.addLast( flow);
+        }
+    }
+
+    private void deactivate(){
+
+        Flow flow= this.active.pollFirst();
+        flow.active= false;
+        flow.deficit= 0;
+        if( flow.pending.isEmpty()){
+
+            this.flows.remove( this.key( flow.priority, flow.context));
+        }
+    }
+
+    /**
+     * Queues delayed UUIDs now due, and UUIDs whose lease expired.  Leases
+     * are extended independently, so every lease is scanned, at most once
+     * per quarter lease or timing wheel tick.
+     */
+    private void promote(){
+
+        if( this.delayed.size()> 0){
+
+            for( Lease lease: this.delayed.expire()){
+
+                this.enqueue( lease.flow, lease.uuid, false);
+            }
+        }
+        long now= System.currentTimeMillis();
+        if( now< this.nextScan){
+
+            return;
+        }
+        this.nextScan= now+ Math.max( 1, Math.min( this.leaseMillis/ 4,
+                TimingWheel.DEFAULT_TICK_MILLIS));
+        Iterator<Lease> iterator= this.inFlight.values().iterator();
+        while( iterator.hasNext()){
+
+            Lease lease= iterator.next();
+            if( lease.expiry<= now){
+
+                iterator.remove();
+                this.enqueue( lease.flow, lease.uuid, true);
+            }
+        }
+    }
+
+    private static class Flow{
+        private final JobPriority priority;
+        private final String context;
+        private final Deque<UUID> pending= new ArrayDeque<>();
+        private boolean active;
+        private int deficit;
+        private Flow(JobPriority priority, String context) {
+            this.priority = priority;
+            this.context = context;
+        }
+    }
+
+    private static class Lease{
+        private final UUID uuid;
+        private final Flow flow;
+        private final long expiry;
+        private Lease(UUID uuid, Flow flow, long expiry) {
+            this.uuid = uuid;
+            this.flow = flow;
+            this.expiry = expiry;
+        }
+    }
+}
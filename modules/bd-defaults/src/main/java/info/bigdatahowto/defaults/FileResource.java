@@ -2,10 +2,15 @@ package info.bigdatahowto.defaults;
 
 import info.bigdatahowto.core.Resource;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
 
 import java.io.File;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -106,6 +111,39 @@ public class FileResource extends Resource {
         return file.delete();
     }
 
+    /**
+     * Lists keys held in files under the directory named by prefix.
+     *
+     * @param prefix Only keys starting with this prefix are listed.
+     * @return Keys starting with prefix, in lexicographic order.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public List<String> list(String prefix) {
+
+        File directory= this.getFile( prefix.substring( 0,
+                prefix.lastIndexOf( "/")+ 1));
+        if( !directory.isDirectory()){
+
+            return new ArrayList<>( 0);
+        }
+        String root= this.getDirectory().getAbsolutePath()+ File.separator;
+        List<String> keys= new ArrayList<>();
+        for( File file: (Collection<File>) FileUtils.listFiles( directory,
+                TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE)){
+
+            String key= file.getAbsolutePath().substring( root.length())
+                    .replace( File.separatorChar, '/');
+            if( key.startsWith( prefix)){
+
+                keys.add( key);
+            }
+        }
+        Collections.sort( keys);
+
+        return keys;
+    }
+
     private File getDirectory(){
 
         if( this.directory== null){
@@ -3,15 +3,18 @@ package info.bigdatahowto.defaults;
 import info.bigdatahowto.core.Cache;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
- * Simple in-memory cache implementing a timeout.
+ * Simple in-memory cache implementing a timeout, safe to share between
+ * threads.
  *
  * @author timfulmer
  */
 public class InMemoryCache implements Cache {
 
-    private Map<String,KeyTimeout> cache= new HashMap<>();
+    private ConcurrentMap<String,KeyTimeout> cache= new ConcurrentHashMap<>();
 
     /**
      * Puts a key-value pair into cache.
@@ -36,9 +39,14 @@ public class InMemoryCache implements Cache {
     public String get(String key) {
 
         KeyTimeout timeout= this.cache.get(key);
-        if( timeout== null || !timeout.valid()){
+        if( timeout== null){
+
+            return null;
+        }
+        if( !timeout.valid()){
 
-            this.cache.remove( key);
+            // tf - Leave a value put since it expired.
+            this.cache.remove( key, timeout);
 
             return null;
         }
@@ -46,6 +54,26 @@ public class InMemoryCache implements Cache {
         return timeout.value;
     }
 
+    /**
+     * Restarts the expiry of a key already in cache.  A key removed
+     * meanwhile stays removed.
+     *
+     * @param key Key to touch.
+     * @return True if the key was in cache.
+     */
+    @Override
+    public boolean touch(String key) {
+
+        KeyTimeout timeout= this.cache.get( key);
+        if( timeout== null || !timeout.valid()){
+
+            return false;
+        }
+
+        return this.cache.replace( key, timeout,
+                new KeyTimeout( timeout.value));
+    }
+
     /**
      * Removes a key-value pair from cache;
      *
@@ -1,26 +1,74 @@
 package info.bigdatahowto.defaults;
 
 import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
 import info.bigdatahowto.core.Queue;
 import info.bigdatahowto.core.Resource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A simple in-memory queue, backed by a ConcurrentLinkedQueue, for testing
- * only.
+ * only.  Reading moves a UUID into an in-flight table under a lease; deleting
+ * drops it from the table, and only UUIDs whose lease expired are delivered
+ * again.
  *
  * @author timfulmer
  */
 public class InMemoryQueue extends Queue {
 
+    public static final long DEFAULT_LEASE_MILLIS= 30000;
+
     private transient Logger logger= Logger.getLogger(
             this.getClass().getName());
 
-    private java.util.Queue<UUID> head, tail;
+    private final java.util.Queue<UUID> pending=
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * Lease expiry of each UUID read but not yet deleted.
+     */
+    private final ConcurrentMap<UUID,Long> inFlight=
+            new ConcurrentHashMap<>();
+
+    /**
+     * Leases in the order they were taken, which is also expiry order.
+     * Entries for UUIDs since deleted or read again are skipped lazily.
+     */
+    private final java.util.Queue<Lease> leases=
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * A UUID read and not deleted within this time is delivered again.
+     */
+    private long leaseMillis= DEFAULT_LEASE_MILLIS;
+
+    /**
+     * Readers waiting for a UUID park on this condition.  Writers bump the
+     * version and only take the lock to signal when someone is waiting.
+     */
+    private final ReentrantLock lock= new ReentrantLock();
+    private final Condition available= this.lock.newCondition();
+    private final AtomicLong version= new AtomicLong();
+    private final AtomicInteger waiting= new AtomicInteger();
+
+    /**
+     * Holds delayed UUIDs until they are due.
+     */
+    private TimingWheel<UUID> delayed= new TimingWheel<>();
 
     public InMemoryQueue() {
 
@@ -30,9 +78,6 @@ public class InMemoryQueue extends Queue {
     public InMemoryQueue( Resource resource, Cache cache) {
 
         super( resource, cache);
-
-        this.head= new ConcurrentLinkedQueue<>();
-        this.tail= new ConcurrentLinkedQueue<>();
     }
 
     /**
@@ -43,27 +88,64 @@ public class InMemoryQueue extends Queue {
     @Override
     protected void write(UUID uuid) {
 
-        this.head.add( uuid);
+        this.pending.add( uuid);
+        this.signal();
+    }
+
+    /**
+     * Writes a job into the underlying queue, holding it in a timing wheel
+     * until delayMillis from now.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected void write(Job job, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.write( job);
+
+            return;
+        }
+        this.delayed.schedule( job.getUuid(), delayMillis);
+    }
+
+    /**
+     * Writes a batch of jobs into the underlying queue.
+     *
+     * @param jobs Jobs to queue.
+     * @return Jobs not written, always empty.
+     */
+    @Override
+    protected List<Job> writeAll(List<Job> jobs) {
+
+        List<UUID> uuids= new ArrayList<>( jobs.size());
+        for( Job job: jobs){
+
+            uuids.add( job.getUuid());
+        }
+        this.pending.addAll( uuids);
+        this.signal();
+
+        return Collections.emptyList();
     }
 
     /**
      * Reads a  UUID from the underlying queue.  Reading must not delete
-     * from the underlying queue.  Repeated calls to read may return the same
-     * UUID.
+     * from the underlying queue.  The UUID is leased, and read again only
+     * once the lease expires.
      *
      * @return UUID in the queue.
      */
     @Override
     protected ResultTuple read() {
 
-        if( this.head.isEmpty() && !this.tail.isEmpty()){
-
-            this.swap();
-        }
-        UUID current= this.head.poll();
+        this.promote();
+        UUID current= this.pending.poll();
         if( current!= null){
 
-            this.tail.add( current);
+            this.lease( current);
 
             return new ResultTuple(current, current.toString());
         }
@@ -72,7 +154,86 @@ public class InMemoryQueue extends Queue {
     }
 
     /**
-     * Deletes a uuid from the queue.
+     * Reads a UUID from the underlying queue, parking until one is written or
+     * timeoutMillis passes.  While delayed or leased UUIDs are outstanding the
+     * reader wakes every timing wheel tick to check whether they are due.
+     *
+     * @param timeoutMillis Milliseconds to wait, zero reads once.
+     * @return UUID in the queue, null if none arrived in time.
+     */
+    @Override
+    protected ResultTuple read(long timeoutMillis) {
+
+        long deadline= System.currentTimeMillis()+ timeoutMillis;
+        this.waiting.incrementAndGet();
+        try{
+
+            while( true){
+
+                long version= this.version.get();
+                ResultTuple resultTuple= this.read();
+                long remaining= deadline- System.currentTimeMillis();
+                if( resultTuple!= null || remaining<= 0){
+
+                    return resultTuple;
+                }
+                if( this.delayed.size()> 0 || !this.inFlight.isEmpty()){
+
+                    remaining= Math.min( remaining,
+                            TimingWheel.DEFAULT_TICK_MILLIS);
+                }
+                this.lock.lock();
+                try{
+
+                    // tf - Skip waiting if a write landed since the read.
+                    if( this.version.get()== version){
+
+                        this.available.await( remaining,
+                                TimeUnit.MILLISECONDS);
+                    }
+                }finally {
+
+                    this.lock.unlock();
+                }
+            }
+        }catch( InterruptedException e){
+
+            Thread.currentThread().interrupt();
+
+            return null;
+        }finally {
+
+            this.waiting.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reads up to max UUIDs from the underlying queue in one operation.
+     * Reading must not delete from the underlying queue.  Repeated calls to
+     * readBatch may return the same UUIDs.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected List<ResultTuple> readBatch(int max) {
+
+        this.promote();
+        List<ResultTuple> resultTuples= new ArrayList<>( max);
+        UUID current;
+        while( resultTuples.size()< max
+                && (current= this.pending.poll())!= null){
+
+            this.lease( current);
+            resultTuples.add( new ResultTuple(current, current.toString()));
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Deletes a uuid from the queue.  Read uuids are dropped from the
+     * in-flight table in constant time.
      *
      * @param identifier Identifies message within queue.
      */
@@ -80,30 +241,146 @@ public class InMemoryQueue extends Queue {
     protected void delete(String identifier) {
 
         UUID uuid= UUID.fromString( identifier);
-        if( !this.head.remove( uuid) && !this.tail.remove( uuid)){
+        // tf - Falls back to scanning pending only for uuids never read.
+        if( this.inFlight.remove( uuid)== null && !this.pending.remove( uuid)){
 
             String msg= String.format( "Could not remove UUID '%s' from " +
-                    "head of type '%s' or tail of type '%s'.", uuid.toString(),
-                    this.head.getClass().getName(),
-                    this.tail.getClass().getName());
+                    "in-flight or pending of type '%s'.", uuid.toString(),
+                    this.pending.getClass().getName());
             this.logger.log(Level.SEVERE, msg);
 
             throw new RuntimeException( msg);
         }
     }
 
+    /**
+     * Ends a read uuid's lease early, putting it back in the queue.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void release(String identifier) {
+
+        UUID uuid= UUID.fromString( identifier);
+        if( this.inFlight.remove( uuid)!= null){
+
+            this.pending.add( uuid);
+            this.signal();
+        }
+    }
+
+    /**
+     * Moves a read uuid into the timing wheel, to be delivered again no sooner
+     * than delayMillis from now.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected void release(String identifier, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.release( identifier);
+
+            return;
+        }
+        UUID uuid= UUID.fromString( identifier);
+        if( this.inFlight.remove( uuid)!= null){
+
+            this.delayed.schedule( uuid, delayMillis);
+        }
+    }
+
+    /**
+     * Restarts the lease on a read uuid.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void extend(String identifier) {
+
+        UUID uuid= UUID.fromString( identifier);
+        long expiry= System.currentTimeMillis()+ this.leaseMillis;
+        // tf - The earlier lease entry no longer matches and is skipped.
+        if( this.inFlight.replace( uuid, expiry)!= null){
+
+            this.leases.add( new Lease( uuid, expiry));
+        }
+    }
+
     @Override
     public void clear() {
 
         super.clear();
 
-        this.head.clear();
-        this.tail.clear();
+        this.pending.clear();
+        this.inFlight.clear();
+        this.leases.clear();
+        this.delayed.clear();
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Wakes readers waiting in 'InMemoryQueue.read(timeoutMillis)'.
+     */
+    private void signal(){
+
+        this.version.incrementAndGet();
+        if( this.waiting.get()> 0){
+
+            this.lock.lock();
+            try{
+
+                this.available.signalAll();
+            }finally {
+
+                this.lock.unlock();
+            }
+        }
+    }
+
+    private void lease( UUID uuid){
+
+        long expiry= System.currentTimeMillis()+ this.leaseMillis;
+        this.inFlight.put( uuid, expiry);
+        this.leases.add( new Lease( uuid, expiry));
     }
 
-    private void swap(){
+    /**
+     * Queues delayed UUIDs now due, and UUIDs whose lease expired.
+     */
+    private void promote(){
+
+        if( this.delayed.size()> 0){
 
-        this.head= this.tail;
-        this.tail= new ConcurrentLinkedQueue<>();
+            this.pending.addAll( this.delayed.expire());
+        }
+        long now= System.currentTimeMillis();
+        synchronized( this.leases){
+
+            Lease lease;
+            while( (lease= this.leases.peek())!= null && lease.expiry<= now){
+
+                this.leases.poll();
+                // tf - Skip leases for uuids since deleted or read again.
+                if( this.inFlight.remove( lease.uuid, lease.expiry)){
+
+                    this.pending.add( lease.uuid);
+                }
+            }
+        }
+    }
+
+    private static class Lease{
+        private final UUID uuid;
+        private final long expiry;
+        private Lease(UUID uuid, long expiry) {
+            this.uuid = uuid;
+            this.expiry = expiry;
+        }
     }
 }
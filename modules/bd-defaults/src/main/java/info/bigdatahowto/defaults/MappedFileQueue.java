@@ -0,0 +1,682 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import info.bigdatahowto.core.Resource;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A durable queue backed by memory-mapped, append-only segment files.  Each
+ * record holds a status byte, a UUID, and the time the UUID may next be
+ * delivered.  Writes append at the write cursor and reads advance a read
+ * cursor; deleting marks a record acknowledged in place, and the ack cursor
+ * advances over acknowledged records.  Segments entirely behind the ack cursor
+ * are recycled for new writes.  Mapped pages are forced to disk on a fixed
+ * schedule.
+ *
+ * Reads are leased in memory only, so after a restart every record not yet
+ * acknowledged is delivered again.  Jobs are never embedded in records.
+ *
+ * @author timfulmer
+ */
+public class MappedFileQueue extends Queue {
+
+    public static final String DEFAULT_DIRECTORY= "/tmp/mapped-file-queue";
+    public static final int DEFAULT_RECORDS_PER_SEGMENT= 65536;
+    public static final long DEFAULT_FLUSH_MILLIS= 1000;
+    public static final long DEFAULT_LEASE_MILLIS= 30000;
+
+    /**
+     * Status byte, UUID most and least significant bits, not-before millis.
+     */
+    private static final int RECORD_SIZE= 1+ 8+ 8+ 8;
+    private static final int UUID_OFFSET= 1;
+    private static final int NOT_BEFORE_OFFSET= 17;
+
+    private static final byte EMPTY= 0;
+    private static final byte PENDING= 1;
+    private static final byte ACKED= 2;
+
+    private static final String SEGMENT_PREFIX= "segment-";
+    private static final String FREE_PREFIX= "free-";
+    private static final String SUFFIX= ".log";
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private final File directory;
+    private final int recordsPerSegment;
+    private final long flushMillis;
+
+    private final TreeMap<Long,Segment> segments= new TreeMap<>();
+    private final Deque<Segment> free= new ArrayDeque<>();
+    private long freeCount;
+
+    /**
+     * Positions count records across segments; a record's segment is its
+     * position divided by records per segment.
+     */
+    private long writePosition, readPosition, ackPosition;
+
+    /**
+     * Lease expiry of each position read but not yet deleted.
+     */
+    private final Map<Long,Long> inFlight= new HashMap<>();
+    private final Deque<Lease> leases= new ArrayDeque<>();
+
+    /**
+     * Positions to deliver again ahead of the read cursor.
+     */
+    private final Deque<Long> redeliver= new ArrayDeque<>();
+
+    /**
+     * Holds positions of delayed records until they are due.
+     */
+    private final TimingWheel<Long> delayed= new TimingWheel<>();
+
+    private long leaseMillis= DEFAULT_LEASE_MILLIS;
+
+    private ScheduledExecutorService flusher;
+
+    public MappedFileQueue() {
+
+        this(new FileResource(),new InMemoryCache(), DEFAULT_DIRECTORY,
+                DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_FLUSH_MILLIS);
+    }
+
+    /**
+     * @param directoryName Directory holding segment files.
+     * @param recordsPerSegment Records in each segment file.
+     * @param flushMillis Time between forcing mapped pages to disk; zero or
+     *                    less forces after every write and delete.
+     */
+    public MappedFileQueue( Resource resource, Cache cache,
+                            String directoryName, int recordsPerSegment,
+                            long flushMillis) {
+
+        super( resource, cache);
+
+        this.directory= new File( directoryName);
+        this.recordsPerSegment= recordsPerSegment;
+        this.flushMillis= flushMillis;
+        if( !this.directory.isDirectory() && !this.directory.mkdirs()){
+
+            String msg= String.format( "Could not create queue directory '%s'.",
+                    this.directory.getAbsolutePath());
+            this.logger.log(Level.SEVERE, msg);
+
+            throw new RuntimeException( msg);
+        }
+        this.recover();
+        if( flushMillis> 0){
+
+            this.flusher= Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread= new Thread( runnable,
+                                    "mapped-file-queue-flush");
+                            thread.setDaemon( true);
+                            return thread;
+                        }
+                    });
+            this.flusher.scheduleWithFixedDelay( new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Appends a UUID at the write cursor.
+     *
+     * @param uuid UUID to queue.
+     */
+    @Override
+    protected synchronized void write(UUID uuid) {
+
+        this.append( uuid, 0);
+    }
+
+    /**
+     * Appends a job's UUID at the write cursor, not to be delivered until
+     * delayMillis from now.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected synchronized void write(Job job, long delayMillis) {
+
+        this.append( job.getUuid(), delayMillis> 0 ?
+                System.currentTimeMillis()+ delayMillis : 0);
+    }
+
+    /**
+     * Appends a batch of job UUIDs at the write cursor, forcing them to disk
+     * at most once.
+     *
+     * @param jobs Jobs to queue.
+     * @return Jobs not written, from the first failure on.
+     */
+    @Override
+    protected synchronized List<Job> writeAll(List<Job> jobs) {
+
+        List<Job> unwritten= Collections.emptyList();
+        for( int i= 0; i< jobs.size(); i++){
+
+            try{
+
+                this.put( jobs.get( i).getUuid(), 0);
+            }catch( RuntimeException e){
+
+                this.logger.log( Level.SEVERE, String.format( "Could not " +
+                        "write job '%s'.", jobs.get( i).getUuid()), e);
+                unwritten= jobs.subList( i, jobs.size());
+                break;
+            }
+        }
+        if( this.flushMillis<= 0){
+
+            this.flush();
+        }
+
+        return unwritten;
+    }
+
+    /**
+     * Reads a UUID whose lease expired or was released, otherwise the next
+     * pending UUID after the read cursor.  The UUID is leased, and read again
+     * only once the lease expires.
+     *
+     * @return UUID in the queue.
+     */
+    @Override
+    protected synchronized ResultTuple read() {
+
+        this.promote();
+        Long position;
+        while( (position= this.redeliver.poll())!= null){
+
+            // tf - Skip positions deleted while waiting.
+            if( this.status( position)== PENDING){
+
+                return this.lease( position);
+            }
+        }
+        long now= System.currentTimeMillis();
+        while( this.readPosition< this.writePosition){
+
+            position= this.readPosition++;
+            if( this.status( position)!= PENDING){
+
+                continue;
+            }
+            long notBefore= this.notBefore( position);
+            if( notBefore> now){
+
+                this.delayed.schedule( position, notBefore- now);
+
+                continue;
+            }
+
+            return this.lease( position);
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads up to max UUIDs, leasing each.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected synchronized List<ResultTuple> readBatch(int max) {
+
+        List<ResultTuple> resultTuples= new ArrayList<>( max);
+        ResultTuple resultTuple;
+        while( resultTuples.size()< max && (resultTuple= this.read())!= null){
+
+            resultTuples.add( resultTuple);
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Marks a record acknowledged in place, advancing the ack cursor and
+     * recycling segments left entirely behind it.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void delete(String identifier) {
+
+        long position= Long.parseLong( identifier);
+        if( this.status( position)!= PENDING){
+
+            String msg= String.format( "Could not acknowledge record at " +
+                    "position '%s' in directory '%s'.", identifier,
+                    this.directory.getAbsolutePath());
+            this.logger.log(Level.SEVERE, msg);
+
+            throw new RuntimeException( msg);
+        }
+        this.segment( position).buffer.put( this.offset( position), ACKED);
+        this.inFlight.remove( position);
+        this.advance();
+        if( this.flushMillis<= 0){
+
+            this.flush();
+        }
+    }
+
+    /**
+     * Ends a read record's lease early, delivering it again next.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void release(String identifier) {
+
+        long position= Long.parseLong( identifier);
+        if( this.inFlight.remove( position)!= null){
+
+            this.redeliver.addFirst( position);
+        }
+    }
+
+    /**
+     * Ends a read record's lease, recording in the record that it may not be
+     * delivered again until delayMillis from now.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected synchronized void release(String identifier, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.release( identifier);
+
+            return;
+        }
+        long position= Long.parseLong( identifier);
+        if( this.inFlight.remove( position)!= null){
+
+            this.segment( position).buffer.putLong( this.offset( position)+ NOT_BEFORE_OFFSET,
+                    System.currentTimeMillis()+ delayMillis);
+            this.delayed.schedule( position, delayMillis);
+        }
+    }
+
+    /**
+     * Restarts the lease on a read record.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected synchronized void extend(String identifier) {
+
+        long position= Long.parseLong( identifier);
+        if( this.inFlight.containsKey( position)){
+
+            long expiry= System.currentTimeMillis()+ this.leaseMillis;
+            this.inFlight.put( position, expiry);
+            this.leases.addLast( new Lease( position, expiry));
+        }
+    }
+
+    /**
+     * Acknowledges everything, recycling every segment.  The write cursor
+     * moves on to the start of the next segment.
+     */
+    @Override
+    public synchronized void clear() {
+
+        super.clear();
+
+        this.writePosition= this.segmentStart( this.writePosition+
+                this.recordsPerSegment- 1);
+        this.readPosition= this.writePosition;
+        this.ackPosition= this.writePosition;
+        for( Long sequence: new ArrayList<>( this.segments.keySet())){
+
+            this.retire( sequence);
+        }
+        this.inFlight.clear();
+        this.leases.clear();
+        this.redeliver.clear();
+        this.delayed.clear();
+    }
+
+    /**
+     * Stops the flush schedule, forces mapped pages to disk, and drops every
+     * segment mapping.
+     */
+    public synchronized void close(){
+
+        if( this.flusher!= null){
+
+            this.flusher.shutdown();
+        }
+        this.flush();
+        this.segments.clear();
+        this.free.clear();
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Forces mapped pages of every segment to disk.
+     */
+    private void flush(){
+
+        List<Segment> toFlush;
+        synchronized( this){
+
+            toFlush= new ArrayList<>( this.segments.values());
+        }
+        for( Segment segment: toFlush){
+
+            segment.buffer.force();
+        }
+    }
+
+    private void append( UUID uuid, long notBefore){
+
+        this.put( uuid, notBefore);
+        if( this.flushMillis<= 0){
+
+            this.flush();
+        }
+    }
+
+    /**
+     * Writes a record at the write cursor.  The status byte goes last, so a
+     * torn write reads back as empty.
+     */
+    private void put( UUID uuid, long notBefore){
+
+        long position= this.writePosition;
+        long sequence= position/ this.recordsPerSegment;
+        Segment segment= this.segments.get( sequence);
+        if( segment== null){
+
+            segment= this.allocate( sequence);
+        }
+        int offset= this.offset( position);
+        segment.buffer.putLong( offset+ UUID_OFFSET,
+                uuid.getMostSignificantBits());
+        segment.buffer.putLong( offset+ UUID_OFFSET+ 8,
+                uuid.getLeastSignificantBits());
+        segment.buffer.putLong( offset+ NOT_BEFORE_OFFSET, notBefore);
+        segment.buffer.put( offset, PENDING);
+        this.writePosition++;
+    }
+
+    private ResultTuple lease( long position){
+
+        long expiry= System.currentTimeMillis()+ this.leaseMillis;
+        this.inFlight.put( position, expiry);
+        this.leases.addLast( new Lease( position, expiry));
+        Segment segment= this.segment( position);
+        int offset= this.offset( position);
+        UUID uuid= new UUID( segment.buffer.getLong( offset+ UUID_OFFSET),
+                segment.buffer.getLong( offset+ UUID_OFFSET+ 8));
+
+        return new ResultTuple( uuid, Long.toString( position));
+    }
+
+    /**
+     * Queues delayed positions now due, and positions whose lease expired.
+     */
+    private void promote(){
+
+        if( this.delayed.size()> 0){
+
+            this.redeliver.addAll( this.delayed.expire());
+        }
+        long now= System.currentTimeMillis();
+        Lease lease;
+        while( (lease= this.leases.peekFirst())!= null && lease.expiry<= now){
+
+            this.leases.pollFirst();
+            // tf - Skip leases for positions since deleted or read again.
+            Long expiry= this.inFlight.get( lease.position);
+            if( expiry!= null && expiry== lease.expiry){
+
+                this.inFlight.remove( lease.position);
+                this.redeliver.addLast( lease.position);
+            }
+        }
+    }
+
+    /**
+     * Moves the ack cursor over acknowledged records, retiring each segment
+     * it leaves behind.
+     */
+    private void advance(){
+
+        while( this.ackPosition< this.writePosition
+                && this.status( this.ackPosition)== ACKED){
+
+            this.ackPosition++;
+            if( this.ackPosition% this.recordsPerSegment== 0){
+
+                this.retire( this.ackPosition/ this.recordsPerSegment- 1);
+            }
+        }
+        this.readPosition= Math.max( this.readPosition, this.ackPosition);
+    }
+
+    private byte status( long position){
+
+        Segment segment= this.segment( position);
+        if( segment== null){
+
+            // tf - Segment already retired.
+            return position< this.ackPosition ? ACKED : EMPTY;
+        }
+
+        return segment.buffer.get( this.offset( position));
+    }
+
+    private long notBefore( long position){
+
+        return this.segment( position).buffer.getLong(
+                this.offset( position)+ NOT_BEFORE_OFFSET);
+    }
+
+    private Segment segment( long position){
+
+        return this.segments.get( position/ this.recordsPerSegment);
+    }
+
+    private int offset( long position){
+
+        return (int) (position% this.recordsPerSegment)* RECORD_SIZE;
+    }
+
+    private long segmentStart( long position){
+
+        return position- position% this.recordsPerSegment;
+    }
+
+    /**
+     * Maps segment files left by an earlier run, placing the ack and read
+     * cursors at the first record not acknowledged and the write cursor
+     * after the last record written.
+     */
+    private void recover(){
+
+        File[] files= this.directory.listFiles();
+        if( files== null){
+
+            return;
+        }
+        for( File file: files){
+
+            String name= file.getName();
+            if( name.startsWith( SEGMENT_PREFIX) && name.endsWith( SUFFIX)){
+
+                long sequence= Long.parseLong( name.substring(
+                        SEGMENT_PREFIX.length(),
+                        name.length()- SUFFIX.length()));
+                this.segments.put( sequence, this.map( file));
+            }else if( name.startsWith( FREE_PREFIX) && name.endsWith( SUFFIX)){
+
+                this.free.add( this.map( file));
+                this.freeCount= Math.max( this.freeCount, Long.parseLong(
+                        name.substring( FREE_PREFIX.length(),
+                                name.length()- SUFFIX.length()))+ 1);
+            }
+        }
+        if( this.segments.isEmpty()){
+
+            return;
+        }
+        long last= this.segments.lastKey();
+        Segment segment= this.segments.get( last);
+        int index= 0;
+        while( index< this.recordsPerSegment
+                && segment.buffer.get( index* RECORD_SIZE)!= EMPTY){
+
+            index++;
+        }
+        this.writePosition= last* this.recordsPerSegment+ index;
+        this.ackPosition= this.segments.firstKey()* this.recordsPerSegment;
+        this.advance();
+        this.readPosition= this.ackPosition;
+        this.logger.info( String.format( "Recovered queue in '%s' with " +
+                "ack cursor '%d' and write cursor '%d'.",
+                this.directory.getAbsolutePath(), this.ackPosition,
+                this.writePosition));
+    }
+
+    /**
+     * Takes a recycled segment when available, otherwise creates one.
+     */
+    private Segment allocate( long sequence){
+
+        File file= new File( this.directory, SEGMENT_PREFIX+ sequence+ SUFFIX);
+        Segment segment= this.free.poll();
+        try{
+
+            if( segment== null){
+
+                segment= this.map( file);
+            }else{
+
+                Files.move( segment.file.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+                segment.file= file;
+            }
+        }catch( IOException e){
+
+            String msg= String.format( "Could not allocate segment '%s'.",
+                    file.getAbsolutePath());
+            this.logger.log(Level.SEVERE, msg, e);
+
+            throw new RuntimeException( msg, e);
+        }
+        this.segments.put( sequence, segment);
+
+        return segment;
+    }
+
+    /**
+     * Clears a segment's records and sets it aside for reuse.  Records are
+     * cleared before the file is renamed, so a crash never exposes stale
+     * records under a live segment name.
+     */
+    private void retire( long sequence){
+
+        Segment segment= this.segments.remove( sequence);
+        if( segment== null){
+
+            return;
+        }
+        for( int i= 0; i< this.recordsPerSegment; i++){
+
+            segment.buffer.put( i* RECORD_SIZE, EMPTY);
+        }
+        segment.buffer.force();
+        File file= new File( this.directory,
+                FREE_PREFIX+ (this.freeCount++)+ SUFFIX);
+        try{
+
+            Files.move( segment.file.toPath(), file.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+            segment.file= file;
+            this.free.add( segment);
+        }catch( IOException e){
+
+            // tf - Segment is empty either way, recovery recycles it later.
+            this.logger.log(Level.WARNING, String.format( "Could not recycle " +
+                    "segment '%s'.", segment.file.getAbsolutePath()), e);
+        }
+    }
+
+    private Segment map( File file){
+
+        try( RandomAccessFile randomAccessFile=
+                     new RandomAccessFile( file, "rw")){
+
+            FileChannel channel= randomAccessFile.getChannel();
+            // tf - Mapping outlives the channel.
+            MappedByteBuffer buffer= channel.map(
+                    FileChannel.MapMode.READ_WRITE, 0,
+                    (long) this.recordsPerSegment* RECORD_SIZE);
+
+            return new Segment( file, buffer);
+        }catch( IOException e){
+
+            String msg= String.format( "Could not map segment '%s'.",
+                    file.getAbsolutePath());
+            this.logger.log(Level.SEVERE, msg, e);
+
+            throw new RuntimeException( msg, e);
+        }
+    }
+
+    private static class Segment{
+        private File file;
+        private final MappedByteBuffer buffer;
+        private Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private static class Lease{
+        private final long position;
+        private final long expiry;
+        private Lease(long position, long expiry) {
+            this.position = position;
+            this.expiry = expiry;
+        }
+    }
+}
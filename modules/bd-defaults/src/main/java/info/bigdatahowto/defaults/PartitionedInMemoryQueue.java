@@ -0,0 +1,322 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import info.bigdatahowto.core.Resource;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A partitioned variant of the in-memory queue.  Jobs are hashed by message
+ * key into a fixed number of lanes, and each lane hands out one job at a time.
+ * Jobs for the same key are serialized by construction, so consumers skip
+ * lanes already checked out instead of popping a job whose key is locked.
+ *
+ * @author timfulmer
+ */
+public class PartitionedInMemoryQueue extends Queue {
+
+    public static final int DEFAULT_LANES= 16;
+    public static final long DEFAULT_LEASE_MILLIS= 30000;
+
+    private static final String SEPARATOR= ":";
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private Lane[] lanes;
+
+    /**
+     * Holds identifiers of delayed UUIDs until they are due.
+     */
+    private TimingWheel<String> delayed= new TimingWheel<>();
+
+    /**
+     * A lane checked out longer than this is assumed abandoned and handed out
+     * again.
+     */
+    private long leaseMillis= DEFAULT_LEASE_MILLIS;
+
+    public PartitionedInMemoryQueue() {
+
+        this(new FileResource(),new InMemoryCache(), DEFAULT_LANES);
+    }
+
+    public PartitionedInMemoryQueue( Resource resource, Cache cache,
+                                     int lanes) {
+
+        super( resource, cache);
+
+        this.lanes= new Lane[lanes];
+        for( int i= 0; i< lanes; i++){
+
+            this.lanes[i]= new Lane();
+        }
+    }
+
+    /**
+     * Writes a UUID into the lane chosen by the UUID's hash.
+     *
+     * @param uuid UUID to queue.
+     */
+    @Override
+    protected void write(UUID uuid) {
+
+        this.lanes[this.laneIndex( uuid.hashCode())].pending.add( uuid);
+    }
+
+    /**
+     * Writes a job into the lane chosen by the hash of its message key.
+     *
+     * @param job Job to queue.
+     */
+    @Override
+    protected void write(Job job) {
+
+        this.lanes[this.laneIndex( job.getMessageKey().getKey().hashCode())]
+                .pending.add( job.getUuid());
+    }
+
+    /**
+     * Writes a job into its lane once delayMillis from now has passed.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected void write(Job job, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.write( job);
+
+            return;
+        }
+        this.delayed.schedule( this.laneIndex(
+                job.getMessageKey().getKey().hashCode())+ SEPARATOR+
+                job.getUuid(), delayMillis);
+    }
+
+    /**
+     * Reads a UUID from the first lane not already checked out, starting at a
+     * lane chosen by the calling thread.  The lane stays checked out until
+     * the UUID is deleted or released.
+     *
+     * @return UUID in the queue.
+     */
+    @Override
+    protected ResultTuple read() {
+
+        if( this.delayed.size()> 0){
+
+            for( String identifier: this.delayed.expire()){
+
+                this.lanes[this.laneIndex( identifier)].pending.add(
+                        this.uuid( identifier));
+            }
+        }
+        int start= this.laneIndex( (int) Thread.currentThread().getId());
+        for( int i= 0; i< this.lanes.length; i++){
+
+            int index= (start+ i)% this.lanes.length;
+            UUID uuid= this.lanes[index].checkOut( this.leaseMillis);
+            if( uuid!= null){
+
+                return new ResultTuple( uuid, index+ SEPARATOR+ uuid);
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Reads up to max UUIDs, at most one from each lane.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected List<ResultTuple> readBatch(int max) {
+
+        List<ResultTuple> resultTuples= new ArrayList<>(
+                Math.min( max, this.lanes.length));
+        ResultTuple resultTuple;
+        while( resultTuples.size()< max && (resultTuple= this.read())!= null){
+
+            resultTuples.add( resultTuple);
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Deletes a uuid from its lane, checking the lane back in.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void delete(String identifier) {
+
+        Lane lane= this.lanes[this.laneIndex( identifier)];
+        UUID uuid= this.uuid( identifier);
+        if( !lane.checkIn( uuid, false) && !lane.pending.remove( uuid)){
+
+            String msg= String.format( "Could not remove UUID '%s' from " +
+                    "lane '%s'.", uuid.toString(), identifier);
+            this.logger.log(Level.SEVERE, msg);
+
+            throw new RuntimeException( msg);
+        }
+    }
+
+    /**
+     * Puts a uuid back at the front of its lane, checking the lane back in.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void release(String identifier) {
+
+        this.lanes[this.laneIndex( identifier)].checkIn(
+                this.uuid( identifier), true);
+    }
+
+    /**
+     * Checks a lane back in, holding its uuid in a timing wheel until
+     * delayMillis from now.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected void release(String identifier, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.release( identifier);
+        }else if( this.lanes[this.laneIndex( identifier)].checkIn(
+                this.uuid( identifier), false)){
+
+            this.delayed.schedule( identifier, delayMillis);
+        }
+    }
+
+    /**
+     * Restarts the lease on a checked out lane.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void extend(String identifier) {
+
+        Lane lane= this.lanes[this.laneIndex( identifier)];
+        long since= lane.checkedOut.get();
+        if( since!= 0 && this.uuid( identifier).equals( lane.current)){
+
+            lane.checkedOut.compareAndSet( since, System.currentTimeMillis());
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        super.clear();
+
+        this.delayed.clear();
+        for( Lane lane: this.lanes){
+
+            lane.pending.clear();
+            lane.current= null;
+            lane.checkedOut.set( 0);
+        }
+    }
+
+    private int laneIndex( int hash){
+
+        return (hash& Integer.MAX_VALUE)% this.lanes.length;
+    }
+
+    private int laneIndex( String identifier){
+
+        return Integer.parseInt( identifier.substring( 0,
+                identifier.indexOf( SEPARATOR)));
+    }
+
+    private UUID uuid( String identifier){
+
+        return UUID.fromString( identifier.substring(
+                identifier.indexOf( SEPARATOR)+ 1));
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    private static class Lane{
+
+        private final Deque<UUID> pending= new ConcurrentLinkedDeque<>();
+
+        /**
+         * Time the lane was checked out, zero when available.
+         */
+        private final AtomicLong checkedOut= new AtomicLong();
+        private volatile UUID current;
+
+        private UUID checkOut( long leaseMillis){
+
+            long now= System.currentTimeMillis();
+            long since= this.checkedOut.get();
+            if( since!= 0){
+
+                // tf - Hand an abandoned uuid out again once its lease expires.
+                UUID abandoned= this.current;
+                if( now- since> leaseMillis && abandoned!= null
+                        && this.checkedOut.compareAndSet( since, now)){
+
+                    return abandoned;
+                }
+
+                return null;
+            }
+            if( this.pending.isEmpty()
+                    || !this.checkedOut.compareAndSet( 0, now)){
+
+                return null;
+            }
+            UUID uuid= this.pending.poll();
+            if( uuid== null){
+
+                this.checkedOut.set( 0);
+
+                return null;
+            }
+            this.current= uuid;
+
+            return uuid;
+        }
+
+        private boolean checkIn( UUID uuid, boolean requeue){
+
+            if( uuid== null || !uuid.equals( this.current)){
+
+                return false;
+            }
+            if( requeue){
+
+                this.pending.addFirst( uuid);
+            }
+            this.current= null;
+            this.checkedOut.set( 0);
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,445 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import info.bigdatahowto.core.Resource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded, lock-free in-memory queue for many producers and consumers.
+ * UUIDs are stored as two longs per slot in a preallocated ring, claimed by
+ * sequence number, so writing and reading allocate no queue nodes.  Reads
+ * lease a UUID into a preallocated in-flight table; deleting frees the slot,
+ * and UUIDs whose lease expired are written back to the ring.
+ *
+ * @author timfulmer
+ */
+public class RingBufferQueue extends Queue {
+
+    public static final int DEFAULT_CAPACITY= 65536;
+    public static final long DEFAULT_LEASE_MILLIS= 30000;
+
+    private static final String SEPARATOR= ":";
+
+    private transient Logger logger= Logger.getLogger(
+            this.getClass().getName());
+
+    private final Ring pending;
+
+    /**
+     * Indexes of in-flight slots not holding a lease.
+     */
+    private final Ring free;
+
+    /**
+     * Lease stamp of each in-flight slot, zero when the slot is free.  The
+     * stamp is set last, publishing the slot's UUID and expiry.
+     */
+    private final AtomicLongArray stamps;
+    private final long[] mostSignificantBits, leastSignificantBits, expiries;
+    private final AtomicLong stamp= new AtomicLong();
+
+    /**
+     * Time of the next scan for expired leases.
+     */
+    private final AtomicLong nextScan= new AtomicLong();
+
+    /**
+     * Holds delayed UUIDs until they are due.
+     */
+    private final TimingWheel<UUID> delayed= new TimingWheel<>();
+
+    private long leaseMillis= DEFAULT_LEASE_MILLIS;
+
+    public RingBufferQueue() {
+
+        this(new FileResource(),new InMemoryCache(), DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Maximum UUIDs queued, and maximum UUIDs in flight;
+     *                 rounded up to a power of two.
+     */
+    public RingBufferQueue( Resource resource, Cache cache, int capacity) {
+
+        super( resource, cache);
+
+        capacity= Integer.highestOneBit( Math.max( 2, capacity- 1))<< 1;
+        this.pending= new Ring( capacity);
+        this.free= new Ring( capacity);
+        this.stamps= new AtomicLongArray( capacity);
+        this.mostSignificantBits= new long[capacity];
+        this.leastSignificantBits= new long[capacity];
+        this.expiries= new long[capacity];
+        for( int i= 0; i< capacity; i++){
+
+            this.free.offer( i, 0);
+        }
+    }
+
+    /**
+     * Writes a UUID into the ring.
+     *
+     * @param uuid UUID to queue.
+     */
+    @Override
+    protected void write(UUID uuid) {
+
+        if( !this.pending.offer( uuid.getMostSignificantBits(),
+                uuid.getLeastSignificantBits())){
+
+            String msg= String.format( "Could not write UUID '%s', ring of " +
+                    "capacity '%d' is full.", uuid.toString(),
+                    this.pending.capacity());
+            this.logger.log(Level.SEVERE, msg);
+
+            throw new RuntimeException( msg);
+        }
+    }
+
+    /**
+     * Writes a job into the ring, holding it in a timing wheel until
+     * delayMillis from now.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected void write(Job job, long delayMillis) {
+
+        if( delayMillis<= 0){
+
+            this.write( job);
+
+            return;
+        }
+        this.delayed.schedule( job.getUuid(), delayMillis);
+    }
+
+    /**
+     * Reads a UUID from the ring, leasing it into an in-flight slot.  The
+     * UUID is read again only once the lease expires.
+     *
+     * @return UUID in the queue.
+     */
+    @Override
+    protected ResultTuple read() {
+
+        this.promote();
+        long freePosition= this.free.claim();
+        if( freePosition< 0){
+
+            this.logger.info( "All in-flight slots leased, returning null.");
+
+            return null;
+        }
+        int slot= (int) this.free.first( freePosition);
+        this.free.release( freePosition);
+
+        long position= this.pending.claim();
+        if( position< 0){
+
+            this.free.offer( slot, 0);
+
+            return null;
+        }
+        long mostSignificantBits= this.pending.first( position);
+        long leastSignificantBits= this.pending.second( position);
+        this.pending.release( position);
+
+        this.mostSignificantBits[slot]= mostSignificantBits;
+        this.leastSignificantBits[slot]= leastSignificantBits;
+        this.expiries[slot]= System.currentTimeMillis()+ this.leaseMillis;
+        long stamp= this.stamp.incrementAndGet();
+        this.stamps.set( slot, stamp);
+        UUID uuid= new UUID( mostSignificantBits, leastSignificantBits);
+
+        return new ResultTuple( uuid, slot+ SEPARATOR+ stamp);
+    }
+
+    /**
+     * Reads up to max UUIDs from the ring.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected List<ResultTuple> readBatch(int max) {
+
+        List<ResultTuple> resultTuples= new ArrayList<>( max);
+        ResultTuple resultTuple;
+        while( resultTuples.size()< max && (resultTuple= this.read())!= null){
+
+            resultTuples.add( resultTuple);
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Ends a lease, freeing its in-flight slot.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void delete(String identifier) {
+
+        int slot= this.slot( identifier);
+        if( !this.stamps.compareAndSet( slot, this.stamp( identifier), 0)){
+
+            // tf - Lease expired and the UUID was written back to the ring;
+            //  the copy redelivered is recognized by its job state.
+            this.logger.warning( String.format( "Lease '%s' already expired.",
+                    identifier));
+
+            return;
+        }
+        this.free.offer( slot, 0);
+    }
+
+    /**
+     * Ends a lease early, writing the UUID back to the ring.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void release(String identifier) {
+
+        this.requeue( this.slot( identifier), this.stamp( identifier), 0);
+    }
+
+    /**
+     * Ends a lease, holding the UUID in a timing wheel until delayMillis from
+     * now.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected void release(String identifier, long delayMillis) {
+
+        this.requeue( this.slot( identifier), this.stamp( identifier),
+                delayMillis);
+    }
+
+    /**
+     * Restarts the lease on a read uuid.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void extend(String identifier) {
+
+        int slot= this.slot( identifier);
+        if( this.stamps.get( slot)== this.stamp( identifier)){
+
+            this.expiries[slot]= System.currentTimeMillis()+ this.leaseMillis;
+        }
+    }
+
+    @Override
+    public void clear() {
+
+        super.clear();
+
+        long position;
+        while( (position= this.pending.claim())>= 0){
+
+            this.pending.release( position);
+        }
+        for( int slot= 0; slot< this.stamps.length(); slot++){
+
+            long stamp= this.stamps.get( slot);
+            if( stamp!= 0 && this.stamps.compareAndSet( slot, stamp, 0)){
+
+                this.free.offer( slot, 0);
+            }
+        }
+        this.delayed.clear();
+    }
+
+    public void setLeaseMillis(long leaseMillis) {
+        this.leaseMillis = leaseMillis;
+    }
+
+    /**
+     * Writes delayed UUIDs now due back to the ring, and at most once per
+     * quarter lease scans in-flight slots for expired leases.  Due UUIDs
+     * finding the ring full stay in the timing wheel for another tick.
+     */
+    private void promote(){
+
+        if( this.delayed.size()> 0){
+
+            for( UUID uuid: this.delayed.expire()){
+
+                if( !this.pending.offer( uuid.getMostSignificantBits(),
+                        uuid.getLeastSignificantBits())){
+
+                    // tf - Ring full, retry once there is room.
+                    this.delayed.schedule( uuid,
+                            TimingWheel.DEFAULT_TICK_MILLIS);
+                }
+            }
+        }
+        long now= System.currentTimeMillis();
+        long scan= this.nextScan.get();
+        if( now< scan || !this.nextScan.compareAndSet( scan,
+                now+ Math.max( 1, this.leaseMillis/ 4))){
+
+            return;
+        }
+        for( int slot= 0; slot< this.stamps.length(); slot++){
+
+            long stamp= this.stamps.get( slot);
+            if( stamp!= 0 && this.expiries[slot]<= now){
+
+                this.requeue( slot, stamp, 0);
+            }
+        }
+    }
+
+    /**
+     * Takes a lease back from its slot, writing the UUID back to the ring or
+     * holding it in the timing wheel.  Does nothing if the lease has already
+     * ended.
+     */
+    private void requeue( int slot, long stamp, long delayMillis){
+
+        long mostSignificantBits= this.mostSignificantBits[slot];
+        long leastSignificantBits= this.leastSignificantBits[slot];
+        if( !this.stamps.compareAndSet( slot, stamp, 0)){
+
+            return;
+        }
+        this.free.offer( slot, 0);
+        if( delayMillis> 0 || !this.pending.offer( mostSignificantBits,
+                leastSignificantBits)){
+
+            // tf - Ring full, retry once there is room.
+            this.delayed.schedule( new UUID( mostSignificantBits,
+                    leastSignificantBits), Math.max( delayMillis,
+                    TimingWheel.DEFAULT_TICK_MILLIS));
+        }
+    }
+
+    private int slot( String identifier){
+
+        return Integer.parseInt( identifier.substring( 0,
+                identifier.indexOf( SEPARATOR)));
+    }
+
+    private long stamp( String identifier){
+
+        return Long.parseLong( identifier.substring(
+                identifier.indexOf( SEPARATOR)+ 1));
+    }
+
+    /**
+     * A bounded multi-producer, multi-consumer ring of two longs per slot.
+     * Each slot carries a sequence number: a producer may fill the slot when
+     * the sequence equals its claimed position, a consumer may empty it when
+     * the sequence is one past its claimed position.
+     */
+    private static class Ring{
+
+        private final int mask;
+        private final AtomicLongArray sequences;
+        private final long[] values;
+        private final AtomicLong head= new AtomicLong();
+        private final AtomicLong tail= new AtomicLong();
+
+        private Ring( int capacity){
+
+            this.mask= capacity- 1;
+            this.sequences= new AtomicLongArray( capacity);
+            this.values= new long[capacity* 2];
+            for( int i= 0; i< capacity; i++){
+
+                this.sequences.set( i, i);
+            }
+        }
+
+        private int capacity(){
+
+            return this.mask+ 1;
+        }
+
+        private boolean offer( long first, long second){
+
+            long position;
+            int index;
+            while( true){
+
+                position= this.tail.get();
+                index= (int) (position& this.mask);
+                long difference= this.sequences.get( index)- position;
+                if( difference== 0){
+
+                    if( this.tail.compareAndSet( position, position+ 1)){
+
+                        break;
+                    }
+                }else if( difference< 0){
+
+                    return false;
+                }
+            }
+            this.values[index* 2]= first;
+            this.values[index* 2+ 1]= second;
+            this.sequences.set( index, position+ 1);
+
+            return true;
+        }
+
+        /**
+         * Claims the oldest slot for reading.  The caller reads the slot's
+         * values, then releases it.
+         *
+         * @return Position claimed, or -1 if the ring is empty.
+         */
+        private long claim(){
+
+            while( true){
+
+                long position= this.head.get();
+                int index= (int) (position& this.mask);
+                long difference= this.sequences.get( index)- (position+ 1);
+                if( difference== 0){
+
+                    if( this.head.compareAndSet( position, position+ 1)){
+
+                        return position;
+                    }
+                }else if( difference< 0){
+
+                    return -1;
+                }
+            }
+        }
+
+        private long first( long position){
+
+            return this.values[(int) (position& this.mask)* 2];
+        }
+
+        private long second( long position){
+
+            return this.values[(int) (position& this.mask)* 2+ 1];
+        }
+
+        private void release( long position){
+
+            this.sequences.set( (int) (position& this.mask),
+                    position+ this.mask+ 1);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package info.bigdatahowto.defaults;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel holding items until a deadline passes.  Items are
+ * hashed into buckets by deadline tick, so scheduling is constant time and
+ * expiring only visits the buckets for ticks elapsed since the last call.
+ * Delays longer than one revolution of the wheel stay in their bucket until
+ * the deadline itself has passed.
+ *
+ * The wheel is advanced lazily by callers of 'TimingWheel.expire', so no
+ * timer thread is needed.
+ *
+ * @author timfulmer
+ */
+public class TimingWheel<T> {
+
+    public static final long DEFAULT_TICK_MILLIS= 100;
+    public static final int DEFAULT_TICKS= 512;
+
+    private final long tickMillis;
+    private final List<List<Deadline<T>>> buckets;
+
+    /**
+     * Last tick expired, all buckets up to and including this tick have been
+     * visited.
+     */
+    private long tick;
+    private int size;
+
+    public TimingWheel() {
+
+        this( DEFAULT_TICK_MILLIS, DEFAULT_TICKS);
+    }
+
+    public TimingWheel(long tickMillis, int ticks) {
+
+        super();
+
+        this.tickMillis= tickMillis;
+        this.buckets= new ArrayList<>( ticks);
+        for( int i= 0; i< ticks; i++){
+
+            this.buckets.add( new LinkedList<Deadline<T>>());
+        }
+        this.tick= System.currentTimeMillis()/ tickMillis;
+    }
+
+    /**
+     * Holds an item until delayMillis from now.
+     *
+     * @param item Item to hold.
+     * @param delayMillis Milliseconds to hold the item for.
+     */
+    public synchronized void schedule( T item, long delayMillis){
+
+        long deadline= System.currentTimeMillis()+ Math.max( 0, delayMillis);
+        // tf - Round up, so visiting a tick always expires its bucket's items
+        //  for the current revolution.
+        long deadlineTick= Math.max( this.tick+ 1,
+                (deadline+ this.tickMillis- 1)/ this.tickMillis);
+        this.buckets.get( (int) (deadlineTick% this.buckets.size())).add(
+                new Deadline<>( item, deadline));
+        this.size++;
+    }
+
+    /**
+     * Advances the wheel to the current time, removing every item whose
+     * deadline has passed.
+     *
+     * @return Expired items, in no particular order.
+     */
+    public synchronized List<T> expire(){
+
+        long now= System.currentTimeMillis();
+        long nowTick= now/ this.tickMillis;
+        if( this.size== 0 || nowTick<= this.tick){
+
+            this.tick= Math.max( this.tick, nowTick);
+
+            return new ArrayList<>( 0);
+        }
+        List<T> expired= new ArrayList<>();
+        long ticks= Math.min( nowTick- this.tick, this.buckets.size());
+        for( long i= 1; i<= ticks; i++){
+
+            Iterator<Deadline<T>> iterator= this.buckets.get( (int) (
+                    (this.tick+ i)% this.buckets.size())).iterator();
+            while( iterator.hasNext()){
+
+                Deadline<T> deadline= iterator.next();
+                if( deadline.deadline<= now){
+
+                    iterator.remove();
+                    expired.add( deadline.item);
+                    this.size--;
+                }
+            }
+        }
+        this.tick= nowTick;
+
+        return expired;
+    }
+
+    /**
+     * @return Number of items held.
+     */
+    public synchronized int size(){
+
+        return this.size;
+    }
+
+    /**
+     * Drops every item held.
+     */
+    public synchronized void clear(){
+
+        for( List<Deadline<T>> bucket: this.buckets){
+
+            bucket.clear();
+        }
+        this.size= 0;
+    }
+
+    private static class Deadline<T>{
+        private T item;
+        private long deadline;
+        private Deadline(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -8,6 +8,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -96,6 +98,44 @@ public class BdProperties {
         return this.properties.getProperty( "aws.sqs.queueName");
     }
 
+    /**
+     * @return Names of SQS queues to shard jobs across, empty if not sharded.
+     */
+    public List<String> getQueueNames() {
+
+        List<String> queueNames= new ArrayList<>();
+        String property= this.properties.getProperty( "aws.sqs.queueNames");
+        if( !isEmpty( property)){
+
+            for( String queueName: property.split( ",")){
+
+                if( !isEmpty( queueName.trim())){
+
+                    queueNames.add( queueName.trim());
+                }
+            }
+        }
+
+        return queueNames;
+    }
+
+    public boolean getFifo() {
+
+        return Boolean.parseBoolean( this.properties.getProperty(
+                "aws.sqs.fifo"));
+    }
+
+    public String getQueueEndpoint() {
+
+        return this.properties.getProperty( "aws.sqs.endpoint");
+    }
+
+    public boolean getEmbedJobs() {
+
+        return Boolean.parseBoolean( this.properties.getProperty(
+                "aws.sqs.embedJobs"));
+    }
+
     public String getBucketName() {
 
         return this.properties.getProperty( "aws.s3.bucketName");
@@ -17,6 +17,11 @@ import java.util.logging.Logger;
  */
 public class ElastiCache implements Cache {
 
+    /**
+     * Keys expire this long after being put or touched.
+     */
+    private static final int EXPIRATION_SECONDS= 30;
+
     private transient Logger logger= Logger.getLogger( this.getClass().getName());
 
     private MemcachedClient memcachedClient;
@@ -74,7 +79,7 @@ public class ElastiCache implements Cache {
 
         try {
 
-            return this.memcachedClient.add( key, 30, value,
+            return this.memcachedClient.add( key, EXPIRATION_SECONDS, value,
                     this.transcoder).get();
         } catch (Exception e) {
 
@@ -97,6 +102,29 @@ public class ElastiCache implements Cache {
         return this.memcachedClient.get( key, this.transcoder);
     }
 
+    /**
+     * Restarts the expiry of a key already in cache.
+     *
+     * @param key Key to touch.
+     * @return True if the key was in cache.
+     */
+    @Override
+    public boolean touch(String key) {
+
+        try {
+
+            return this.memcachedClient.touch( key, EXPIRATION_SECONDS,
+                    this.transcoder).get();
+        } catch (Exception e) {
+
+            String msg = String.format("Could not touch key '%s' in cache.",
+                    key);
+            this.logger.log(Level.SEVERE, msg, e);
+
+            throw new RuntimeException(msg, e);
+        }
+    }
+
     /**
      * Removes a key-value pair from cache;
      *
@@ -130,6 +130,34 @@ public class S3Resource extends Resource {
         return true;
     }
 
+    /**
+     * Lists keys in the bucket starting with prefix.
+     *
+     * @param prefix Only keys starting with this prefix are listed.
+     * @return Keys starting with prefix, in lexicographic order.
+     */
+    @Override
+    public List<String> list(String prefix) {
+
+        List<String> keys= new ArrayList<>();
+        ObjectListing objectListing= this.amazonS3.listObjects(
+                new ListObjectsRequest().withBucketName( this.bucketName)
+                        .withPrefix( prefix));
+        while( true){
+            for (S3ObjectSummary objectSummary :
+                    objectListing.getObjectSummaries()) {
+                keys.add( objectSummary.getKey());
+            }
+            if( !objectListing.isTruncated()){
+                break;
+            }
+            objectListing= this.amazonS3.listNextBatchOfObjects(
+                    objectListing);
+        }
+
+        return keys;
+    }
+
     public void clean(){
 
         ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
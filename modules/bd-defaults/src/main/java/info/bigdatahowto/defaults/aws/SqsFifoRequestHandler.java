@@ -0,0 +1,107 @@
+package info.bigdatahowto.defaults.aws;
+
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.handlers.RequestHandler2;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+
+import java.util.List;
+
+/**
+ * Adds FIFO queue parameters to SQS send requests.  The SQS client bundled
+ * with bd predates FIFO queues and has no MessageGroupId or
+ * MessageDeduplicationId fields, so grouped requests carry them here and this
+ * handler writes them into the marshalled request.  Extends RequestHandler2,
+ * since SDK 1.7 deprecates the older handler types.
+ *
+ * @author timfulmer
+ */
+public class SqsFifoRequestHandler extends RequestHandler2 {
+
+    private static final String BATCH_ENTRY= "SendMessageBatchRequestEntry.";
+    private static final String GROUP_ID= "MessageGroupId";
+    private static final String DEDUPLICATION_ID= "MessageDeduplicationId";
+
+    @Override
+    public void beforeRequest(Request<?> request) {
+
+        AmazonWebServiceRequest originalRequest= request.getOriginalRequest();
+        if( originalRequest instanceof GroupedSendMessageRequest){
+
+            GroupedSendMessageRequest grouped=
+                    (GroupedSendMessageRequest) originalRequest;
+            request.addParameter( GROUP_ID, grouped.groupId);
+            request.addParameter( DEDUPLICATION_ID, grouped.deduplicationId);
+        }else if( originalRequest instanceof SendMessageBatchRequest){
+
+            List<SendMessageBatchRequestEntry> entries=
+                    ((SendMessageBatchRequest) originalRequest).getEntries();
+            for( int i= 0; i< entries.size(); i++){
+
+                if( entries.get( i) instanceof GroupedBatchEntry){
+
+                    GroupedBatchEntry grouped=
+                            (GroupedBatchEntry) entries.get( i);
+                    // tf - Batch entries are numbered from one.
+                    String prefix= BATCH_ENTRY+ (i+ 1)+ ".";
+                    request.addParameter( prefix+ GROUP_ID, grouped.groupId);
+                    request.addParameter( prefix+ DEDUPLICATION_ID,
+                            grouped.deduplicationId);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void afterResponse(Request<?> request, Response<?> response) {
+    }
+
+    @Override
+    public void afterError(Request<?> request, Response<?> response,
+                           Exception e) {
+    }
+
+    /**
+     * A send request for a FIFO queue.
+     */
+    public static class GroupedSendMessageRequest extends SendMessageRequest {
+
+        private static final long serialVersionUID= 1L;
+
+        public final String groupId;
+        public final String deduplicationId;
+
+        public GroupedSendMessageRequest(String queueUrl, String messageBody,
+                                         String groupId,
+                                         String deduplicationId) {
+
+            super( queueUrl, messageBody);
+
+            this.groupId= groupId;
+            this.deduplicationId= deduplicationId;
+        }
+    }
+
+    /**
+     * A batch send entry for a FIFO queue.
+     */
+    public static class GroupedBatchEntry extends SendMessageBatchRequestEntry {
+
+        private static final long serialVersionUID= 1L;
+
+        public final String groupId;
+        public final String deduplicationId;
+
+        public GroupedBatchEntry(String id, String messageBody, String groupId,
+                                 String deduplicationId) {
+
+            super( id, messageBody);
+
+            this.groupId= groupId;
+            this.deduplicationId= deduplicationId;
+        }
+    }
+}
@@ -1,23 +1,48 @@
 package info.bigdatahowto.defaults.aws;
 
+import com.amazonaws.AmazonWebServiceClient;
 import com.amazonaws.services.sqs.AmazonSQS;
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.Message;
 import com.amazonaws.services.sqs.model.QueueDoesNotExistException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
 import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
 import info.bigdatahowto.core.Queue;
 import info.bigdatahowto.core.Resource;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static org.apache.commons.lang3.StringUtils.isEmpty;
 import static org.apache.commons.collections.CollectionUtils.isEmpty;
 
 /**
- * Queue implementation using SQS.
+ * Queue implementation using SQS.  Jobs may be sharded across several SQS
+ * queues: writes are routed by a hash of the message key, and reads are
+ * spread across shards with receivers running in parallel.  Identifiers
+ * carry the shard a message was received from.
+ *
+ * In FIFO mode every message is grouped by its job's message key, so SQS
+ * itself holds back a key's jobs while one is in flight and jobs are checked
+ * out without a cache lock.  FIFO queues do not support per-message delays;
+ * delayed writes are sent right away, while retry backoff still holds the
+ * message, and with it the rest of its key, invisible.
  *
  * @author timfulmer
  */
@@ -25,12 +50,48 @@ public class SqsQueue extends Queue {
 
     private static final String DEFAULT_QUEUE_NAME= "bd-sqs1-useast1";
     private static final int DEFAULT_VISIBILITY_TIMEOUT= 30;
+    private static final int MAXIMUM_BATCH_SIZE= 10;
+    private static final int MAXIMUM_DELAY_SECONDS= 900;
+    private static final int MAXIMUM_VISIBILITY_TIMEOUT= 43200;
+    private static final int MAXIMUM_WAIT_SECONDS= 20;
+
+    private static final String SEPARATOR= ":";
+    private static final String FIFO_SUFFIX= ".fifo";
 
     private transient Logger logger= Logger.getLogger(
             this.getClass().getName());
 
     private AmazonSQS amazonSQS;
-    private String queueUrl;
+    private List<String> queueUrls;
+    private boolean fifo;
+
+    /**
+     * Shard the next read starts at, so reads rotate across shards.
+     */
+    private final AtomicInteger nextShard= new AtomicInteger();
+
+    /**
+     * Messages received by parallel receivers beyond the one returned,
+     * handed out by later reads.
+     */
+    private final java.util.Queue<Received> received=
+            new ConcurrentLinkedQueue<>();
+
+    /**
+     * Received messages not handed out within this time are handed back to
+     * SQS, well before their visibility timeout lapses and leaves a stale
+     * receipt handle.
+     */
+    private long bufferMillis= DEFAULT_VISIBILITY_TIMEOUT* 1000/ 3;
+
+    private ExecutorService receivers;
+
+    /**
+     * Shards with a long poll outstanding, at most one each.  Guarded by
+     * arrivals, which is signalled whenever a shard's poll finishes.
+     */
+    private boolean[] polling;
+    private final Object arrivals= new Object();
 
     public SqsQueue(Resource resource, Cache cache) {
 
@@ -42,31 +103,245 @@ public class SqsQueue extends Queue {
         super(resource, cache);
 
         BdProperties bdProperties= new BdProperties();
-        this.amazonSQS= new AmazonSQSClient(
+        AmazonSQS amazonSQS= new AmazonSQSClient(
                 bdProperties.getAwsCredentials("aws.sqs.accessKeyId",
                         "aws.sqs.secretKey"));
-        if( !isEmpty( bdProperties.getQueueName())){
+        if( !isEmpty( bdProperties.getQueueEndpoint())){
 
-            queueName= bdProperties.getQueueName();
+            amazonSQS.setEndpoint( bdProperties.getQueueEndpoint());
         }
-        try{
+        List<String> queueNames= bdProperties.getQueueNames();
+        if( queueNames.isEmpty()){
+
+            if( !isEmpty( bdProperties.getQueueName())){
+
+                queueName= bdProperties.getQueueName();
+            }
+            queueNames= Collections.singletonList( queueName);
+        }
+        this.fifo= bdProperties.getFifo();
+        this.setShards( amazonSQS, queueNames);
+        this.setEmbedJobs( bdProperties.getEmbedJobs());
+    }
+
+    /**
+     * Uses an existing SQS client, such as one pointed at a local
+     * SQS-compatible stand-in, and shards across the named queues.
+     *
+     * @param amazonSQS SQS client.
+     * @param queueNames Names of the queues to shard across, created if
+     *                   missing.
+     */
+    public SqsQueue(Resource resource, Cache cache, AmazonSQS amazonSQS,
+                    List<String> queueNames) {
+
+        this( resource, cache, amazonSQS, queueNames, false);
+    }
+
+    /**
+     * @param fifo True to use FIFO queues, grouping messages by message key.
+     */
+    public SqsQueue(Resource resource, Cache cache, AmazonSQS amazonSQS,
+                    List<String> queueNames, boolean fifo) {
+
+        super(resource, cache);
+
+        this.fifo= fifo;
+        this.setShards( amazonSQS, queueNames);
+    }
+
+    private void setShards(AmazonSQS amazonSQS, List<String> queueNames) {
 
-            this.queueUrl= this.amazonSQS.getQueueUrl( queueName).getQueueUrl();
-        }catch ( QueueDoesNotExistException e){
+        this.amazonSQS= amazonSQS;
+        if( this.fifo && this.amazonSQS instanceof AmazonWebServiceClient){
 
-            this.queueUrl= this.amazonSQS.createQueue( queueName).getQueueUrl();
+            ((AmazonWebServiceClient) this.amazonSQS).addRequestHandler(
+                    new SqsFifoRequestHandler());
+        }
+        this.queueUrls= new ArrayList<>( queueNames.size());
+        for( String queueName: queueNames){
+
+            if( this.fifo && !queueName.endsWith( FIFO_SUFFIX)){
+
+                queueName= queueName+ FIFO_SUFFIX;
+            }
+            try{
+
+                this.queueUrls.add( this.amazonSQS.getQueueUrl(
+                        queueName).getQueueUrl());
+            }catch ( QueueDoesNotExistException e){
+
+                Map<String,String> attributes= new HashMap<>();
+                if( this.fifo){
+
+                    attributes.put( "FifoQueue", "true");
+                }
+                this.queueUrls.add( this.amazonSQS.createQueue(
+                        new CreateQueueRequest( queueName).withAttributes(
+                                attributes)).getQueueUrl());
+            }
+        }
+        if( this.queueUrls.size()> 1){
+
+            // tf - Long polls outlive the reads starting them, so batch
+            //  receives must not queue behind them.
+            this.polling= new boolean[this.queueUrls.size()];
+            this.receivers= Executors.newCachedThreadPool(
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread= new Thread( runnable,
+                                    "sqs-receiver");
+                            thread.setDaemon( true);
+                            return thread;
+                        }
+                    });
         }
     }
 
     /**
-     * Writes a UUID into the underlying queue.
+     * Writes a UUID into the shard chosen by the UUID's hash.
      *
      * @param uuid UUID to queue.
      */
     @Override
     protected void write(UUID uuid) {
 
-        this.amazonSQS.sendMessage( this.queueUrl, uuid.toString());
+        String queueUrl= this.queueUrls.get( this.shard( uuid.hashCode()));
+        if( this.fifo){
+
+            this.amazonSQS.sendMessage(
+                    new SqsFifoRequestHandler.GroupedSendMessageRequest(
+                            queueUrl, uuid.toString(), uuid.toString(),
+                            uuid.toString()));
+        }else{
+
+            this.amazonSQS.sendMessage( queueUrl, uuid.toString());
+        }
+    }
+
+    /**
+     * Writes a job into the shard chosen by the hash of its message key,
+     * carrying the job in the message body when embedding jobs.
+     *
+     * @param job Job to queue.
+     */
+    @Override
+    protected void write(Job job) {
+
+        this.write( job, 0);
+    }
+
+    /**
+     * Writes a job into its shard using SQS DelaySeconds, which caps delays
+     * at fifteen minutes.
+     *
+     * @param job Job to queue.
+     * @param delayMillis Milliseconds to delay delivery.
+     */
+    @Override
+    protected void write(Job job, long delayMillis) {
+
+        String queueUrl= this.queueUrls.get( this.shard( job));
+        if( this.fifo){
+
+            this.amazonSQS.sendMessage(
+                    new SqsFifoRequestHandler.GroupedSendMessageRequest(
+                            queueUrl, this.encode( job),
+                            job.getMessageKey().getKey(),
+                            this.deduplicationId( job)));
+        }else if( delayMillis> 0){
+
+            this.amazonSQS.sendMessage( new SendMessageRequest( queueUrl,
+                    this.encode( job)).withDelaySeconds( this.seconds(
+                    delayMillis, MAXIMUM_DELAY_SECONDS)));
+        }else{
+
+            this.amazonSQS.sendMessage( queueUrl, this.encode( job));
+        }
+    }
+
+    /**
+     * Writes a batch of jobs into their shards, using SendMessageBatch
+     * requests of up to ten messages each.  A shard stops at its first
+     * failed request; entries SQS rejects are reported individually.
+     *
+     * @param jobs Jobs to queue.
+     * @return Jobs not written, empty if every job was written.
+     */
+    @Override
+    protected List<Job> writeAll(List<Job> jobs) {
+
+        List<List<Job>> shardJobs= new ArrayList<>( this.queueUrls.size());
+        for( int i= 0; i< this.queueUrls.size(); i++){
+
+            shardJobs.add( new ArrayList<Job>());
+        }
+        for( Job job: jobs){
+
+            shardJobs.get( this.shard( job)).add( job);
+        }
+        List<Job> unwritten= new ArrayList<>();
+        for( int shard= 0; shard< shardJobs.size(); shard++){
+
+            unwritten.addAll( this.writeAll( this.queueUrls.get( shard),
+                    shardJobs.get( shard)));
+        }
+
+        return unwritten;
+    }
+
+    private List<Job> writeAll(String queueUrl, List<Job> jobs) {
+
+        List<Job> unwritten= new ArrayList<>();
+        for( int i= 0; i< jobs.size(); i+= MAXIMUM_BATCH_SIZE){
+
+            List<Job> batch= jobs.subList( i, Math.min( jobs.size(),
+                    i+ MAXIMUM_BATCH_SIZE));
+            List<SendMessageBatchRequestEntry> entries= new ArrayList<>(
+                    MAXIMUM_BATCH_SIZE);
+            for( Job job: batch){
+
+                String id= Integer.toString( entries.size());
+                entries.add( this.fifo ?
+                        new SqsFifoRequestHandler.GroupedBatchEntry( id,
+                                this.encode( job),
+                                job.getMessageKey().getKey(),
+                                this.deduplicationId( job)) :
+                        new SendMessageBatchRequestEntry( id,
+                                this.encode( job)));
+            }
+            SendMessageBatchResult sendMessageBatchResult;
+            try{
+
+                sendMessageBatchResult= this.amazonSQS.sendMessageBatch(
+                        new SendMessageBatchRequest( queueUrl, entries));
+            }catch( RuntimeException e){
+
+                this.logger.log( Level.SEVERE, String.format( "Could not " +
+                        "send batch of '%d' messages to queue '%s'.",
+                        entries.size(), queueUrl), e);
+                unwritten.addAll( jobs.subList( i, jobs.size()));
+
+                return unwritten;
+            }
+            if( !isEmpty( sendMessageBatchResult.getFailed())){
+
+                this.logger.log( Level.SEVERE, String.format( "Could not " +
+                        "send '%d' of '%d' messages in batch to queue '%s'.",
+                        sendMessageBatchResult.getFailed().size(),
+                        entries.size(), queueUrl));
+                for( BatchResultErrorEntry failed:
+                        sendMessageBatchResult.getFailed()){
+
+                    // tf - Entry ids are positions within the batch.
+                    unwritten.add( batch.get( Integer.parseInt(
+                            failed.getId())));
+                }
+            }
+        }
+
+        return unwritten;
     }
 
     /**
@@ -79,21 +354,288 @@ public class SqsQueue extends Queue {
     @Override
     protected ResultTuple read() {
 
-        ReceiveMessageResult receiveMessageResult=
-                this.amazonSQS.receiveMessage( this.queueUrl);
-        if( !isEmpty( receiveMessageResult.getMessages())){
+        return this.read( 0);
+    }
+
+    /**
+     * Reads a UUID using SQS long polling, so an empty queue costs one
+     * receive request per shard per twenty seconds of waiting and a message
+     * is returned as soon as it arrives.  Every idle shard is polled in
+     * parallel and the first message any of them receives is returned;
+     * polls still outstanding buffer what they receive for later reads,
+     * handing it back to SQS if no read comes within the buffer time.
+     *
+     * @param timeoutMillis Milliseconds to wait, zero reads once.
+     * @return UUID in the queue, null if none arrived in time.
+     */
+    @Override
+    protected ResultTuple read(long timeoutMillis) {
+
+        long deadline= System.currentTimeMillis()+ timeoutMillis;
+        do{
+
+            ResultTuple resultTuple= this.poll();
+            if( resultTuple!= null){
+
+                return resultTuple;
+            }
+            if( this.receivers== null){
+
+                List<ResultTuple> resultTuples= this.receive( 0, 1,
+                        this.seconds( deadline- System.currentTimeMillis(),
+                                MAXIMUM_WAIT_SECONDS));
+                if( !resultTuples.isEmpty()){
 
-            Message message= receiveMessageResult.getMessages().get( 0);
-            this.amazonSQS.changeMessageVisibility( this.queueUrl,
-                    message.getReceiptHandle(), DEFAULT_VISIBILITY_TIMEOUT);
+                    return resultTuples.get( 0);
+                }
+            }else{
 
-            return new ResultTuple(UUID.fromString( message.getBody()),
-                    message.getReceiptHandle());
+                resultTuple= this.readShards( deadline);
+                if( resultTuple!= null){
+
+                    return resultTuple;
+                }
+            }
+        }while( System.currentTimeMillis()< deadline);
+
+        return null;
+    }
+
+    /**
+     * Keeps a long poll outstanding on every shard until a message is
+     * buffered, a poll started here fails, or the deadline passes, then
+     * waits out any polls started here that are still running.
+     */
+    private ResultTuple readShards( long deadline){
+
+        int start= this.nextShard.getAndIncrement()& Integer.MAX_VALUE;
+        List<ShardPoll> shardPolls= new ArrayList<>();
+        RuntimeException failure= null;
+        synchronized( this.arrivals){
+
+            try{
+
+                while( this.received.isEmpty()){
+
+                    for( ShardPoll shardPoll: shardPolls){
+
+                        if( shardPoll.failure!= null){
+
+                            failure= shardPoll.failure;
+                        }
+                    }
+                    if( failure!= null){
+
+                        break;
+                    }
+                    long remaining= deadline- System.currentTimeMillis();
+                    // tf - A zero timeout polls each shard once.
+                    if( remaining> 0 || shardPolls.isEmpty()){
+
+                        this.startPolls( start, this.seconds( remaining,
+                                MAXIMUM_WAIT_SECONDS), shardPolls);
+                    }
+                    boolean started= false;
+                    for( ShardPoll shardPoll: shardPolls){
+
+                        started|= !shardPoll.done;
+                    }
+                    if( !started && remaining<= 0){
+
+                        break;
+                    }
+                    this.arrivals.wait( Math.max( 0, remaining));
+                }
+            }catch( InterruptedException e){
+
+                Thread.currentThread().interrupt();
+
+                return null;
+            }
+        }
+        // tf - Everything buffered arrived during this read, so none of it
+        //  is stale yet.
+        Received received= this.received.poll();
+        if( received== null && failure!= null){
+
+            throw failure;
+        }
+
+        return received== null ? null : received.resultTuple;
+    }
+
+    /**
+     * Starts a long poll on every shard without one outstanding.  Callers
+     * hold arrivals.
+     */
+    private void startPolls( int start, int waitSeconds,
+                             List<ShardPoll> shardPolls){
+
+        for( int i= 0; i< this.queueUrls.size(); i++){
+
+            int shard= (start+ i)% this.queueUrls.size();
+            if( !this.polling[shard]){
+
+                this.polling[shard]= true;
+                ShardPoll shardPoll= new ShardPoll( shard, waitSeconds);
+                shardPolls.add( shardPoll);
+                this.receivers.execute( shardPoll);
+            }
+        }
+    }
+
+    /**
+     * Reads up to max UUIDs, receiving from every shard in parallel.  Each
+     * receive request also sets the visibility timeout on returned messages;
+     * SQS returns at most ten messages per request.
+     *
+     * @param max Maximum number of UUIDs to read.
+     * @return UUIDs in the queue, empty if the queue is empty.
+     */
+    @Override
+    protected List<ResultTuple> readBatch(int max) {
+
+        List<ResultTuple> resultTuples= new ArrayList<>( max);
+        ResultTuple resultTuple;
+        while( resultTuples.size()< max
+                && (resultTuple= this.poll())!= null){
+
+            resultTuples.add( resultTuple);
+        }
+        if( resultTuples.size()< max){
+
+            int perShard= (max- resultTuples.size()+ this.queueUrls.size()- 1)
+                    / this.queueUrls.size();
+            resultTuples.addAll( this.receiveAll( perShard, 0));
+        }
+        if( resultTuples.size()> max){
+
+            this.buffer( resultTuples.subList( max, resultTuples.size()));
+            resultTuples= new ArrayList<>( resultTuples.subList( 0, max));
+        }
+
+        return resultTuples;
+    }
+
+    /**
+     * Takes the next buffered message, handing back to SQS those buffered
+     * too long.
+     *
+     * @return Buffered message, null if none is left.
+     */
+    private ResultTuple poll(){
+
+        long now= System.currentTimeMillis();
+        Received received;
+        while( (received= this.received.poll())!= null){
+
+            if( now< received.expiry){
+
+                return received.resultTuple;
+            }
+            this.handBack( received.resultTuple.identifier);
         }
 
         return null;
     }
 
+    private void buffer( List<ResultTuple> resultTuples){
+
+        long expiry= System.currentTimeMillis()+ this.bufferMillis;
+        for( ResultTuple resultTuple: resultTuples){
+
+            this.received.add( new Received( resultTuple, expiry));
+        }
+    }
+
+    /**
+     * Makes a received message visible again right away, so another reader
+     * takes it rather than waiting out its visibility timeout.
+     */
+    private void handBack( String identifier){
+
+        try{
+
+            this.amazonSQS.changeMessageVisibility( this.queueUrl( identifier),
+                    this.receiptHandle( identifier), 0);
+        }catch( RuntimeException e){
+
+            // tf - Visibility already lapsed, SQS redelivers it anyway.
+            this.logger.log( Level.WARNING, String.format( "Could not hand " +
+                    "back message '%s'.", identifier), e);
+        }
+    }
+
+    /**
+     * Receives from every shard, in parallel when sharded, starting from a
+     * shard rotated on each call.
+     */
+    private List<ResultTuple> receiveAll( final int max,
+                                          final int waitSeconds){
+
+        int start= this.nextShard.getAndIncrement()& Integer.MAX_VALUE;
+        if( this.receivers== null){
+
+            return this.receive( 0, max, waitSeconds);
+        }
+        List<Future<List<ResultTuple>>> futures= new ArrayList<>(
+                this.queueUrls.size());
+        for( int i= 0; i< this.queueUrls.size(); i++){
+
+            final int shard= (start+ i)% this.queueUrls.size();
+            futures.add( this.receivers.submit(
+                    new Callable<List<ResultTuple>>() {
+                        @Override
+                        public List<ResultTuple> call() throws Exception {
+                            return receive( shard, max, waitSeconds);
+                        }
+                    }));
+        }
+        List<ResultTuple> resultTuples= new ArrayList<>();
+        RuntimeException failure= null;
+        for( Future<List<ResultTuple>> future: futures){
+
+            try{
+
+                resultTuples.addAll( future.get());
+            }catch( InterruptedException e){
+
+                Thread.currentThread().interrupt();
+            }catch( ExecutionException e){
+
+                String msg= "Could not receive from queue shard.";
+                this.logger.log(Level.SEVERE, msg, e.getCause());
+                failure= new RuntimeException( msg, e.getCause());
+            }
+        }
+        if( resultTuples.isEmpty() && failure!= null){
+
+            throw failure;
+        }
+
+        return resultTuples;
+    }
+
+    private List<ResultTuple> receive( int shard, int max, int waitSeconds){
+
+        ReceiveMessageResult receiveMessageResult=
+                this.amazonSQS.receiveMessage( new ReceiveMessageRequest(
+                        this.queueUrls.get( shard))
+                        .withMaxNumberOfMessages( Math.min( max,
+                                MAXIMUM_BATCH_SIZE))
+                        .withVisibilityTimeout( DEFAULT_VISIBILITY_TIMEOUT)
+                        .withWaitTimeSeconds( waitSeconds));
+        List<ResultTuple> resultTuples= new ArrayList<>(
+                receiveMessageResult.getMessages().size());
+        for( Message message: receiveMessageResult.getMessages()){
+
+            resultTuples.add( this.decode( message.getBody(),
+                    shard+ SEPARATOR+ message.getReceiptHandle()));
+        }
+
+        return resultTuples;
+    }
+
     /**
      * Deletes a uuid from the queue.
      *
@@ -102,7 +644,87 @@ public class SqsQueue extends Queue {
     @Override
     protected void delete(String identifier) {
 
-        this.amazonSQS.deleteMessage( this.queueUrl, identifier);
+        this.amazonSQS.deleteMessage( this.queueUrl( identifier),
+                this.receiptHandle( identifier));
+    }
+
+    /**
+     * Hands a message back to SQS by setting its visibility timeout to
+     * delayMillis, capped at twelve hours.
+     *
+     * @param identifier Identifies message within queue.
+     * @param delayMillis Milliseconds to delay redelivery.
+     */
+    @Override
+    protected void release(String identifier, long delayMillis) {
+
+        if( delayMillis> 0){
+
+            this.amazonSQS.changeMessageVisibility( this.queueUrl( identifier),
+                    this.receiptHandle( identifier),
+                    this.seconds( delayMillis, MAXIMUM_VISIBILITY_TIMEOUT));
+        }
+    }
+
+    /**
+     * Restarts the visibility timeout of a received message.
+     *
+     * @param identifier Identifies message within queue.
+     */
+    @Override
+    protected void extend(String identifier) {
+
+        this.amazonSQS.changeMessageVisibility( this.queueUrl( identifier),
+                this.receiptHandle( identifier), DEFAULT_VISIBILITY_TIMEOUT);
+    }
+
+    /**
+     * FIFO queues drop a message whose deduplication ID was sent in the last
+     * five minutes; a retried job is written again under the same UUID, so
+     * the try count is part of the ID.
+     */
+    private String deduplicationId( Job job){
+
+        return job.getUuid()+ "-"+ job.getTries();
+    }
+
+    /**
+     * @return True in FIFO mode, where SQS groups messages by message key.
+     */
+    @Override
+    protected boolean serializesKeys() {
+
+        return this.fifo;
+    }
+
+    private int shard( Job job){
+
+        return this.shard( job.getMessageKey().getKey().hashCode());
+    }
+
+    private int shard( int hash){
+
+        return (hash& Integer.MAX_VALUE)% this.queueUrls.size();
+    }
+
+    private String queueUrl( String identifier){
+
+        return this.queueUrls.get( Integer.parseInt( identifier.substring( 0,
+                identifier.indexOf( SEPARATOR))));
+    }
+
+    private String receiptHandle( String identifier){
+
+        return identifier.substring( identifier.indexOf( SEPARATOR)+ 1);
+    }
+
+    private int seconds( long millis, int maximum){
+
+        return (int) Math.min( maximum, Math.max( 0, (millis+ 999)/ 1000));
+    }
+
+    public void setBufferMillis(long bufferMillis) {
+        this.bufferMillis = bufferMillis;
     }
 
     /**
@@ -115,18 +737,68 @@ public class SqsQueue extends Queue {
 
         super.clear();
 
-        boolean hadMessages;
-        do{
+        this.received.clear();
+        for( String queueUrl: this.queueUrls){
 
-            ReceiveMessageResult receiveMessageResult=
-                    this.amazonSQS.receiveMessage( this.queueUrl);
-            List<Message> messages= receiveMessageResult.getMessages();
-            hadMessages= !isEmpty( messages);
-            for( Message message: messages){
+            boolean hadMessages;
+            do{
+
+                ReceiveMessageResult receiveMessageResult=
+                        this.amazonSQS.receiveMessage( queueUrl);
+                List<Message> messages= receiveMessageResult.getMessages();
+                hadMessages= !isEmpty( messages);
+                for( Message message: messages){
+
+                    this.amazonSQS.deleteMessage( queueUrl,
+                            message.getReceiptHandle());
+                }
+            }while( hadMessages);
+        }
+    }
 
-                this.amazonSQS.deleteMessage( this.queueUrl,
-                        message.getReceiptHandle());
+    /**
+     * Receives one message from a shard, buffering it for whichever read
+     * comes first.
+     */
+    private class ShardPoll implements Runnable {
+        private final int shard;
+        private final int waitSeconds;
+        // tf - Guarded by arrivals.
+        private boolean done;
+        private RuntimeException failure;
+        private ShardPoll(int shard, int waitSeconds) {
+            this.shard = shard;
+            this.waitSeconds = waitSeconds;
+        }
+        @Override
+        public void run() {
+            List<ResultTuple> resultTuples= Collections.emptyList();
+            RuntimeException failure= null;
+            try{
+                resultTuples= receive( this.shard, 1, this.waitSeconds);
+            }catch( RuntimeException e){
+                String msg= String.format( "Could not receive from queue " +
+                        "shard '%d'.", this.shard);
+                logger.log( Level.SEVERE, msg, e);
+                failure= new RuntimeException( msg, e);
+            }
+            // tf - Buffer before signalling, so woken reads find it.
+            buffer( resultTuples);
+            synchronized( arrivals){
+                this.failure= failure;
+                this.done= true;
+                polling[this.shard]= false;
+                arrivals.notifyAll();
             }
-        }while( hadMessages);
+        }
+    }
+
+    private static class Received{
+        private final ResultTuple resultTuple;
+        private final long expiry;
+        private Received(ResultTuple resultTuple, long expiry) {
+            this.resultTuple = resultTuple;
+            this.expiry = expiry;
+        }
     }
 }
@@ -0,0 +1,186 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Message;
+import info.bigdatahowto.core.MessageKey;
+import info.bigdatahowto.core.Queue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static info.bigdatahowto.defaults.TestUtils.fakeJob;
+
+/**
+ * @author timfulmer
+ */
+public class FairInMemoryQueueTest {
+
+    private FairInMemoryQueue queue;
+
+    @Before
+    public void before(){
+
+        this.queue= new FairInMemoryQueue();
+        this.queue.clear();
+    }
+
+    @Test
+    public void testContextFairness(){
+
+        List<UUID> bulk= new ArrayList<>();
+        for( int i= 0; i< 20; i++){
+
+            Job job= this.job( "bulk", BehaviorType.Persist);
+            this.queue.write( job);
+            bulk.add( job.getUuid());
+        }
+        Job other= this.job( "other", BehaviorType.Persist);
+        this.queue.write( other);
+
+        List<UUID> read= this.readAll();
+        assert read.size()== 21: "FairInMemoryQueue is losing UUIDs.";
+        assert read.indexOf( other.getUuid())== 4:
+                "FairInMemoryQueue is not sharing reads across contexts.";
+        assert read.subList( 0, 4).equals( bulk.subList( 0, 4)):
+                "FairInMemoryQueue is not keeping flow order.";
+    }
+
+    @Test
+    public void testContextWeight(){
+
+        this.queue.setContextWeight( "other", 2);
+        for( int i= 0; i< 10; i++){
+
+            this.queue.write( this.job( "bulk", BehaviorType.Persist));
+        }
+        List<UUID> others= new ArrayList<>();
+        for( int i= 0; i< 10; i++){
+
+            Job job= this.job( "other", BehaviorType.Persist);
+            this.queue.write( job);
+            others.add( job.getUuid());
+        }
+
+        List<UUID> read= this.readAll();
+        assert read.subList( 4, 12).equals( others.subList( 0, 8)):
+                "FairInMemoryQueue is not applying context weights.";
+    }
+
+    @Test
+    public void testPriority(){
+
+        for( int i= 0; i< 10; i++){
+
+            this.queue.write( this.job( "bulk", BehaviorType.Persist));
+        }
+        Job retry= this.job( "bulk", BehaviorType.Persist);
+        retry.setTries( 1);
+        this.queue.write( retry);
+        Job get= this.job( "bulk", BehaviorType.Get);
+        this.queue.write( get);
+
+        List<UUID> read= this.readAll();
+        assert read.indexOf( retry.getUuid())== 4:
+                "FairInMemoryQueue is not scheduling retries.";
+        assert read.indexOf( get.getUuid())== 5:
+                "FairInMemoryQueue is not scheduling interactive jobs.";
+    }
+
+    @Test
+    public void testRelease(){
+
+        Job job= this.job( "bulk", BehaviorType.Persist);
+        this.queue.write( job);
+        Queue.ResultTuple result= this.queue.read();
+        assert this.queue.read()== null: "FairInMemoryQueue is redelivering.";
+
+        this.queue.release( result.identifier);
+        result= this.queue.read();
+        assert result!= null && job.getUuid().equals( result.uuid):
+                "FairInMemoryQueue is not releasing UUIDs.";
+
+        this.queue.delete( result.identifier);
+        this.queue.release( result.identifier);
+        assert this.queue.read()== null: "FairInMemoryQueue is not deleting.";
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 10);
+        Job job= this.job( "bulk", BehaviorType.Persist);
+        this.queue.write( job);
+        this.queue.read();
+
+        Thread.sleep( 50);
+        Queue.ResultTuple result= this.queue.read();
+        assert result!= null && job.getUuid().equals( result.uuid):
+                "FairInMemoryQueue is not redelivering expired leases.";
+    }
+
+    @Test
+    public void testLeaseExpiry_Extended() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 1000);
+        Job running= this.job( "bulk", BehaviorType.Persist);
+        this.queue.write( running);
+        this.queue.read();
+        this.queue.setLeaseMillis( 10);
+        Job stalled= this.job( "bulk", BehaviorType.Persist);
+        this.queue.write( stalled);
+        this.queue.read();
+
+        // tf - The longer lease taken first does not hold back the other.
+        Thread.sleep( 200);
+        Queue.ResultTuple result= this.queue.read();
+        assert result!= null && stalled.getUuid().equals( result.uuid):
+                "FairInMemoryQueue is holding back expired leases.";
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFlowRemoval() throws Exception {
+
+        for( int i= 0; i< 10; i++){
+
+            this.queue.write( this.job( "context-"+ i, BehaviorType.Persist));
+        }
+        for( Queue.ResultTuple result; (result= this.queue.read())!= null;){
+
+            this.queue.delete( result.identifier);
+        }
+
+        Field field= FairInMemoryQueue.class.getDeclaredField( "flows");
+        field.setAccessible( true);
+        assert ((Map<String,?>) field.get( this.queue)).isEmpty():
+                "FairInMemoryQueue is keeping empty flows.";
+    }
+
+    private Job job( String userContext, BehaviorType behaviorType){
+
+        Message message= new Message( new MessageKey(
+                "//test-resource/"+ userContext+ "/test-key"));
+        Job job= fakeJob( message);
+        job.setBehaviorType( behaviorType);
+
+        return job;
+    }
+
+    private List<UUID> readAll(){
+
+        List<UUID> read= new ArrayList<>();
+        Queue.ResultTuple result;
+        while( (result= this.queue.read())!= null){
+
+            read.add( result.uuid);
+        }
+
+        return read;
+    }
+}
@@ -0,0 +1,185 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static info.bigdatahowto.defaults.TestUtils.fakeMessage;
+
+/**
+ * @author timfulmer
+ */
+public class InMemoryQueueTest {
+
+    private static final String AUTHENTICATION= "test-authentication";
+
+    private File directory;
+    private InMemoryQueue queue;
+
+    @Before
+    public void before() throws IOException {
+
+        // tf - A directory of our own, other builds may clear the default.
+        this.directory= Files.createTempDirectory( "in-memory-queue")
+                .toFile();
+        this.queue= new InMemoryQueue( new FileResource(
+                this.directory.getAbsolutePath()), new InMemoryCache());
+    }
+
+    @After
+    public void after() throws IOException {
+
+        FileUtils.deleteDirectory( this.directory);
+    }
+
+    @Test
+    public void testQueue(){
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Job job= this.queue.pop();
+        assert job!= null && uuid.equals( job.getUuid()):
+                "InMemoryQueue is not reading jobs.";
+
+        this.queue.complete( job);
+        assert this.queue.pop()== null: "InMemoryQueue is not deleting jobs.";
+    }
+
+    @Test
+    public void testDelayedPush() {
+
+        long start= System.currentTimeMillis();
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION,
+                new Date( start+ 300));
+        // tf - Blocks until delivered; only a delivery before the delay
+        //  passed is wrong, however slow the build.
+        Job job= this.queue.pop( 10, TimeUnit.SECONDS);
+        assert job!= null && uuid.equals( job.getUuid()):
+                "InMemoryQueue is not delivering delayed jobs.";
+        assert System.currentTimeMillis()- start>= 300:
+                "InMemoryQueue is delivering delayed jobs early.";
+    }
+
+    @Test
+    public void testErrorBackoff() {
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Job job= this.queue.pop();
+        long start= System.currentTimeMillis();
+        this.queue.error( job, "test-message", false, 300);
+
+        job= this.queue.pop( 10, TimeUnit.SECONDS);
+        assert job!= null && uuid.equals( job.getUuid()):
+                "InMemoryQueue is not redelivering errored jobs.";
+        assert System.currentTimeMillis()- start>= 300:
+                "InMemoryQueue is redelivering errored jobs early.";
+    }
+
+    @Test
+    public void testLeaseExpiry() {
+
+        this.queue.setLeaseMillis( 300);
+        UUID first= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        UUID second= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Job job= this.queue.pop();
+        assert job!= null && first.equals( job.getUuid()):
+                "InMemoryQueue is not reading jobs in order.";
+        this.queue.complete( job);
+        long start= System.currentTimeMillis();
+        assert this.queue.read()!= null:
+                "InMemoryQueue is not reading jobs.";
+        assert this.queue.read()== null
+                || System.currentTimeMillis()- start>= 300:
+                "InMemoryQueue is redelivering leased jobs early.";
+
+        // tf - Lease the redelivered job for longer than the test runs.
+        this.queue.setLeaseMillis( InMemoryQueue.DEFAULT_LEASE_MILLIS);
+        Queue.ResultTuple resultTuple= this.queue.read( 10000);
+        assert resultTuple!= null && second.equals( resultTuple.uuid):
+                "InMemoryQueue is not redelivering expired leases.";
+        assert System.currentTimeMillis()- start>= 300:
+                "InMemoryQueue is redelivering leased jobs early.";
+        assert this.queue.read()== null:
+                "InMemoryQueue is redelivering deleted jobs.";
+    }
+
+    @Test
+    public void testRelease(){
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Queue.ResultTuple resultTuple= this.queue.read();
+        assert this.queue.read()== null:
+                "InMemoryQueue is redelivering leased jobs.";
+
+        this.queue.release( resultTuple.identifier);
+        resultTuple= this.queue.read();
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "InMemoryQueue is not redelivering released jobs.";
+    }
+
+    @Test
+    public void testBlockingPop() throws InterruptedException {
+
+        long start= System.currentTimeMillis();
+        assert this.queue.pop( 100, TimeUnit.MILLISECONDS)== null:
+                "InMemoryQueue is not timing out on an empty queue.";
+        assert System.currentTimeMillis()- start>= 100:
+                "InMemoryQueue is not waiting for jobs.";
+
+        final UUID uuid= UUID.randomUUID();
+        Thread pusher= new Thread( new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep( 200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.push( uuid, fakeMessage(), BehaviorType.Persist,
+                        AUTHENTICATION);
+            }
+        });
+        start= System.currentTimeMillis();
+        pusher.start();
+        Job job= this.queue.pop( 10, TimeUnit.SECONDS);
+        assert job!= null && uuid.equals( job.getUuid()):
+                "InMemoryQueue is not waking waiting readers.";
+        assert System.currentTimeMillis()- start< 5000:
+                "InMemoryQueue is not waking waiting readers promptly.";
+        pusher.join();
+    }
+
+    @Test
+    public void testExtend() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 300);
+        UUID uuid= UUID.randomUUID();
+        this.queue.write( uuid);
+        Queue.ResultTuple resultTuple= this.queue.read();
+
+        Thread.sleep( 200);
+        long extended= System.currentTimeMillis();
+        this.queue.extend( resultTuple.identifier);
+        resultTuple= this.queue.read( 10000);
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "InMemoryQueue is not expiring extended leases.";
+        assert System.currentTimeMillis()- extended>= 300:
+                "InMemoryQueue is not extending leases.";
+    }
+}
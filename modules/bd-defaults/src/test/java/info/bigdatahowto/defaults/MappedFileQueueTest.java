@@ -0,0 +1,141 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.UUID;
+
+import static info.bigdatahowto.defaults.TestUtils.fakeMessage;
+
+/**
+ * @author timfulmer
+ */
+public class MappedFileQueueTest {
+
+    private static final String AUTHENTICATION= "test-authentication";
+
+    private File directory;
+    private MappedFileQueue queue;
+
+    @Before
+    public void before() throws IOException {
+
+        this.directory= Files.createTempDirectory( "mapped-file-queue")
+                .toFile();
+        this.queue= this.open();
+    }
+
+    @After
+    public void after() throws IOException {
+
+        this.queue.close();
+        FileUtils.deleteDirectory( this.directory);
+    }
+
+    @Test
+    public void testQueue(){
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Job job= this.queue.pop();
+        assert job!= null && uuid.equals( job.getUuid()):
+                "MappedFileQueue is not reading jobs.";
+
+        this.queue.complete( job);
+        assert this.queue.pop()== null:
+                "MappedFileQueue is not deleting jobs.";
+    }
+
+    @Test
+    public void testRecovery(){
+
+        UUID first= UUID.randomUUID();
+        UUID second= UUID.randomUUID();
+        UUID third= UUID.randomUUID();
+        this.queue.write( first);
+        this.queue.write( second);
+        this.queue.write( third);
+        this.queue.delete( this.queue.read().identifier);
+        assert second.equals( this.queue.read().uuid):
+                "MappedFileQueue is not reading in order.";
+        this.queue.close();
+
+        this.queue= this.open();
+        Queue.ResultTuple resultTuple= this.queue.read();
+        assert resultTuple!= null && second.equals( resultTuple.uuid):
+                "MappedFileQueue is not recovering unacknowledged reads.";
+        assert third.equals( this.queue.read().uuid):
+                "MappedFileQueue is not recovering pending writes.";
+        assert this.queue.read()== null:
+                "MappedFileQueue is recovering acknowledged records.";
+    }
+
+    @Test
+    public void testSegmentRecycling(){
+
+        for( int i= 0; i< 5; i++){
+
+            this.queue.write( UUID.randomUUID());
+        }
+        for( int i= 0; i< 5; i++){
+
+            this.queue.delete( this.queue.read().identifier);
+        }
+        this.queue.write( UUID.randomUUID());
+        this.queue.write( UUID.randomUUID());
+
+        int segments= 0, free= 0;
+        for( String name: this.directory.list()){
+
+            if( name.startsWith( "segment-")) segments++;
+            if( name.startsWith( "free-")) free++;
+        }
+        assert segments== 2 && free== 1:
+                "MappedFileQueue is not recycling segments.";
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 300);
+        UUID uuid= UUID.randomUUID();
+        this.queue.write( uuid);
+        assert this.queue.read()!= null && this.queue.read()== null:
+                "MappedFileQueue is redelivering leased records early.";
+
+        Thread.sleep( 500);
+        Queue.ResultTuple resultTuple= this.queue.read();
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "MappedFileQueue is not redelivering expired leases.";
+    }
+
+    @Test
+    public void testDelayedPush() throws InterruptedException {
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION,
+                new Date( System.currentTimeMillis()+ 300));
+        assert this.queue.pop()== null:
+                "MappedFileQueue is delivering delayed jobs early.";
+
+        Thread.sleep( 500);
+        Job job= this.queue.pop();
+        assert job!= null && uuid.equals( job.getUuid()):
+                "MappedFileQueue is not delivering delayed jobs.";
+    }
+
+    private MappedFileQueue open(){
+
+        return new MappedFileQueue( new FileResource(), new InMemoryCache(),
+                this.directory.getAbsolutePath(), 2, 0);
+    }
+}
@@ -0,0 +1,132 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Message;
+import info.bigdatahowto.core.MessageKey;
+import info.bigdatahowto.core.Queue;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+
+import static info.bigdatahowto.defaults.TestUtils.fakeMessage;
+
+/**
+ * @author timfulmer
+ */
+public class PartitionedInMemoryQueueTest {
+
+    private static final String AUTHENTICATION= "test-authentication";
+
+    private File directory;
+    private PartitionedInMemoryQueue queue;
+
+    @Before
+    public void before() throws IOException {
+
+        // tf - A directory of our own, other builds may clear the default.
+        this.directory= Files.createTempDirectory( "partitioned-queue")
+                .toFile();
+        this.queue= new PartitionedInMemoryQueue( new FileResource(
+                this.directory.getAbsolutePath()), new InMemoryCache(), 2);
+    }
+
+    @After
+    public void after() throws IOException {
+
+        FileUtils.deleteDirectory( this.directory);
+    }
+
+    @Test
+    public void testKeyAffinity(){
+
+        Message message= fakeMessage();
+        Message other= this.otherLaneMessage( message);
+        UUID first= this.queue.push( UUID.randomUUID(), message,
+                BehaviorType.Persist, AUTHENTICATION);
+        UUID second= this.queue.push( UUID.randomUUID(), message,
+                BehaviorType.Persist, AUTHENTICATION);
+        UUID third= this.queue.push( UUID.randomUUID(), other,
+                BehaviorType.Persist, AUTHENTICATION);
+
+        Job job1= this.queue.pop();
+        Job job2= this.queue.pop();
+        assert job1!= null && job2!= null:
+                "PartitionedInMemoryQueue is not skipping busy lanes.";
+        Job firstJob= job1.getUuid().equals( third) ? job2 : job1;
+        Job thirdJob= job1.getUuid().equals( third) ? job1 : job2;
+        assert first.equals( firstJob.getUuid()):
+                "PartitionedInMemoryQueue is not keeping lane order.";
+        assert third.equals( thirdJob.getUuid()):
+                "PartitionedInMemoryQueue is not reading other lanes.";
+        assert this.queue.pop()== null:
+                "PartitionedInMemoryQueue is not serializing keys.";
+
+        this.queue.complete( firstJob);
+        Job secondJob= this.queue.pop();
+        assert secondJob!= null && second.equals( secondJob.getUuid()):
+                "PartitionedInMemoryQueue is not checking lanes back in.";
+
+        this.queue.error( secondJob, "test-message", false);
+        Job retried= this.queue.pop();
+        assert retried!= null && second.equals( retried.getUuid()):
+                "PartitionedInMemoryQueue is not releasing errored jobs.";
+
+        this.queue.complete( retried);
+        this.queue.complete( thirdJob);
+        assert this.queue.pop()== null:
+                "PartitionedInMemoryQueue is not deleting completed jobs.";
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 300);
+        UUID uuid= UUID.randomUUID();
+        this.queue.write( uuid);
+        long start= System.currentTimeMillis();
+        Queue.ResultTuple result= this.queue.read();
+        assert result!= null && uuid.equals( result.uuid):
+                "PartitionedInMemoryQueue is not reading UUIDs.";
+        assert this.queue.read()== null
+                || System.currentTimeMillis()- start>= 300:
+                "PartitionedInMemoryQueue is not checking lanes out.";
+
+        long deadline= start+ 10000;
+        while( (result= this.queue.read())== null
+                && System.currentTimeMillis()< deadline){
+
+            Thread.sleep( 10);
+        }
+        assert result!= null && uuid.equals( result.uuid):
+                "PartitionedInMemoryQueue is not redelivering expired leases.";
+        assert System.currentTimeMillis()- start>= 300:
+                "PartitionedInMemoryQueue is not checking lanes out.";
+
+        this.queue.delete( result.identifier);
+        assert this.queue.read()== null:
+                "PartitionedInMemoryQueue is not deleting UUIDs.";
+    }
+
+    private Message otherLaneMessage( Message message){
+
+        int lane= message.getKey().hashCode()& 1;
+        for( int i= 0; ; i++){
+
+            String key= "//test-resource/test-userContext/test-key"+ i;
+            if( (key.hashCode()& 1)!= lane){
+
+                Message other= new Message( new MessageKey( key));
+                other.setContextOwner( message.getContextOwner());
+
+                return other;
+            }
+        }
+    }
+}
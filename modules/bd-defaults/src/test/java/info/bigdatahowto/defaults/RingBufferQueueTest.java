@@ -0,0 +1,181 @@
+package info.bigdatahowto.defaults;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.Queue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static info.bigdatahowto.defaults.TestUtils.fakeMessage;
+
+/**
+ * @author timfulmer
+ */
+public class RingBufferQueueTest {
+
+    private static final String AUTHENTICATION= "test-authentication";
+
+    private RingBufferQueue queue;
+
+    @Before
+    public void before(){
+
+        this.queue= new RingBufferQueue( new FileResource(),
+                new InMemoryCache(), 4);
+        this.queue.clear();
+    }
+
+    @Test
+    public void testQueue(){
+
+        UUID uuid= this.queue.push( UUID.randomUUID(), fakeMessage(),
+                BehaviorType.Persist, AUTHENTICATION);
+        Job job= this.queue.pop();
+        assert job!= null && uuid.equals( job.getUuid()):
+                "RingBufferQueue is not reading jobs.";
+
+        this.queue.complete( job);
+        assert this.queue.pop()== null:
+                "RingBufferQueue is not deleting jobs.";
+    }
+
+    @Test
+    public void testCapacity(){
+
+        for( int i= 0; i< 4; i++){
+
+            this.queue.write( UUID.randomUUID());
+        }
+        try{
+
+            this.queue.write( UUID.randomUUID());
+            assert false: "RingBufferQueue is not bounded.";
+        }catch( RuntimeException e){
+
+            // tf - Expected.
+        }
+        this.queue.delete( this.queue.read().identifier);
+        this.queue.write( UUID.randomUUID());
+    }
+
+    @Test
+    public void testLeaseExpiry() throws InterruptedException {
+
+        this.queue.setLeaseMillis( 300);
+        UUID uuid= UUID.randomUUID();
+        this.queue.write( uuid);
+        Queue.ResultTuple leased= this.queue.read();
+        assert leased!= null && this.queue.read()== null:
+                "RingBufferQueue is redelivering leased UUIDs early.";
+
+        Thread.sleep( 500);
+        Queue.ResultTuple resultTuple= this.queue.read();
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "RingBufferQueue is not redelivering expired leases.";
+
+        this.queue.delete( leased.identifier);
+        this.queue.delete( resultTuple.identifier);
+        assert this.queue.read()== null:
+                "RingBufferQueue is redelivering deleted UUIDs.";
+    }
+
+    @Test
+    public void testDelayed_Full() throws InterruptedException {
+
+        UUID first= UUID.randomUUID();
+        UUID second= UUID.randomUUID();
+        this.queue.write( new Job( first), 100);
+        this.queue.write( new Job( second), 100);
+        for( int i= 0; i< 4; i++){
+
+            this.queue.write( UUID.randomUUID());
+        }
+        Thread.sleep( 300);
+
+        // tf - Due UUIDs find the ring full, and wait for room.
+        Set<UUID> read= new HashSet<>();
+        long deadline= System.currentTimeMillis()+ 2000;
+        while( read.size()< 6 && System.currentTimeMillis()< deadline){
+
+            Queue.ResultTuple resultTuple= this.queue.read();
+            if( resultTuple== null){
+
+                Thread.sleep( 50);
+                continue;
+            }
+            read.add( resultTuple.uuid);
+            this.queue.delete( resultTuple.identifier);
+        }
+        assert read.size()== 6 && read.contains( first)
+                && read.contains( second): "RingBufferQueue is dropping " +
+                "delayed UUIDs when the ring is full.";
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+
+        final RingBufferQueue queue= new RingBufferQueue( new FileResource(),
+                new InMemoryCache(), 1024);
+        final int producers= 4, perProducer= 2000;
+        final Set<UUID> written= new ConcurrentSkipListSet<>();
+        final Set<UUID> read= new ConcurrentSkipListSet<>();
+        final CountDownLatch done= new CountDownLatch( producers);
+        ExecutorService executorService= Executors.newFixedThreadPool(
+                producers* 2);
+        List<Future<?>> futures= new ArrayList<>();
+        for( int i= 0; i< producers; i++){
+
+            futures.add( executorService.submit( new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    for( int j= 0; j< perProducer; j++){
+                        UUID uuid= UUID.randomUUID();
+                        written.add( uuid);
+                        while( true){
+                            try{
+                                queue.write( uuid);
+                                break;
+                            }catch( RuntimeException e){
+                                Thread.yield();
+                            }
+                        }
+                    }
+                    done.countDown();
+                    return null;
+                }
+            }));
+            futures.add( executorService.submit( new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    while( true){
+                        Queue.ResultTuple resultTuple= queue.read();
+                        if( resultTuple== null){
+                            if( done.getCount()== 0
+                                    && (resultTuple= queue.read())== null){
+                                return null;
+                            }
+                            if( resultTuple== null) continue;
+                        }
+                        assert read.add( resultTuple.uuid):
+                                "RingBufferQueue is reading UUIDs twice.";
+                        queue.delete( resultTuple.identifier);
+                    }
+                }
+            }));
+        }
+        for( Future<?> future: futures){
+
+            future.get( 30, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+        assert read.size()== producers* perProducer && read.equals( written):
+                "RingBufferQueue is losing UUIDs.";
+    }
+}
@@ -0,0 +1,60 @@
+package info.bigdatahowto.defaults;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author timfulmer
+ */
+public class TimingWheelTest {
+
+    @Test
+    public void testTimingWheel() throws InterruptedException {
+
+        Map<String,Long> delays= new HashMap<>();
+        delays.put( "now", 0L);
+        delays.put( "soon", 300L);
+        // tf - 'later' is over one revolution out.
+        delays.put( "later", 1000L);
+        TimingWheel<String> timingWheel= new TimingWheel<>( 10, 8);
+        long start= System.currentTimeMillis();
+        for( Map.Entry<String,Long> entry: delays.entrySet()){
+
+            timingWheel.schedule( entry.getKey(), entry.getValue());
+        }
+        assert timingWheel.size()== 3: "TimingWheel is not counting items.";
+
+        // tf - Only expiring an item before its delay is wrong, so poll
+        //  until everything expires however slow the build.
+        Set<String> expired= new HashSet<>();
+        long deadline= start+ 10000;
+        while( expired.size()< delays.size()
+                && System.currentTimeMillis()< deadline){
+
+            for( String item: timingWheel.expire()){
+
+                assert System.currentTimeMillis()- start>= delays.get( item):
+                        "TimingWheel is expiring items early.";
+                assert expired.add( item):
+                        "TimingWheel is expiring items twice.";
+            }
+            Thread.sleep( 10);
+        }
+        assert expired.equals( delays.keySet()):
+                "TimingWheel is not expiring due items.";
+        assert timingWheel.size()== 0: "TimingWheel is not counting items.";
+    }
+
+    @Test
+    public void testClear(){
+
+        TimingWheel<String> timingWheel= new TimingWheel<>();
+        timingWheel.schedule( "test", 0);
+        timingWheel.clear();
+        assert timingWheel.size()== 0: "TimingWheel is not clearing.";
+    }
+}
@@ -0,0 +1,150 @@
+package info.bigdatahowto.defaults.aws;
+
+import com.amazonaws.services.sqs.AmazonSQS;
+import com.amazonaws.services.sqs.model.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.*;
+
+/**
+ * In-process stand-in for SQS, covering the calls SqsQueue makes.  Received
+ * messages stay in flight until deleted or made visible again with a zero
+ * visibility timeout; visibility timeouts are not otherwise modelled.  An
+ * empty receive with a wait time blocks until a message is sent or the wait
+ * ends, as SQS long polling does.
+ *
+ * @author timfulmer
+ */
+public class FakeSqs implements InvocationHandler {
+
+    private final Map<String,Deque<Message>> queues= new LinkedHashMap<>();
+    private final Map<String,Message> inFlight= new HashMap<>();
+    private final List<String> groupIds= new ArrayList<>();
+    private int receives;
+
+    /**
+     * Batch entries sent after this many are reported failed, negative for
+     * none.
+     */
+    private int failAfter= -1;
+    private int sends;
+
+    public AmazonSQS amazonSQS(){
+
+        return (AmazonSQS) Proxy.newProxyInstance(
+                AmazonSQS.class.getClassLoader(),
+                new Class<?>[]{ AmazonSQS.class}, this);
+    }
+
+    public synchronized int size( String queueUrl){
+
+        return this.queues.get( queueUrl).size();
+    }
+
+    public synchronized int getReceives() {
+        return receives;
+    }
+
+    public synchronized List<String> getGroupIds() {
+        return new ArrayList<>( groupIds);
+    }
+
+    public synchronized void setFailAfter(int failAfter) {
+        this.failAfter = failAfter;
+    }
+
+    @Override
+    public synchronized Object invoke(Object proxy, Method method,
+                                      Object[] args) throws Throwable {
+
+        switch( method.getName()){
+            case "getQueueUrl":
+                if( !this.queues.containsKey( (String) args[0])){
+                    throw new QueueDoesNotExistException( (String) args[0]);
+                }
+                return new GetQueueUrlResult().withQueueUrl( (String) args[0]);
+            case "createQueue":
+                String queueName= args[0] instanceof String ? (String) args[0]
+                        : ((CreateQueueRequest) args[0]).getQueueName();
+                this.queues.put( queueName, new ArrayDeque<Message>());
+                return new CreateQueueResult().withQueueUrl( queueName);
+            case "sendMessage":
+                if( args.length== 2){
+                    this.send( (String) args[0], (String) args[1]);
+                }else{
+                    SendMessageRequest request= (SendMessageRequest) args[0];
+                    this.send( request.getQueueUrl(), request.getMessageBody());
+                    if( request instanceof
+                            SqsFifoRequestHandler.GroupedSendMessageRequest){
+                        this.groupIds.add( ((SqsFifoRequestHandler
+                                .GroupedSendMessageRequest) request).groupId);
+                    }
+                }
+                return new SendMessageResult();
+            case "sendMessageBatch":
+                SendMessageBatchRequest batch= (SendMessageBatchRequest) args[0];
+                SendMessageBatchResult batchResult= new SendMessageBatchResult();
+                for( SendMessageBatchRequestEntry entry: batch.getEntries()){
+                    if( this.failAfter>= 0 && this.sends>= this.failAfter){
+                        batchResult.getFailed().add( new BatchResultErrorEntry()
+                                .withId( entry.getId()));
+                        continue;
+                    }
+                    this.sends++;
+                    this.send( batch.getQueueUrl(), entry.getMessageBody());
+                    if( entry instanceof SqsFifoRequestHandler.GroupedBatchEntry){
+                        this.groupIds.add( ((SqsFifoRequestHandler
+                                .GroupedBatchEntry) entry).groupId);
+                    }
+                }
+                return batchResult;
+            case "receiveMessage":
+                this.receives++;
+                ReceiveMessageRequest request= args[0] instanceof String ?
+                        new ReceiveMessageRequest( (String) args[0]) :
+                        (ReceiveMessageRequest) args[0];
+                int max= request.getMaxNumberOfMessages()== null ? 1 :
+                        request.getMaxNumberOfMessages();
+                List<Message> messages= new ArrayList<>();
+                Deque<Message> queue= this.queues.get( request.getQueueUrl());
+                long deadline= System.currentTimeMillis()+ 1000L*
+                        (request.getWaitTimeSeconds()== null ? 0 :
+                        request.getWaitTimeSeconds());
+                long remaining;
+                while( queue.isEmpty() && (remaining= deadline-
+                        System.currentTimeMillis())> 0){
+                    this.wait( remaining);
+                }
+                while( messages.size()< max && !queue.isEmpty()){
+                    Message message= queue.poll();
+                    this.inFlight.put( message.getReceiptHandle(), message);
+                    messages.add( message);
+                }
+                return new ReceiveMessageResult().withMessages( messages);
+            case "deleteMessage":
+                this.inFlight.remove( (String) args[1]);
+                return null;
+            case "changeMessageVisibility":
+                // tf - A zero timeout makes the message visible again.
+                Message visible= (Integer) args[2]== 0 ?
+                        this.inFlight.remove( (String) args[1]) : null;
+                if( visible!= null){
+                    this.queues.get( (String) args[0]).addFirst( visible);
+                }
+                return null;
+            default:
+                throw new UnsupportedOperationException( method.getName());
+        }
+    }
+
+    private void send( String queueUrl, String body){
+
+        this.queues.get( queueUrl).add( new Message()
+                .withBody( body)
+                .withReceiptHandle( UUID.randomUUID().toString())
+                .withMessageId( UUID.randomUUID().toString()));
+        this.notifyAll();
+    }
+}
@@ -0,0 +1,60 @@
+package info.bigdatahowto.defaults.aws;
+
+import com.amazonaws.Request;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.transform.SendMessageBatchRequestMarshaller;
+import com.amazonaws.services.sqs.model.transform.SendMessageRequestMarshaller;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author timfulmer
+ */
+public class SqsFifoRequestHandlerTest {
+
+    private final SqsFifoRequestHandler handler= new SqsFifoRequestHandler();
+
+    @Test
+    public void testSendMessage(){
+
+        Request<SendMessageRequest> request=
+                new SendMessageRequestMarshaller().marshall(
+                        new SqsFifoRequestHandler.GroupedSendMessageRequest(
+                                "test-url", "test-body", "test-group",
+                                "test-deduplication"));
+        this.handler.beforeRequest( request);
+
+        assert "test-group".equals( request.getParameters().get(
+                "MessageGroupId")):
+                "SqsFifoRequestHandler is not adding group IDs.";
+        assert "test-deduplication".equals( request.getParameters().get(
+                "MessageDeduplicationId")):
+                "SqsFifoRequestHandler is not adding deduplication IDs.";
+    }
+
+    @Test
+    public void testSendMessageBatch(){
+
+        Request<SendMessageBatchRequest> request=
+                new SendMessageBatchRequestMarshaller().marshall(
+                        new SendMessageBatchRequest( "test-url", Arrays.asList(
+                                new SendMessageBatchRequestEntry( "0", "plain"),
+                                new SqsFifoRequestHandler.GroupedBatchEntry(
+                                        "1", "test-body", "test-group",
+                                        "test-deduplication"))));
+        this.handler.beforeRequest( request);
+
+        assert !request.getParameters().containsKey(
+                "SendMessageBatchRequestEntry.1.MessageGroupId"):
+                "SqsFifoRequestHandler is grouping plain entries.";
+        assert "test-group".equals( request.getParameters().get(
+                "SendMessageBatchRequestEntry.2.MessageGroupId")):
+                "SqsFifoRequestHandler is not grouping batch entries.";
+        assert "test-deduplication".equals( request.getParameters().get(
+                "SendMessageBatchRequestEntry.2.MessageDeduplicationId")):
+                "SqsFifoRequestHandler is not deduplicating batch entries.";
+    }
+}
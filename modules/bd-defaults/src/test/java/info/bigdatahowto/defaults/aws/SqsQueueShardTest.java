@@ -0,0 +1,238 @@
+package info.bigdatahowto.defaults.aws;
+
+import info.bigdatahowto.core.BehaviorType;
+import info.bigdatahowto.core.Cache;
+import info.bigdatahowto.core.Job;
+import info.bigdatahowto.core.JobState;
+import info.bigdatahowto.core.Message;
+import info.bigdatahowto.core.MessageKey;
+import info.bigdatahowto.core.Queue;
+import info.bigdatahowto.core.Resource;
+import info.bigdatahowto.defaults.FileResource;
+import info.bigdatahowto.defaults.InMemoryCache;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.mockito.Mockito.*;
+
+/**
+ * @author timfulmer
+ */
+public class SqsQueueShardTest {
+
+    private static final String AUTHENTICATION= "test-authentication";
+
+    private File directory;
+    private FakeSqs fakeSqs;
+    private SqsQueue sqsQueue;
+
+    @Before
+    public void before() throws IOException {
+
+        // tf - A directory of our own, other builds may clear the default.
+        this.directory= Files.createTempDirectory( "sqs-queue").toFile();
+        this.fakeSqs= new FakeSqs();
+        this.sqsQueue= new SqsQueue( this.fileResource(), new InMemoryCache(),
+                this.fakeSqs.amazonSQS(), Arrays.asList( "shard-0", "shard-1",
+                "shard-2"));
+    }
+
+    @After
+    public void after() throws IOException {
+
+        FileUtils.deleteDirectory( this.directory);
+    }
+
+    @Test
+    public void testKeyRouting(){
+
+        for( int i= 0; i< 3; i++){
+
+            this.sqsQueue.push( UUID.randomUUID(), this.message( "same-key"),
+                    BehaviorType.Persist, AUTHENTICATION);
+        }
+        int shards= 0;
+        for( String queueUrl: Arrays.asList( "shard-0", "shard-1", "shard-2")){
+
+            if( this.fakeSqs.size( queueUrl)> 0){
+
+                assert this.fakeSqs.size( queueUrl)== 3:
+                        "SqsQueue is splitting a key across shards.";
+                shards++;
+            }
+        }
+        assert shards== 1: "SqsQueue is not routing by message key.";
+    }
+
+    @Test
+    public void testPushAll_PartialWrite(){
+
+        Resource resource= this.fileResource();
+        SqsQueue sqsQueue= new SqsQueue( resource, new InMemoryCache(),
+                this.fakeSqs.amazonSQS(), Collections.singletonList(
+                "shard-0"));
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        for( int i= 0; i< 25; i++){
+
+            pushTuples.add( new Queue.PushTuple( UUID.randomUUID(),
+                    this.message( "key-"+ i), BehaviorType.Persist));
+        }
+        // tf - First two batches are sent, the third's entries fail.
+        this.fakeSqs.setFailAfter( 20);
+
+        try{
+
+            sqsQueue.pushAll( pushTuples, AUTHENTICATION);
+            assert false: "SqsQueue is not reporting failed entries.";
+        }catch( RuntimeException e){
+
+            // tf - Expected.
+        }
+        assert this.fakeSqs.size( "shard-0")== 20:
+                "SqsQueue is not sending batches before the failure.";
+        for( int i= 0; i< pushTuples.size(); i++){
+
+            Job job= resource.get( new Job( pushTuples.get( i).jobUuid));
+            assert (i< 20) == (job.getState()== JobState.Queued):
+                    "SqsQueue is marking written jobs Error.";
+        }
+    }
+
+    @Test
+    public void testRead_HandBack(){
+
+        for( int i= 0; i< 3; i++){
+
+            this.sqsQueue.push( UUID.randomUUID(), this.message( "key-"+ i),
+                    BehaviorType.Persist, AUTHENTICATION);
+        }
+        this.sqsQueue.setBufferMillis( 0);
+
+        // tf - A batch receives from every shard before returning, so no
+        //  poll is left running to buffer behind the count below.
+        List<Queue.ResultTuple> resultTuples= this.sqsQueue.readBatch( 1);
+        assert resultTuples.size()== 1: "SqsQueue is not reading.";
+        int receives= this.fakeSqs.getReceives();
+        this.sqsQueue.delete( resultTuples.get( 0).identifier);
+
+        // tf - Buffered messages are stale, so they go back to SQS and are
+        //  received again.
+        Queue.ResultTuple resultTuple= this.sqsQueue.read( 10000);
+        assert resultTuple!= null: "SqsQueue is losing handed back messages.";
+        assert this.fakeSqs.getReceives()> receives:
+                "SqsQueue is handing out stale buffered messages.";
+    }
+
+    @Test
+    public void testRead_FirstShard(){
+
+        UUID uuid= this.sqsQueue.push( UUID.randomUUID(),
+                this.message( "same-key"), BehaviorType.Persist,
+                AUTHENTICATION);
+
+        // tf - The empty shards long poll for the whole twenty seconds.
+        long start= System.currentTimeMillis();
+        Queue.ResultTuple resultTuple= this.sqsQueue.read( 20000);
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "SqsQueue is not reading.";
+        assert System.currentTimeMillis()- start< 10000:
+                "SqsQueue is waiting on empty shards.";
+
+        // tf - Those polls are still outstanding, and hand over what they
+        //  receive.
+        uuid= this.sqsQueue.push( UUID.randomUUID(), this.message( "other-key"),
+                BehaviorType.Persist, AUTHENTICATION);
+        resultTuple= this.sqsQueue.read( 20000);
+        assert resultTuple!= null && uuid.equals( resultTuple.uuid):
+                "SqsQueue is not reading outstanding polls.";
+        assert System.currentTimeMillis()- start< 10000:
+                "SqsQueue is waiting on empty shards.";
+    }
+
+    @Test
+    public void testReadAllShards(){
+
+        Set<UUID> written= new HashSet<>();
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        for( int i= 0; i< 30; i++){
+
+            UUID uuid= UUID.randomUUID();
+            written.add( uuid);
+            pushTuples.add( new Queue.PushTuple( uuid, this.message( "key-"+ i),
+                    BehaviorType.Persist));
+        }
+        this.sqsQueue.pushAll( pushTuples, AUTHENTICATION);
+        for( String queueUrl: Arrays.asList( "shard-0", "shard-1", "shard-2")){
+
+            assert this.fakeSqs.size( queueUrl)> 0:
+                    "SqsQueue is not spreading writes across shards.";
+        }
+
+        Set<UUID> read= new HashSet<>();
+        List<Queue.ResultTuple> resultTuples;
+        while( !(resultTuples= this.sqsQueue.readBatch( 7)).isEmpty()){
+
+            assert resultTuples.size()<= 7:
+                    "SqsQueue is reading more than asked.";
+            for( Queue.ResultTuple resultTuple: resultTuples){
+
+                read.add( resultTuple.uuid);
+                this.sqsQueue.delete( resultTuple.identifier);
+            }
+        }
+        Queue.ResultTuple resultTuple;
+        while( (resultTuple= this.sqsQueue.read())!= null){
+
+            read.add( resultTuple.uuid);
+            this.sqsQueue.delete( resultTuple.identifier);
+        }
+        assert written.equals( read): "SqsQueue is not reading every shard.";
+    }
+
+    @Test
+    public void testFifo(){
+
+        Cache cacheMock= mock( Cache.class);
+        SqsQueue fifoQueue= new SqsQueue( this.fileResource(), cacheMock,
+                this.fakeSqs.amazonSQS(), Arrays.asList( "fifo-0"), true);
+        assert this.fakeSqs.size( "fifo-0.fifo")== 0:
+                "SqsQueue is not naming FIFO queues.";
+
+        fifoQueue.push( UUID.randomUUID(), this.message( "same-key"),
+                BehaviorType.Persist, AUTHENTICATION);
+        List<Queue.PushTuple> pushTuples= new ArrayList<>();
+        pushTuples.add( new Queue.PushTuple( UUID.randomUUID(),
+                this.message( "other-key"), BehaviorType.Persist));
+        fifoQueue.pushAll( pushTuples, AUTHENTICATION);
+        assert Arrays.asList( "//test-resource/test-userContext/same-key",
+                "//test-resource/test-userContext/other-key").equals(
+                this.fakeSqs.getGroupIds()):
+                "SqsQueue is not grouping FIFO messages by message key.";
+
+        Job job= fifoQueue.pop();
+        assert job!= null: "SqsQueue is not reading FIFO messages.";
+        fifoQueue.complete( job);
+        verifyZeroInteractions( cacheMock);
+    }
+
+    private FileResource fileResource(){
+
+        return new FileResource( this.directory.getAbsolutePath());
+    }
+
+    private Message message( String key){
+
+        Message message= new Message( new MessageKey(
+                "//test-resource/test-userContext/"+ key));
+        message.setContextOwner( "test-userContext");
+
+        return message;
+    }
+}
@@ -13,6 +13,9 @@ object Application extends Controller {
   // setup for no auth.
   bd.setAuthenticator( new AlwaysAllowAuthenticator())
   val authentication= "noauth"
+  // process jobs as they arrive, /job/poll is no longer needed.
+  bd.startProcessing( play.api.Play.current.configuration.getInt(
+    "bd.processor.poolSize").getOrElse(4))
 
   def index = Action {
     BadRequest("Operation not supported.")